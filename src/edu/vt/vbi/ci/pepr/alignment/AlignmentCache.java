@@ -0,0 +1,297 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.vt.vbi.ci.util.file.FastaSequenceSet;
+
+/**
+ * Persistent cache of aligned (and trimmed) SequenceAlignments, kept in
+ * a directory so it can be reused by later runs. Each entry is a file
+ * named by a SHA-256 hash of the sequence set content (titles and
+ * sequences) and a String describing the aligner and trimmer parameters,
+ * so a sequence set that is unchanged between runs gets the same entry,
+ * whatever its name, and changing a parameter gives a different entry.
+ *
+ * Entries are stored as compressed binary: the titles and taxa, followed
+ * by the stored residue bytes of each row. The total size of the entries
+ * is limited. When the limit is exceeded, the least recently used entries
+ * are deleted. The modification time of an entry is updated each time it
+ * is read, and is used to determine the least recently used entries.
+ *
+ * As with FastaIndexCache, an entry that can not be read is treated as
+ * missing, and failure to write an entry is not an error.
+ *
+ * @author enordber
+ *
+ */
+public class AlignmentCache {
+
+	public static final String ENTRY_SUFFIX = ".pepraln";
+
+	private static final int MAGIC = 0x50455041; //"PEPA"
+	private static final int VERSION = 1;
+
+	private File directory;
+	private long maximumBytes;
+	/*
+	 * total size of the entries in the directory. This is updated as
+	 * entries are written, and recalculated when entries are evicted.
+	 */
+	private long cachedBytes;
+
+	/**
+	 * @param directory directory holding the entries. It is created if
+	 *                  it does not exist.
+	 * @param maximumBytes limit for the total size of the entries
+	 */
+	public AlignmentCache(File directory, long maximumBytes) {
+		this.directory = directory;
+		this.maximumBytes = maximumBytes;
+		directory.mkdirs();
+		File[] entries = getEntryFiles();
+		for(int i = 0; i < entries.length; i++) {
+			cachedBytes += entries[i].length();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the key for the sequence set and parameters. This is the
+	 * hex form of a SHA-256 hash of the parameters and of the title and
+	 * sequence lines of each sequence, in order.
+	 *
+	 * @param sequenceSet
+	 * @param parameters describes everything other than the sequences
+	 *                   that affects the alignment, such as the aligner
+	 *                   and trimmer options
+	 * @return
+	 */
+	public static String getKey(FastaSequenceSet sequenceSet,
+			String parameters) {
+		String r = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte)0);
+			int sequenceCount = sequenceSet.getSequenceCount();
+			for(int i = 0; i < sequenceCount; i++) {
+				String[] lines = sequenceSet.getSequence(i);
+				for(int j = 0; j < lines.length; j++) {
+					digest.update(lines[j].getBytes(StandardCharsets.UTF_8));
+					digest.update((byte)'\n');
+				}
+			}
+			byte[] hash = digest.digest();
+			StringBuffer sb = new StringBuffer(hash.length*2);
+			for(int i = 0; i < hash.length; i++) {
+				sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(hash[i] & 0xf, 16));
+			}
+			r = sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//every Java platform is required to support SHA-256
+			e.printStackTrace();
+		}
+		return r;
+	}
+
+	private File getEntryFile(String key) {
+		return new File(directory, key + ENTRY_SUFFIX);
+	}
+
+	private File[] getEntryFiles() {
+		File[] r = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() &&
+				file.getName().endsWith(ENTRY_SUFFIX);
+			}
+		});
+		if(r == null) {
+			r = new File[0];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the cached alignment for the key, or null if there is
+	 * no usable entry for it. The alignment has no name.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public SequenceAlignment get(String key) {
+		SequenceAlignment r = null;
+		File entryFile = getEntryFile(key);
+		if(!entryFile.isFile()) {
+			return r;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(entryFile), 1024*64));
+			try {
+				if(in.readInt() == MAGIC && in.readInt() == VERSION) {
+					in = new DataInputStream(new InflaterInputStream(in));
+					int ntax = in.readInt();
+					int length = in.readInt();
+					String[] titles = new String[ntax];
+					for(int i = 0; i < ntax; i++) {
+						titles[i] = readString(in);
+					}
+					String[] taxa = null;
+					if(in.readBoolean()) {
+						taxa = new String[ntax];
+						for(int i = 0; i < ntax; i++) {
+							taxa[i] = readString(in);
+						}
+					}
+					byte[][] rows = new byte[ntax][length];
+					for(int i = 0; i < ntax; i++) {
+						in.readFully(rows[i]);
+					}
+					r = new SequenceAlignment(rows, titles, taxa);
+				}
+			} finally {
+				in.close();
+			}
+			//mark as recently used
+			entryFile.setLastModified(System.currentTimeMillis());
+		} catch(IOException ioe) {
+			r = null;
+		} catch(RuntimeException re) {
+			//a truncated or corrupt entry is treated as missing
+			r = null;
+		}
+		return r;
+	}
+
+	/**
+	 * Stores the alignment under the key, then deletes least recently
+	 * used entries if the size limit is exceeded. The entry is written
+	 * to a temporary file which is then renamed, so other Threads or
+	 * runs sharing the directory never see a partial entry.
+	 *
+	 * @param key
+	 * @param alignment
+	 */
+	public void put(String key, SequenceAlignment alignment) {
+		File entryFile = getEntryFile(key);
+		File tempFile = new File(entryFile.getPath() + ".tmp" +
+				Thread.currentThread().getId());
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile),
+							1024*64));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.flush();
+				DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+				DataOutputStream data = new DataOutputStream(deflater);
+				int ntax = alignment.getNTax();
+				int length = alignment.getLength();
+				data.writeInt(ntax);
+				data.writeInt(length);
+				for(int i = 0; i < ntax; i++) {
+					writeString(data, alignment.getSequenceTitle(i));
+				}
+				String[] taxa = alignment.hasTaxonNames() ?
+						alignment.getTaxa() : null;
+				data.writeBoolean(taxa != null);
+				if(taxa != null) {
+					for(int i = 0; i < ntax; i++) {
+						writeString(data, taxa[i]);
+					}
+				}
+				for(int i = 0; i < ntax; i++) {
+					byte[] row = alignment.getSequenceBytes(i);
+					data.write(row, 0, Math.min(row.length, length));
+					for(int j = row.length; j < length; j++) {
+						data.write(SequenceAlignment.GAP_CHAR);
+					}
+				}
+				data.flush();
+				deflater.finish();
+			} finally {
+				out.close();
+			}
+			long oldLength = entryFile.length();
+			long newLength = tempFile.length();
+			if(tempFile.renameTo(entryFile)) {
+				addCachedBytes(newLength - oldLength);
+			} else {
+				tempFile.delete();
+			}
+		} catch(IOException ioe) {
+			tempFile.delete();
+		}
+	}
+
+	private synchronized void addCachedBytes(long bytes) {
+		cachedBytes += bytes;
+		if(cachedBytes > maximumBytes) {
+			evict();
+		}
+	}
+
+	/**
+	 * Deletes least recently used entries until the total size is within
+	 * the limit. The total is recalculated from the directory, which
+	 * may also be used by other runs.
+	 */
+	private void evict() {
+		File[] entries = getEntryFiles();
+		final long[] lastUsed = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+		cachedBytes = 0;
+		for(int i = 0; i < entries.length; i++) {
+			lastUsed[i] = entries[i].lastModified();
+			order[i] = Integer.valueOf(i);
+			cachedBytes += entries[i].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				long used1 = lastUsed[o1.intValue()];
+				long used2 = lastUsed[o2.intValue()];
+				return used1 < used2 ? -1 : (used1 == used2 ? 0 : 1);
+			}
+		});
+		for(int i = 0; i < order.length && cachedBytes > maximumBytes; i++) {
+			File entry = entries[order[i].intValue()];
+			long entryLength = entry.length();
+			if(entry.delete()) {
+				cachedBytes -= entryLength;
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+	throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
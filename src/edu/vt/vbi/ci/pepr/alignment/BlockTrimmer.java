@@ -0,0 +1,226 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+/**
+ * Selects the conserved blocks of an alignment, following the rules used
+ * by Gblocks (Castresana, 2000), without running the Gblocks program.
+ * The parameters have the same meaning as the Gblocks options:
+ *
+ * b1: minimum number of sequences for a conserved position
+ * b2: minimum number of sequences for a flank position (highly conserved)
+ * b3: maximum number of contiguous nonconserved positions
+ * b4: minimum length of a block
+ * b5: allowed gap positions: GAPS_NONE, GAPS_HALF or GAPS_ALL
+ *
+ * Each column is classified by the number of sequences having its most
+ * common residue, ignoring case. Gap and missing characters are not
+ * residues. A column is a gap position if any sequence has a gap in it
+ * (GAPS_NONE), if at least half the sequences have a gap (GAPS_HALF), or
+ * never (GAPS_ALL). Columns are then selected as Gblocks does:
+ *
+ * 1) gap positions are rejected
+ * 2) stretches of more than b3 contiguous nonconserved positions are
+ *    rejected
+ * 3) each remaining block is shortened until it starts and ends with
+ *    a highly conserved position
+ * 4) blocks shorter than b4 are rejected
+ *
+ * The column counts come from ColumnStatistics, which counts long
+ * alignments in parallel.
+ *
+ * @author enordber
+ *
+ */
+public class BlockTrimmer {
+
+	public static final char GAPS_NONE = 'n';
+	public static final char GAPS_HALF = 'h';
+	public static final char GAPS_ALL = 'a';
+
+	private static final byte GAP_POSITION = 0;
+	private static final byte NONCONSERVED = 1;
+	private static final byte CONSERVED = 2;
+	private static final byte HIGHLY_CONSERVED = 3;
+
+	/*
+	 * minimum number of sequences for a conserved position. 0 means the
+	 * Gblocks default, half the sequences plus one.
+	 */
+	private int b1 = 0;
+	/*
+	 * minimum number of sequences for a flank position. 0 means the
+	 * Gblocks default, 85% of the sequences. This is never less than b1.
+	 */
+	private int b2 = 0;
+	private int b3 = 8;
+	private int b4 = 10;
+	private char b5 = GAPS_NONE;
+
+	public void setMinimumConservedSequences(int b1) {
+		this.b1 = b1;
+	}
+
+	public void setMinimumFlankSequences(int b2) {
+		this.b2 = b2;
+	}
+
+	public void setMaximumNonconservedStretch(int b3) {
+		this.b3 = b3;
+	}
+
+	public void setMinimumBlockLength(int b4) {
+		this.b4 = b4;
+	}
+
+	/**
+	 * @param b5 GAPS_NONE, GAPS_HALF or GAPS_ALL
+	 */
+	public void setAllowedGapPositions(char b5) {
+		if(b5 != GAPS_NONE && b5 != GAPS_HALF && b5 != GAPS_ALL) {
+			throw new IllegalArgumentException("unknown gap setting: " + b5);
+		}
+		this.b5 = b5;
+	}
+
+	/**
+	 * Returns a description of the settings, in the form of the
+	 * Gblocks options.
+	 */
+	public String getParameterString() {
+		return "b1=" + b1 + " b2=" + b2 + " b3=" + b3 + " b4=" + b4 +
+		" b5=" + b5;
+	}
+
+	private int getConservedThreshold(int ntax) {
+		int r = b1;
+		if(r <= 0) {
+			r = ntax/2 + 1;
+		}
+		return r;
+	}
+
+	private int getFlankThreshold(int ntax) {
+		int r = b2;
+		if(r <= 0) {
+			r = (int)Math.ceil(ntax * 0.85);
+		}
+		return Math.max(r, getConservedThreshold(ntax));
+	}
+
+	/**
+	 * Returns a new alignment with only the selected columns, or null if
+	 * no columns are selected. Titles and taxa are kept.
+	 *
+	 * @param alignment
+	 * @return
+	 */
+	public SequenceAlignment trim(SequenceAlignment alignment) {
+		SequenceAlignment r = null;
+		boolean[] selected = getSelectedColumns(alignment);
+		int selectedCount = 0;
+		for(int i = 0; i < selected.length; i++) {
+			if(selected[i]) {
+				selectedCount++;
+			}
+		}
+		if(selectedCount > 0) {
+			r = alignment.copyColumns(selected);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns true for each column of the alignment that is in
+	 * a selected block.
+	 *
+	 * @param alignment
+	 * @return
+	 */
+	public boolean[] getSelectedColumns(SequenceAlignment alignment) {
+		byte[] classes = getColumnClasses(alignment);
+		int length = classes.length;
+		boolean[] r = new boolean[length];
+
+		//reject gap positions and long nonconserved stretches. Whatever
+		//remains is a candidate block
+		for(int i = 0; i < length; i++) {
+			r[i] = classes[i] != GAP_POSITION;
+		}
+		int stretchStart = -1;
+		for(int i = 0; i <= length; i++) {
+			boolean nonconserved = i < length && classes[i] == NONCONSERVED;
+			if(nonconserved && stretchStart < 0) {
+				stretchStart = i;
+			} else if(!nonconserved && stretchStart >= 0) {
+				if(i - stretchStart > b3) {
+					for(int j = stretchStart; j < i; j++) {
+						r[j] = false;
+					}
+				}
+				stretchStart = -1;
+			}
+		}
+
+		//shorten each block to highly conserved flanks, then reject
+		//short blocks
+		int blockStart = 0;
+		while(blockStart < length) {
+			if(!r[blockStart]) {
+				blockStart++;
+				continue;
+			}
+			int blockEnd = blockStart;
+			while(blockEnd < length && r[blockEnd]) {
+				blockEnd++;
+			}
+			int first = blockStart;
+			while(first < blockEnd && classes[first] != HIGHLY_CONSERVED) {
+				first++;
+			}
+			int last = blockEnd - 1;
+			while(last >= first && classes[last] != HIGHLY_CONSERVED) {
+				last--;
+			}
+			boolean keep = last - first + 1 >= b4;
+			for(int i = blockStart; i < blockEnd; i++) {
+				r[i] = keep && i >= first && i <= last;
+			}
+			blockStart = blockEnd;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the class of each column: GAP_POSITION, NONCONSERVED,
+	 * CONSERVED or HIGHLY_CONSERVED.
+	 */
+	private byte[] getColumnClasses(SequenceAlignment alignment) {
+		ColumnStatistics statistics = new ColumnStatistics(alignment);
+		int ntax = alignment.getNTax();
+		int conserved = getConservedThreshold(ntax);
+		int flank = getFlankThreshold(ntax);
+		byte[] r = new byte[statistics.getLength()];
+		for(int i = 0; i < r.length; i++) {
+			int gaps = statistics.getGapCount(i) + statistics.getMissingCount(i);
+			int maxCount = statistics.getMaximumResidueCount(i, true);
+			boolean gapPosition = false;
+			switch(b5) {
+			case GAPS_NONE:
+				gapPosition = gaps > 0;
+				break;
+			case GAPS_HALF:
+				gapPosition = gaps*2 >= ntax;
+				break;
+			}
+			if(gapPosition) {
+				r[i] = GAP_POSITION;
+			} else if(maxCount >= flank) {
+				r[i] = HIGHLY_CONSERVED;
+			} else if(maxCount >= conserved) {
+				r[i] = CONSERVED;
+			} else {
+				r[i] = NONCONSERVED;
+			}
+		}
+		return r;
+	}
+}
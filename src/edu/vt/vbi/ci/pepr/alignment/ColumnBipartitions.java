@@ -0,0 +1,304 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.vt.vbi.ci.pepr.tree.BipartitionCountTable;
+import edu.vt.vbi.ci.pepr.tree.BipartitionSet;
+import edu.vt.vbi.ci.pepr.tree.PackedBipartition;
+
+/**
+ * The Bipartitions defined by the columns of a SequenceAlignment, as
+ * PackedBipartitions. These are the same Bipartitions returned by
+ * SequenceAlignment.getBipartitionsForColumn(): each character in a
+ * column defines one side of a Bipartition, and gaps and missing data
+ * are not on any side.
+ *
+ * The Bipartitions are determined once for each distinct site pattern.
+ * Patterns are processed in parallel, in ranges of PATTERNS_PER_TASK,
+ * working directly on the pattern bytes with reused word buffers. Each
+ * distinct Bipartition is then given an integer id, and each pattern
+ * keeps only the ids of its Bipartitions. Counting Bipartitions over
+ * columns, or finding the distinct Bipartitions in a range of columns,
+ * works on the ids, so no Bipartition objects are created per column.
+ *
+ * @author enordber
+ *
+ */
+public class ColumnBipartitions {
+
+	/*
+	 * number of site patterns processed by each parallel task
+	 */
+	private static final int PATTERNS_PER_TASK = 512;
+
+	private SitePatternIndex patterns;
+	private int ntax;
+	/*
+	 * Bipartitions for each pattern, before ids are assigned
+	 */
+	private PackedBipartition[][] patternBipartitions;
+	/*
+	 * ids of the Bipartitions of each pattern
+	 */
+	private int[][] patternIds;
+	/*
+	 * the distinct Bipartitions, indexed by id. Ids are assigned in order
+	 * of first occurrence in the alignment.
+	 */
+	private PackedBipartition[] bipartitions;
+	/*
+	 * used by getDistinctSum() to mark the ids already seen. An id has
+	 * been seen in the current call if its entry equals stampValue.
+	 */
+	private int[] stamps;
+	private int stampValue;
+
+	public ColumnBipartitions(SequenceAlignment alignment) {
+		ntax = alignment.getNTax();
+		patterns = alignment.getSitePatternIndex();
+		int patternCount = patterns.getPatternCount();
+		patternBipartitions = new PackedBipartition[patternCount][];
+		PatternTask task = new PatternTask(0, patternCount);
+		if(patternCount <= PATTERNS_PER_TASK) {
+			task.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+		assignIds();
+		stamps = new int[bipartitions.length];
+	}
+
+	/**
+	 * Gives each distinct Bipartition an id, in pattern order, and
+	 * replaces the Bipartitions of each pattern with their ids.
+	 */
+	private void assignIds() {
+		BipartitionCountTable distinct = new BipartitionCountTable();
+		patternIds = new int[patternBipartitions.length][];
+		for(int i = 0; i < patternBipartitions.length; i++) {
+			PackedBipartition[] biparts = patternBipartitions[i];
+			int[] ids = new int[biparts.length];
+			for(int j = 0; j < biparts.length; j++) {
+				ids[j] = distinct.add(biparts[j], 1);
+			}
+			patternIds[i] = ids;
+		}
+		bipartitions = distinct.getBipartitions();
+		patternBipartitions = null;
+	}
+
+	/**
+	 * Returns the number of distinct Bipartitions in all columns.
+	 */
+	public int getBipartitionCount() {
+		return bipartitions.length;
+	}
+
+	public PackedBipartition getBipartition(int id) {
+		return bipartitions[id];
+	}
+
+	/**
+	 * Returns the distinct Bipartitions, indexed by id.
+	 */
+	public PackedBipartition[] getBipartitions() {
+		PackedBipartition[] r = new PackedBipartition[bipartitions.length];
+		System.arraycopy(bipartitions, 0, r, 0, r.length);
+		return r;
+	}
+
+	/**
+	 * Returns the ids of the Bipartitions for the column. This is not
+	 * a copy, and must not be modified.
+	 */
+	public int[] getBipartitionIds(int column) {
+		return patternIds[patterns.getPatternForColumn(column)];
+	}
+
+	/**
+	 * Returns the number of columns having each non-trivial Bipartition,
+	 * indexed by id, counting only columns that have no more than
+	 * maxStates Bipartitions. These are the counts of the Bipartitions
+	 * returned by SequenceAlignment.getBipartitionsForColumns().
+	 *
+	 * @param maxStates
+	 * @return
+	 */
+	public int[] getColumnCounts(int maxStates) {
+		int[] r = new int[bipartitions.length];
+		int[] patternCounts = patterns.getPatternCounts();
+		for(int i = 0; i < patternIds.length; i++) {
+			int[] ids = patternIds[i];
+			if(ids.length <= maxStates) {
+				for(int j = 0; j < ids.length; j++) {
+					if(bipartitions[ids[j]].getCardinality() > 1) {
+						r[ids[j]] += patternCounts[i];
+					}
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns a BipartitionSet with the topN most frequent non-trivial
+	 * column Bipartitions. This is the same as creating the
+	 * BipartitionSet from getBipartitionsForColumns(maxStates), without
+	 * creating an entry for each column.
+	 *
+	 * @param maxStates
+	 * @param topN
+	 * @return
+	 */
+	public BipartitionSet getBipartitionSet(int maxStates, int topN) {
+		int[] counts = getColumnCounts(maxStates);
+		int countedCount = 0;
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] > 0) {
+				countedCount++;
+			}
+		}
+		PackedBipartition[] counted = new PackedBipartition[countedCount];
+		int[] countedCounts = new int[countedCount];
+		int index = 0;
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] > 0) {
+				counted[index] = bipartitions[i];
+				countedCounts[index] = counts[i];
+				index++;
+			}
+		}
+		return new BipartitionSet(counted, countedCounts, topN);
+	}
+
+	/**
+	 * Returns the sum of values[id] over the distinct Bipartitions in
+	 * the columns from (inclusive) to to (exclusive). Each Bipartition
+	 * is counted once, however many columns it occurs in.
+	 *
+	 * @param from
+	 * @param to
+	 * @param values indexed by Bipartition id
+	 * @return
+	 */
+	public synchronized long getDistinctSum(int from, int to, int[] values) {
+		long r = 0;
+		stampValue++;
+		if(stampValue == 0) {
+			Arrays.fill(stamps, 0);
+			stampValue = 1;
+		}
+		int[] columnToPattern = patterns.getColumnToPattern();
+		for(int i = from; i < to; i++) {
+			int[] ids = patternIds[columnToPattern[i]];
+			for(int j = 0; j < ids.length; j++) {
+				if(stamps[ids[j]] != stampValue) {
+					stamps[ids[j]] = stampValue;
+					r += values[ids[j]];
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Determines the Bipartitions for a range of patterns, splitting the
+	 * range so parts are processed in parallel. Each task writes only to
+	 * the entries of its own patterns.
+	 */
+	private class PatternTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int from;
+		private int to;
+
+		PatternTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= PATTERNS_PER_TASK) {
+				int wordCount = PackedBipartition.getWordCount(ntax);
+				int[] classForByte = new int[256];
+				long[][] classWords = new long[256][wordCount];
+				long[] participating = new long[wordCount];
+				for(int i = from; i < to; i++) {
+					patternBipartitions[i] = getBipartitions(
+							patterns.getPattern(i), classForByte,
+							classWords, participating);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new PatternTask(from, middle),
+						new PatternTask(middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Returns the distinct Bipartitions for one pattern, with the same
+	 * sides and participating taxa as
+	 * SequenceAlignment.getBipartitionsForColumn().
+	 * The arrays are working space, reused between patterns.
+	 */
+	private PackedBipartition[] getBipartitions(byte[] pattern,
+			int[] classForByte, long[][] classWords, long[] participating) {
+		PackedBipartition[] r = null;
+		int first = 0;
+		while(first < pattern.length &&
+				(pattern[first] == SequenceAlignment.MISSING_CHAR ||
+						pattern[first] == SequenceAlignment.GAP_CHAR)) {
+			first++;
+		}
+		if(first >= pattern.length) {
+			return new PackedBipartition[0];
+		}
+
+		Arrays.fill(classForByte, -1);
+		Arrays.fill(participating, 0);
+		int classCount = 0;
+		for(int i = first; i < pattern.length; i++) {
+			byte b = pattern[i];
+			if(b != SequenceAlignment.GAP_CHAR &&
+					b != SequenceAlignment.MISSING_CHAR) {
+				int c = classForByte[b & 0xff];
+				if(c == -1) {
+					c = classCount;
+					classForByte[b & 0xff] = c;
+					Arrays.fill(classWords[c], 0);
+					classCount++;
+				}
+				classWords[c][i >>> 6] |= 1L << i;
+				//as in getBipartitionsForColumn(), the first residue is
+				//not included in the participating taxa
+				if(i > first) {
+					participating[i >>> 6] |= 1L << i;
+				}
+			}
+		}
+
+		r = new PackedBipartition[classCount];
+		int distinctCount = 0;
+		for(int i = 0; i < classCount; i++) {
+			PackedBipartition bipart = new PackedBipartition(classWords[i],
+					participating, pattern.length);
+			boolean duplicate = false;
+			for(int j = 0; !duplicate && j < distinctCount; j++) {
+				duplicate = r[j].equals(bipart);
+			}
+			if(!duplicate) {
+				r[distinctCount] = bipart;
+				distinctCount++;
+			}
+		}
+		if(distinctCount < classCount) {
+			PackedBipartition[] distinct = new PackedBipartition[distinctCount];
+			System.arraycopy(r, 0, distinct, 0, distinctCount);
+			r = distinct;
+		}
+		return r;
+	}
+}
@@ -0,0 +1,291 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per-column character state counts for a SequenceAlignment, for the
+ * column analyses used in trimming.
+ *
+ * Each distinct byte in the alignment is a state of its own, so
+ * characters are compared exactly, including case, as the trimmers have
+ * always compared them. The states are numbered in byte order when the
+ * alignment is read. Each column has a histogram with a count for each
+ * state, stored in one flat array. The histograms are filled in a single
+ * pass over the rows, reading each row sequentially and writing to the
+ * histograms of neighboring columns, so no column array is created.
+ * Long alignments are split into ranges of columns that are counted
+ * in parallel.
+ *
+ * @author enordber
+ *
+ */
+public class ColumnStatistics {
+
+	/*
+	 * number of columns counted by each parallel task
+	 */
+	private static final int COLUMNS_PER_TASK = 4096;
+
+	private int ntax;
+	private int length;
+	/*
+	 * state of each byte value, or -1 for bytes not in the alignment
+	 */
+	private int[] stateForByte = new int[256];
+	/*
+	 * byte value of each state
+	 */
+	private byte[] stateBytes;
+	private int stateCount;
+	private int gapState = -1;
+	private int missingState = -1;
+	/*
+	 * for each state, the first state that is the same letter ignoring
+	 * case. Used only when foldsCase is true.
+	 */
+	private int[] upperCaseState;
+	private boolean foldsCase;
+	/*
+	 * counts[column*stateCount + state]
+	 */
+	private int[] counts;
+
+	public ColumnStatistics(SequenceAlignment alignment) {
+		ntax = alignment.getNTax();
+		length = alignment.getLength();
+
+		byte[][] rows = new byte[ntax][];
+		for(int i = 0; i < ntax; i++) {
+			rows[i] = alignment.getSequenceBytes(i);
+		}
+		assignStates(rows);
+		counts = new int[length*stateCount];
+
+		ColumnCounter counter = new ColumnCounter(rows, 0, length);
+		if(length <= COLUMNS_PER_TASK) {
+			counter.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(counter);
+		}
+	}
+
+	/**
+	 * Gives a state to each byte value that occurs in the rows.
+	 */
+	private void assignStates(byte[][] rows) {
+		boolean[] present = new boolean[256];
+		for(int i = 0; i < rows.length; i++) {
+			byte[] row = rows[i];
+			int end = Math.min(length, row.length);
+			for(int j = 0; j < end; j++) {
+				present[row[j] & 0xff] = true;
+			}
+		}
+
+		Arrays.fill(stateForByte, -1);
+		stateBytes = new byte[256];
+		for(int i = 0; i < present.length; i++) {
+			if(present[i]) {
+				stateForByte[i] = stateCount;
+				stateBytes[stateCount] = (byte)i;
+				stateCount++;
+			}
+		}
+		stateBytes = Arrays.copyOf(stateBytes, stateCount);
+		gapState = stateForByte[SequenceAlignment.GAP_CHAR];
+		missingState = stateForByte[SequenceAlignment.MISSING_CHAR];
+
+		//states for the same letter in upper and lower case
+		upperCaseState = new int[stateCount];
+		int[] stateForUpperCase = new int[128];
+		Arrays.fill(stateForUpperCase, -1);
+		for(int i = 0; i < stateCount; i++) {
+			int upperCase = Character.toUpperCase((char)(stateBytes[i] & 0x7f));
+			if(stateForUpperCase[upperCase] == -1) {
+				stateForUpperCase[upperCase] = i;
+			} else {
+				foldsCase = true;
+			}
+			upperCaseState[i] = stateForUpperCase[upperCase];
+		}
+	}
+
+	/**
+	 * Returns true if the state is a residue: not a gap or missing data.
+	 */
+	private boolean isResidueState(int state) {
+		return state != gapState && state != missingState;
+	}
+
+	public int getNTax() {
+		return ntax;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getGapCount(int column) {
+		int r = 0;
+		if(gapState >= 0) {
+			r = counts[column*stateCount + gapState];
+		}
+		return r;
+	}
+
+	public int getMissingCount(int column) {
+		int r = 0;
+		if(missingState >= 0) {
+			r = counts[column*stateCount + missingState];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of characters other than gap that occur at
+	 * least minCount times in the column. Missing data is counted as a
+	 * character only if includeMissing is true.
+	 *
+	 * @param column
+	 * @param minCount
+	 * @param includeMissing
+	 * @return
+	 */
+	public int getStateCount(int column, int minCount, boolean includeMissing) {
+		int r = 0;
+		int offset = column*stateCount;
+		minCount = Math.max(1, minCount);
+		for(int i = 0; i < stateCount; i++) {
+			if(counts[offset + i] >= minCount && i != gapState &&
+					(includeMissing || i != missingState)) {
+				r++;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of sequences having the most common residue
+	 * in the column. Gaps and missing data are not residues. If ignoreCase
+	 * is true, the upper and lower case of a letter are counted as the
+	 * same residue.
+	 *
+	 * @param column
+	 * @param ignoreCase
+	 * @return
+	 */
+	public int getMaximumResidueCount(int column, boolean ignoreCase) {
+		int r = 0;
+		int offset = column*stateCount;
+		if(ignoreCase && foldsCase) {
+			for(int i = 0; i < stateCount; i++) {
+				if(upperCaseState[i] == i && isResidueState(i)) {
+					int count = 0;
+					for(int j = i; j < stateCount; j++) {
+						if(upperCaseState[j] == i) {
+							count += counts[offset + j];
+						}
+					}
+					if(count > r) {
+						r = count;
+					}
+				}
+			}
+		} else {
+			for(int i = 0; i < stateCount; i++) {
+				if(counts[offset + i] > r && isResidueState(i)) {
+					r = counts[offset + i];
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the character class of each sequence in the column, as
+	 * used by SequenceAlignment.getCharacterClassAssignmentsForColumn().
+	 * Sequences with the same character have the same class. Classes are
+	 * bit flags, assigned in ascending order of first occurrence, starting
+	 * with the first character that is not a gap or missing. Missing data
+	 * is class 0, as are gaps if the column has a gap before its first
+	 * residue. Otherwise gaps are a class of their own. Characters are
+	 * compared exactly, including case. A column with no residues is all 0.
+	 *
+	 * @param column
+	 * @param dest reused if it is the same length as column
+	 * @return
+	 */
+	public static int[] getCharacterClasses(byte[] column, int[] dest) {
+		int length = column.length;
+		if(dest == null || dest.length != length) {
+			dest = new int[length];
+		} else {
+			Arrays.fill(dest, 0);
+		}
+		//class for each byte value. -1 means no class has been assigned
+		int[] classForByte = new int[256];
+		Arrays.fill(classForByte, -1);
+
+		int first = 0;
+		while(first < length && (column[first] == SequenceAlignment.MISSING_CHAR ||
+				column[first] == SequenceAlignment.GAP_CHAR)) {
+			if(column[first] == SequenceAlignment.GAP_CHAR) {
+				classForByte[SequenceAlignment.GAP_CHAR] = 0;
+			}
+			first++;
+		}
+		if(first < length) {
+			int nextClass = 1;
+			for(int i = first; i < length; i++) {
+				if(column[i] != SequenceAlignment.MISSING_CHAR) {
+					int b = column[i] & 0xff;
+					if(classForByte[b] == -1) {
+						classForByte[b] = nextClass;
+						nextClass <<= 1;
+					}
+					dest[i] = classForByte[b];
+				}
+			}
+		}
+		return dest;
+	}
+
+	/**
+	 * Counts the states for a range of columns, splitting the range so
+	 * parts are counted in parallel. Each task writes only to the
+	 * histograms of its own columns.
+	 */
+	private class ColumnCounter extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private byte[][] rows;
+		private int from;
+		private int to;
+
+		ColumnCounter(byte[][] rows, int from, int to) {
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= COLUMNS_PER_TASK) {
+				for(int i = 0; i < rows.length; i++) {
+					byte[] row = rows[i];
+					int end = Math.min(to, row.length);
+					int offset = from*stateCount;
+					for(int j = from; j < end; j++) {
+						counts[offset + stateForByte[row[j] & 0xff]]++;
+						offset += stateCount;
+					}
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new ColumnCounter(rows, from, middle),
+						new ColumnCounter(rows, middle, to));
+			}
+		}
+	}
+}
@@ -1,7 +1,13 @@
 package edu.vt.vbi.ci.pepr.alignment;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import edu.vt.vbi.ci.pepr.stats.StatisticsUtilities;
 import edu.vt.vbi.ci.pepr.tree.Bipartition;
@@ -13,6 +19,14 @@ import edu.vt.vbi.ci.pepr.tree.BipartitionSet;
  * SequenceAlignments and where each of them starts and stops in 
  * the concatenated version.
  * 
+ * A ConcatenatedSequenceAlignment may be a view, which holds only the 
+ * original SequenceAlignments and the sequence used for each row from 
+ * each of them. Residues, columns, rows and the streaming writers are 
+ * served by looking up the alignment for a column, so a view costs 
+ * almost nothing until it is written out. A view is copied into a 
+ * normal alignment matrix by materialize(), which is done automatically 
+ * if the view is modified.
+ * 
  * @author enordber
  *
  */
@@ -25,6 +39,22 @@ public class ConcatenatedSequenceAlignment extends SequenceAlignment {
 	private int[] stepsBeyondMinimum;
 	private float[] stepsToMinimumRatios;
 
+	/*
+	 * number of alignments copied by each parallel task in materialize()
+	 */
+	private static final int ALIGNMENTS_PER_TASK = 16;
+
+	/*
+	 * for each alignment, the index of the sequence used for each row,
+	 * or -1 if the taxon of the row is not in the alignment
+	 */
+	private int[][] sequenceForRow;
+	/*
+	 * true if rows are looked up in the alignments, rather than
+	 * stored in this alignment
+	 */
+	private boolean view;
+
 	void setSequenceAlignments(SequenceAlignment[] sa) {
 		alignments = new SequenceAlignment[sa.length];
 		System.arraycopy(sa, 0, alignments, 0, sa.length);
@@ -40,6 +70,329 @@ public class ConcatenatedSequenceAlignment extends SequenceAlignment {
 		}
 	}
 
+	/**
+	 * Sets the sequence of each alignment used for each row, and makes
+	 * this alignment a view of the alignments. The titles and taxa for 
+	 * the rows must also be set.
+	 * 
+	 * @param sequenceForRow for each alignment, the index of the sequence
+	 *                       for each row, or -1 if the row's taxon is not
+	 *                       in the alignment
+	 */
+	void setSequenceForRow(int[][] sequenceForRow) {
+		this.sequenceForRow = sequenceForRow;
+		view = true;
+	}
+
+	/**
+	 * Returns true if this alignment is a view of the concatenated 
+	 * alignments, with no rows of its own.
+	 */
+	public boolean isView() {
+		return view;
+	}
+
+	/**
+	 * Copies the rows of a view into a new alignment matrix, so it is
+	 * no longer a view. Alignments are copied into their blocks of 
+	 * columns in parallel. This does nothing if this is not a view.
+	 */
+	public synchronized void materialize() {
+		if(view) {
+			byte[][] rows = new byte[getNTax()][getLength()];
+			BlockFiller filler = new BlockFiller(rows, 0, alignments.length);
+			if(alignments.length <= ALIGNMENTS_PER_TASK) {
+				filler.compute();
+			} else {
+				ForkJoinPool.commonPool().invoke(filler);
+			}
+			setAlignedSequenceBytes(rows);
+		}
+	}
+
+	void setAlignedSequenceBytes(byte[][] alignedSequences) {
+		view = false;
+		super.setAlignedSequenceBytes(alignedSequences);
+	}
+
+	protected void setAlignedSequences(char[][] alignedSequences) {
+		view = false;
+		super.setAlignedSequences(alignedSequences);
+	}
+
+	public void addSequence(String sequence, String title) {
+		materialize();
+		super.addSequence(sequence, title);
+	}
+
+	public void removeSequence(int index) {
+		materialize();
+		super.removeSequence(index);
+	}
+
+	public int getNTax() {
+		int r = 0;
+		if(view) {
+			r = getSequenceTitles().length;
+		} else {
+			r = super.getNTax();
+		}
+		return r;
+	}
+
+	public int getLength() {
+		int r = 0;
+		if(view) {
+			if(startStops.length > 0) {
+				r = startStops[startStops.length-1][1];
+			}
+		} else {
+			r = super.getLength();
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the index of the alignment providing the given column
+	 * of the concatenated alignment.
+	 */
+	private int getAlignmentIndexForColumn(int pos) {
+		int low = 0;
+		int high = startStops.length - 1;
+		while(low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if(startStops[middle][0] <= pos) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the residue of the row at the given offset within
+	 * the specified alignment.
+	 */
+	private byte getAlignmentByte(int alignmentIndex, int row, int offset) {
+		byte r = (byte)MISSING_CHAR;
+		int sequence = sequenceForRow[alignmentIndex][row];
+		if(sequence >= alignments[alignmentIndex].getNTax()) {
+			r = (byte)GAP_CHAR;
+		} else if(sequence >= 0) {
+			byte[] sequenceBytes = 
+				alignments[alignmentIndex].getSequenceBytes(sequence);
+			r = offset < sequenceBytes.length ? 
+					sequenceBytes[offset] : (byte)GAP_CHAR;
+		}
+		return r;
+	}
+
+	public byte getByte(int seq, int pos) {
+		byte r = 0;
+		if(view) {
+			int alignmentIndex = getAlignmentIndexForColumn(pos);
+			r = getAlignmentByte(alignmentIndex, seq, 
+					pos - startStops[alignmentIndex][0]);
+		} else {
+			r = super.getByte(seq, pos);
+		}
+		return r;
+	}
+
+	public char getChar(int seq, int pos) {
+		char r = 0;
+		if(view) {
+			r = (char)(getByte(seq, pos) & 0xff);
+		} else {
+			r = super.getChar(seq, pos);
+		}
+		return r;
+	}
+
+	public char[] getColumn(int columnIndex) {
+		char[] r = null;
+		if(view) {
+			if(columnIndex > -1 && columnIndex < getLength()) {
+				byte[] column = getColumnBytes(columnIndex, null);
+				r = new char[getNTax()];
+				for(int i = 0; i < r.length; i++) {
+					r[i] = (char)(column[i] & 0xff);
+				}
+			}
+		} else {
+			r = super.getColumn(columnIndex);
+		}
+		return r;
+	}
+
+	public byte[] getColumnBytes(int columnIndex, byte[] dest) {
+		if(view) {
+			int ntax = getNTax();
+			if(dest == null || dest.length < ntax) {
+				dest = new byte[ntax];
+			}
+			int alignmentIndex = getAlignmentIndexForColumn(columnIndex);
+			int offset = columnIndex - startStops[alignmentIndex][0];
+			for(int i = 0; i < ntax; i++) {
+				dest[i] = getAlignmentByte(alignmentIndex, i, offset);
+			}
+		} else {
+			dest = super.getColumnBytes(columnIndex, dest);
+		}
+		return dest;
+	}
+
+	/**
+	 * Returns the row for the sequence at the given index. For a view,
+	 * the row is built on each call.
+	 */
+	byte[] getSequenceBytes(int index) {
+		byte[] r = null;
+		if(view) {
+			r = new byte[getLength()];
+			for(int i = 0; i < alignments.length; i++) {
+				fillRowBlock(i, index, r);
+			}
+		} else {
+			r = super.getSequenceBytes(index);
+		}
+		return r;
+	}
+
+	/**
+	 * For a view, writes the row as the block from each alignment, 
+	 * without building the row.
+	 */
+	void putSequenceBytes(int index, ByteBuffer buffer,
+			WritableByteChannel channel) throws IOException {
+		if(view) {
+			for(int i = 0; i < alignments.length; i++) {
+				int blockLength = startStops[i][1] - startStops[i][0];
+				int sequence = sequenceForRow[i][index];
+				if(sequence >= alignments[i].getNTax()) {
+					putRepeatedByte((byte)GAP_CHAR, blockLength, buffer, channel);
+				} else if(sequence >= 0) {
+					byte[] sequenceBytes = alignments[i].getSequenceBytes(sequence);
+					int length = Math.min(sequenceBytes.length, blockLength);
+					putBytes(sequenceBytes, 0, length, buffer, channel);
+					putRepeatedByte((byte)GAP_CHAR, blockLength - length, 
+							buffer, channel);
+				} else {
+					putRepeatedByte((byte)MISSING_CHAR, blockLength, 
+							buffer, channel);
+				}
+			}
+		} else {
+			super.putSequenceBytes(index, buffer, channel);
+		}
+	}
+
+	public String getSequenceString(int index) {
+		String r = null;
+		if(view) {
+			if(index < getNTax()) {
+				r = new String(getSequenceBytes(index), 
+						StandardCharsets.ISO_8859_1);
+			} else {
+				System.out.println("ConcatenatedSequenceAlignment." +
+						"getSequenceString() requested sequence at index " + 
+						index + ", but this alignment only has " + getNTax() + 
+						" aligned sequences.");
+			}
+		} else {
+			r = super.getSequenceString(index);
+		}
+		return r;
+	}
+
+	/**
+	 * Copies the block of the specified alignment into the row. If the
+	 * row's taxon is not present in the alignment, the block is filled 
+	 * with MISSING_CHAR.
+	 */
+	private void fillRowBlock(int alignmentIndex, int row, byte[] dest) {
+		SequenceAlignment alignment = alignments[alignmentIndex];
+		int start = startStops[alignmentIndex][0];
+		int stop = startStops[alignmentIndex][1];
+		int ntax = alignment.getNTax();
+		int sequence = sequenceForRow[alignmentIndex][row];
+		if(sequence >= ntax) {
+			System.out.println("Problem with alignment " + 
+					alignmentIndex + " for taxon " + row + 
+					". index in alignment is " + sequence + 
+					", but the alignment only has " + ntax + 
+					" sequences. Filling with gaps.");
+			Arrays.fill(dest, start, stop, (byte)GAP_CHAR);
+		} else if(sequence >= 0) {
+			byte[] sequenceBytes = alignment.getSequenceBytes(sequence);
+			int length = Math.min(sequenceBytes.length, stop - start);
+			System.arraycopy(sequenceBytes, 0, dest, start, length);
+			if(start + length < stop) {
+				Arrays.fill(dest, start + length, stop, (byte)GAP_CHAR);
+			}
+		} else {
+			//this taxon is not present in this alignment. Pad this 
+			//region of the alignment with "missing" characters ('?')
+			Arrays.fill(dest, start, stop, (byte)MISSING_CHAR);
+		}
+	}
+
+	/**
+	 * Copies a range of alignments into their blocks of columns in the 
+	 * rows, splitting the range so blocks are copied in parallel.
+	 */
+	private class BlockFiller extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private byte[][] rows;
+		private int from;
+		private int to;
+
+		BlockFiller(byte[][] rows, int from, int to) {
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= ALIGNMENTS_PER_TASK) {
+				for(int i = from; i < to; i++) {
+					for(int j = 0; j < rows.length; j++) {
+						fillRowBlock(i, j, rows[j]);
+					}
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new BlockFiller(rows, from, middle),
+						new BlockFiller(rows, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of alignments that were concatenated.
+	 */
+	public int getAlignmentCount() {
+		return startStops.length;
+	}
+
+	/**
+	 * Returns the first column (inclusive) of the specified alignment
+	 * in the concatenated alignment.
+	 */
+	public int getAlignmentStart(int alignmentIndex) {
+		return startStops[alignmentIndex][0];
+	}
+
+	/**
+	 * Returns the last column (exclusive) of the specified alignment
+	 * in the concatenated alignment.
+	 */
+	public int getAlignmentStop(int alignmentIndex) {
+		return startStops[alignmentIndex][1];
+	}
+
 	public Bipartition[] getBipartitionsForAlignment(int alignmentIndex) {
 		Bipartition[] r = null;
 		//		System.out.println(">ConcatenatedSequenceAlignment.getBipartitionsForAlignment() "
@@ -3,6 +3,7 @@ package edu.vt.vbi.ci.pepr.alignment;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import edu.vt.vbi.ci.util.file.TextFile;
@@ -72,12 +73,29 @@ public class MSAConcatenator {
 	}
 
 	/**
+	 * Returns the concatenation of the alignments, with its own copy
+	 * of the concatenated rows.
+	 * 
 	 * @param alignments
 	 * @return
 	 */
 	public static ConcatenatedSequenceAlignment concatenate(SequenceAlignment[] alignments) {
+		ConcatenatedSequenceAlignment r = concatenateView(alignments);
+		r.materialize();
+		return r;
+	}
+
+	/**
+	 * Returns the concatenation of the alignments as a view, which looks
+	 * up residues in the alignments instead of copying them. The 
+	 * alignments must not be modified while the view is in use. 
+	 * 
+	 * @param alignments
+	 * @return
+	 */
+	public static ConcatenatedSequenceAlignment concatenateView(SequenceAlignment[] alignments) {
 		if(debug) {
-			System.out.println("MSAConcatenator.concatenate() alignments: " 
+			System.out.println("MSAConcatenator.concatenateView() alignments: " 
 					+ alignments.length);
 		}
 		
@@ -104,7 +122,7 @@ public class MSAConcatenator {
 			for(int j = 0; j < taxa.length; j++) {
 				taxonUnionSet.add(taxa[j]);
 				if(debug) {
-					System.out.println("MSAConcatenator.concatenate() adding to taxonUnionSet: "
+					System.out.println("MSAConcatenator.concatenateView() adding to taxonUnionSet: "
 							+ taxa[j]);
 				}
 			}
@@ -119,60 +137,30 @@ public class MSAConcatenator {
 		taxonUnionSet.toArray(taxonUnion);
 		Arrays.sort(taxonUnion);
 
-		//determine length of the concatenated alignment
-		int concatenatedLength = 0;
-		for(int i = 0; i < alignments.length; i++) {
-			concatenatedLength += alignments[i].getLength();
+		//row of each taxon in the concatenated alignment
+		HashMap<String,Integer> taxonToRow = new HashMap<String,Integer>(taxonUnion.length*2);
+		for(int i = 0; i < taxonUnion.length; i++) {
+			taxonToRow.put(taxonUnion[i], Integer.valueOf(i));
 		}
 
-		//for each taxon in the union, create a concatenated sequence
-		for(int i = 0; i < taxonUnion.length; i++) {
-			StringBuffer sb = new StringBuffer();
-			for(int j = 0; j < alignments.length; j++) {
-				int taxonIndex = alignments[j].getTaxonIndex(taxonUnion[i]);
-				if(debug) {
-					System.out.println("MSAConcatenator.concatenate() add sequence for taxon: "
-							+ taxonUnion[i]);
-				}
-				if(taxonIndex >= 0) {
-					String taxonSequence = 
-						alignments[j].getSequenceString(taxonIndex);
-					if(taxonSequence != null) {
-						sb.append(taxonSequence);
-					} else {
-						System.out.println("Problem with alignment " + j + 
-								" for taxon " + i + 
-								" '" + taxonUnion[i] + "'. index in alignment is "
-								+ taxonIndex + 
-						" . here are the taxa: " );
-						String[] alignmentTaxa = alignments[j].getTaxa();
-						for(int k = 0; k < alignmentTaxa.length; k++) {
-							System.out.println("" + k + ": " 
-									+ alignmentTaxa[k]);
-						}
-						System.out.println("here are the titles: ");
-						String[] titles = alignments[j].getSequenceTitles();
-						for(int k = 0; k < titles.length; k++) {
-							System.out.println("" + k + ": " 
-									+ titles[k]);
-						}
-						
-						System.out.println("here is the alignment:");
-						String phylipAlignment = alignments[j].getAlignmentAsExtendedPhylipUsingSequenceNames();
-						System.out.println(phylipAlignment);
-					}
-				} else {
-					//this taxon is not present in this alignment. Pad this 
-					//region of the alignment with "missing" characters ('?')
-					char[] gaps = new char[alignments[j].getLength()];
-					Arrays.fill(gaps, SequenceAlignment.MISSING_CHAR);
-					sb.append(gaps);
+		//for each alignment, the index of the sequence for each row of the
+		//concatenated alignment, or -1 if the taxon is not in the alignment.
+		//Taxa are visited last to first, so the first sequence for a taxon 
+		//is used if there is more than one, as getTaxonIndex() would do
+		int[][] sequenceForRow = new int[alignments.length][taxonUnion.length];
+		for(int i = 0; i < alignments.length; i++) {
+			Arrays.fill(sequenceForRow[i], -1);
+			String[] taxa = alignments[i].getTaxa();
+			for(int j = taxa.length-1; j >= 0; j--) {
+				Integer row = taxonToRow.get(taxa[j]);
+				if(row != null) {
+					sequenceForRow[i][row.intValue()] = j;
 				}
 			}
-
-			//add each concatenated sequence to the concatenated alignment
-			r.addSequence(sb.toString(), taxonUnion[i]);
 		}
+
+		r.setSequenceForRow(sequenceForRow);
+		r.setTitles(taxonUnion);
 		r.setTaxa(taxonUnion);
 		StringBuffer alignmentName =new StringBuffer("cat");
 		for(int i = 0; i < alignments.length; i++) {
@@ -187,4 +175,4 @@ public class MSAConcatenator {
 		r.setName(name);
 		return r;
 	}
-}
\ No newline at end of file
+}
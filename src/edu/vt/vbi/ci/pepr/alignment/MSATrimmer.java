@@ -3,8 +3,6 @@ package edu.vt.vbi.ci.pepr.alignment;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
 
 import edu.vt.vbi.ci.util.ExecUtilities;
 import edu.vt.vbi.ci.util.HandyConstants;
@@ -26,6 +24,11 @@ public class MSATrimmer {
 
 	private File workingDir;
 	private boolean keepFiles = false;
+	/*
+	 * if true, trim() runs the Gblocks program. Otherwise the same
+	 * selection is done in-process by a BlockTrimmer
+	 */
+	private boolean useGblocksProgram = false;
 
 	public MSATrimmer() {
 		//check for debug System property
@@ -35,18 +38,63 @@ public class MSATrimmer {
 		}
 	}
 	/**
+	 * Trims the alignment to its conserved blocks, using the Gblocks 
+	 * settings -b1 (portionOfSequencesForConservedSite of the sequences),
+	 * -b3=8 and -b5=h. Returns null if nothing is left.
+	 * 
 	 * @param alignment
 	 * @return
 	 */
 	public SequenceAlignment trim(SequenceAlignment alignment) {
 		SequenceAlignment r = null;
 
-		try {
-			r = trimWithGBlocks(alignment);
-			r.setName(alignment.getName() + "_trim");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
+		if(useGblocksProgram) {
+			try {
+				r = trimWithGBlocks(alignment);
+				r.setName(alignment.getName() + "_trim");
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				//			e.printStackTrace();
+			}
+		} else {
+			r = getBlockTrimmer(alignment.getNTax()).trim(alignment);
+			if(r != null) {
+				r.setName(alignment.getName() + "_trim");
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns a BlockTrimmer with the settings trimWithGBlocks()
+	 * passes to Gblocks.
+	 */
+	private BlockTrimmer getBlockTrimmer(int ntax) {
+		BlockTrimmer r = new BlockTrimmer();
+		r.setMinimumConservedSequences(
+				(int)Math.ceil(ntax * portionOfSequencesForConservedSite));
+		r.setMaximumNonconservedStretch(8);
+		r.setAllowedGapPositions(BlockTrimmer.GAPS_HALF);
+		return r;
+	}
+
+	/**
+	 * Sets whether trim() runs the Gblocks program, rather than 
+	 * selecting the blocks in-process. The default is false.
+	 */
+	public void setUseGblocksProgram(boolean use) {
+		useGblocksProgram = use;
+	}
+
+	/**
+	 * Returns a description of the trim() settings, for identifying
+	 * alignments trimmed with the same settings.
+	 */
+	public String getParameterString() {
+		String r = "gblocks b1=" + portionOfSequencesForConservedSite + 
+		" b3=8 b5=h";
+		if(!useGblocksProgram) {
+			r = "in-process " + r;
 		}
 		return r;
 	}
@@ -140,114 +188,58 @@ public class MSATrimmer {
 	 */
 	public SequenceAlignment trimUniformativeColumns(SequenceAlignment alignment) {
 		SequenceAlignment r = null;
-		int length = alignment.getLength();
-
-		int uniformCount = 0;
+		ColumnStatistics statistics = new ColumnStatistics(alignment);
+		boolean[] variable = new boolean[statistics.getLength()];
 		int variableCount = 0;
-
-		//store variable columns, to be used below to create the trimmed
-		//alignment. There may be a better default length for this 
-		//ArrayList: maybe assume some percentage of variable columns?
-		ArrayList variableColumns = new ArrayList(length);
-
-		for(int i = 0; i < length; i++) {
-			char[] column = alignment.getColumn(i);
-
-			//find the first non-gap character
-			int j = 0;
-			while(j < column.length && column[j] == SequenceAlignment.GAP_CHAR) {
-				j++;
-			}
-
-			boolean uniform = true;
-
-			if(j < column.length) {
-				char firstChar = column[j];
-				j++;
-				for(; j < column.length && uniform; j++) {
-					uniform = column[j] == firstChar ||
-					column[j] == SequenceAlignment.GAP_CHAR;
-				}
-			}
-
-
-			if(uniform) {
-				uniformCount++;
-			} else {
+		for(int i = 0; i < variable.length; i++) {
+			//missing data counts as a character here
+			variable[i] = statistics.getStateCount(i, 1, true) > 1;
+			if(variable[i]) {
 				variableCount++;
-				variableColumns.add(column);
 			}
 		}
 
-		//create char[][] for trimmed alignment. This requires swapping
-		//the dimensions of the stored variable column arrays
-		char[][] trimmedMatrix = 
-			new char[alignment.getNTax()][variableColumns.size()];
-
-		char[][] variableColumnArrays = new char[variableColumns.size()][];
-		variableColumns.toArray(variableColumnArrays);
-
-		for(int i = 0; i < trimmedMatrix.length; i++) {
-			for(int j = 0; j < trimmedMatrix[i].length; j++) {
-				trimmedMatrix[i][j] = variableColumnArrays[j][i];
-			}
-		}
-		r = new SequenceAlignment(trimmedMatrix, 
-				alignment.getSequenceTitles(), alignment.getTaxa());
+		r = alignment.copyColumns(variable);
 		r.setName(alignment.getName()+"_ui");
 		if(debug) {
-			System.out.println("MSATrimmer uniform: " + uniformCount + 
-					" variable: " + variableColumns.size());
+			System.out.println("MSATrimmer uniform: " + 
+					(variable.length - variableCount) + 
+					" variable: " + variableCount);
 		}
 		return r;
 	}
 
+	/**
+	 * Create a new SequenceAlignment without the uniform columns of the
+	 * original alignment: columns with a minimum of 0 steps per site. These
+	 * are columns with no more than one character other than gaps and
+	 * missing data, and columns with two characters and no gaps or missing
+	 * data, as the two characters then give a single Bipartition.
+	 * 
+	 * @param alignment
+	 * @return
+	 */
 	public SequenceAlignment trimUniformColumns(SequenceAlignment alignment) {
 		SequenceAlignment r = null;
-		int length = alignment.getLength();
-
-		int uniformCount = 0;
+		ColumnStatistics statistics = new ColumnStatistics(alignment);
+		boolean[] variable = new boolean[statistics.getLength()];
 		int variableCount = 0;
-
-		//store variable columns, to be used below to create the trimmed
-		//alignment. There may be a better default length for this 
-		//ArrayList: maybe assume some percentage of variable columns?
-		ArrayList variableColumns = new ArrayList(length);
-
-		int[] steps = alignment.getMinimumStepsPerSite();
-
-		for(int i = 0; i < length; i++) {
-
-			boolean uniform = steps[i] == 0;
-
-			if(uniform) {
-				uniformCount++;
-			} else {
+		for(int i = 0; i < variable.length; i++) {
+			int residueStates = statistics.getStateCount(i, 1, false);
+			int unknown = statistics.getGapCount(i) + 
+				statistics.getMissingCount(i);
+			variable[i] = residueStates > 2 || (residueStates == 2 && unknown > 0);
+			if(variable[i]) {
 				variableCount++;
-				char[] column = alignment.getColumn(i);				
-				variableColumns.add(column);
 			}
 		}
 
-		//create char[][] for trimmed alignment. This requires swapping
-		//the dimensions of the stored variable column arrays
-		char[][] trimmedMatrix = 
-			new char[alignment.getNTax()][variableColumns.size()];
-
-		char[][] variableColumnArrays = new char[variableColumns.size()][];
-		variableColumns.toArray(variableColumnArrays);
-
-		for(int i = 0; i < trimmedMatrix.length; i++) {
-			for(int j = 0; j < trimmedMatrix[i].length; j++) {
-				trimmedMatrix[i][j] = variableColumnArrays[j][i];
-			}
-		}
-		r = new SequenceAlignment(trimmedMatrix, 
-				alignment.getSequenceTitles(), alignment.getTaxa());
+		r = alignment.copyColumns(variable);
 		r.setName(alignment.getName()+"_ui");
 		if(debug) {
-			System.out.println("MSATrimmer uniform: " + uniformCount + 
-					" variable: " + variableColumns.size());
+			System.out.println("MSATrimmer uniform: " + 
+					(variable.length - variableCount) + 
+					" variable: " + variableCount);
 		}
 		return r;
 	}
@@ -256,7 +248,9 @@ public class MSATrimmer {
 	 * Topologically uninformative columns include columns with
 	 * only one character, columns with only one character other
 	 * than gaps, and columns with two characters other than gaps
-	 * where one of the characters occurs only once.
+	 * where one of the characters occurs only once. A column is kept
+	 * if at least two characters other than gaps each occur at least
+	 * twice.
 	 *  
 	 * @param alignment
 	 * @return
@@ -264,88 +258,21 @@ public class MSATrimmer {
 	public SequenceAlignment trimTopologicallyUninformativeColumns(
 			SequenceAlignment alignment) {
 		SequenceAlignment r = null;
-		int length = alignment.getLength();
-
-		int uninformativeCount = 0;
+		ColumnStatistics statistics = new ColumnStatistics(alignment);
+		boolean[] informative = new boolean[statistics.getLength()];
 		int informativeCount = 0;
-
-		//store variable columns, to be used below to create the trimmed
-		//alignment. There may be a better default length for this 
-		//ArrayList: maybe assume some percentage of variable columns?
-		ArrayList informatieColumns = new ArrayList(length);
-
-		for(int i = 0; i < length; i++) {
-			char[] column = alignment.getColumn(i);
-
-			//find the first non-gap character
-			int j = 0;
-			while(j < column.length && column[j] == SequenceAlignment.GAP_CHAR) {
-				j++;
-			}
-
-			boolean uniform = true;
-
-			if(j < column.length) {
-				char firstChar = column[j];
-				j++;
-				for(; j < column.length && uniform; j++) {
-					uniform = column[j] == firstChar ||
-					column[j] == SequenceAlignment.GAP_CHAR;
-				}
-
-				if(uniform) {
-					uninformativeCount++;
-				} else {
-					//the column is non-uniform. To be kept, there must be 
-					//at least two characters that each occur at least two times
-					HashSet multipleClassCharacters = new HashSet();
-					int[] counts = new int[column.length];
-					for(j = 0; j < column.length; j++) {
-						if(column[j] != SequenceAlignment.GAP_CHAR) {
-							for(int k = 0; k < column.length; k++) {
-								if(column[j] == column[k]) {
-									counts[j]++;
-									if(counts[j] > 1) {
-										multipleClassCharacters
-										.add(new Character(column[j]));
-										k = column.length;
-										if(multipleClassCharacters.size() ==2) {
-											informativeCount++;
-											informatieColumns.add(column);
-											j = column.length;
-										}
-									} else if(k == (column.length-1)) {
-										//this is the last item in the column, 
-										//and it has not been found to be 
-										//informative, so count it as uninformative
-										uninformativeCount++;
-									}
-								}
-							}
-						}
-					}
-				}
+		for(int i = 0; i < informative.length; i++) {
+			informative[i] = statistics.getStateCount(i, 2, true) >= 2;
+			if(informative[i]) {
+				informativeCount++;
 			}
 		}
 
-		//create char[][] for trimmed alignment. This requires swapping
-		//the dimensions of the stored variable column arrays
-		char[][] trimmedMatrix = 
-			new char[alignment.getNTax()][informatieColumns.size()];
-
-		char[][] variableColumnArrays = new char[informatieColumns.size()][];
-		informatieColumns.toArray(variableColumnArrays);
-
-		for(int i = 0; i < trimmedMatrix.length; i++) {
-			for(int j = 0; j < trimmedMatrix[i].length; j++) {
-				trimmedMatrix[i][j] = variableColumnArrays[j][i];
-			}
-		}
-		r = new SequenceAlignment(trimmedMatrix, 
-				alignment.getSequenceTitles(), alignment.getTaxa());
+		r = alignment.copyColumns(informative);
 		if(debug) {
-			System.out.println("MSATrimmer uninformative: " + uninformativeCount + 
-					" informative: " + informatieColumns.size());
+			System.out.println("MSATrimmer uninformative: " + 
+					(informative.length - informativeCount) + 
+					" informative: " + informativeCount);
 		}
 		return r;
 	}
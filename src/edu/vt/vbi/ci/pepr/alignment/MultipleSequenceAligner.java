@@ -230,6 +230,14 @@ public class MultipleSequenceAligner {
 		return sb.toString();
 	}
 
+	/**
+	 * Returns a description of the aligner and its options, for
+	 * identifying alignments made with the same settings.
+	 */
+	public String getParameterString() {
+		return "muscle " + muscleHostMusclePath + " " + getMuscleOptionString();
+	}
+
 	public static SequenceAlignment getMSA(String fastaSequence) {
 		SequenceAlignment r = null;
 		return r;
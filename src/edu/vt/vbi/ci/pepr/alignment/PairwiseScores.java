@@ -0,0 +1,288 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The pairwise similarity scores of the sequences in a SequenceAlignment,
+ * as returned by SequenceAlignment.getPairwiseScores(). The score for a
+ * pair of sequences is -1 plus the sum over positions of the score
+ * matrix value for the two residues.
+ *
+ * Each row is converted once to one byte per residue, using the codes
+ * of AlignmentUtilities.convertAminaAcidSequenceToInts(). Characters
+ * that have no code are dropped, as that method does. The scores for
+ * pairs i <= j are kept in one triangular array. The triangle is divided
+ * into tiles of TILE_SIZE by TILE_SIZE pairs, and tiles are scored in
+ * parallel. Within a tile the positions are taken in blocks, so the
+ * rows of a tile stay in cache while they are compared.
+ *
+ * If the score matrix is not symmetrical, or the rows do not all have the
+ * same number of coded residues, the score for i > j may not be the same
+ * as for j > i, and the scores for i > j are kept in a second array.
+ *
+ * @author enordber
+ *
+ */
+public class PairwiseScores {
+
+	/*
+	 * number of sequences on each side of a tile
+	 */
+	private static final int TILE_SIZE = 32;
+
+	/*
+	 * number of tiles scored by each parallel task
+	 */
+	private static final int TILES_PER_TASK = 4;
+
+	/*
+	 * number of positions compared at a time within a tile
+	 */
+	private static final int BLOCK_LENGTH = 4096;
+
+	/*
+	 * residue code for each byte value, or -1 for bytes that are
+	 * dropped
+	 */
+	private static final int[] CODE_FOR_BYTE = new int[256];
+	static {
+		for(int i = 0; i < 256; i++) {
+			String residue = new String(new byte[]{(byte)i},
+					StandardCharsets.ISO_8859_1);
+			int[] code =
+				AlignmentUtilities.convertAminaAcidSequenceToInts(residue);
+			CODE_FOR_BYTE[i] = code.length == 1 ? code[0] : -1;
+		}
+	}
+
+	private int ntax;
+	/*
+	 * coded residues of each row
+	 */
+	private byte[][] codes;
+	/*
+	 * score matrix, scores[code1*scoreSize + code2]
+	 */
+	private int[] scores;
+	private int scoreSize;
+	/*
+	 * score for i <= j is in upper[rowStarts[j] + i]
+	 */
+	private double[] upper;
+	/*
+	 * score for i > j is in lower[rowStarts[i] - i + j]. This is null if 
+	 * the scores are symmetrical.
+	 */
+	private double[] lower;
+	/*
+	 * j*(j+1)/2 for each row j
+	 */
+	private int[] rowStarts;
+
+	public PairwiseScores(SequenceAlignment alignment, int[][] scoreMatrix) {
+		ntax = alignment.getNTax();
+		codes = new byte[ntax][];
+		for(int i = 0; i < ntax; i++) {
+			codes[i] = getCodes(alignment.getSequenceBytes(i));
+		}
+		scoreSize = scoreMatrix.length;
+		scores = new int[scoreSize*scoreSize];
+		boolean symmetrical = true;
+		for(int i = 0; i < scoreSize; i++) {
+			for(int j = 0; j < scoreSize; j++) {
+				scores[i*scoreSize + j] = scoreMatrix[i][j];
+				symmetrical = symmetrical &&
+				scoreMatrix[i][j] == scoreMatrix[j][i];
+			}
+		}
+		for(int i = 1; i < ntax; i++) {
+			symmetrical = symmetrical && codes[i].length == codes[0].length;
+		}
+
+		long pairCount = (long)ntax*(ntax+1)/2;
+		if(pairCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many sequences for " +
+					"PairwiseScores: " + ntax);
+		}
+		upper = new double[(int)pairCount];
+		rowStarts = new int[ntax];
+		for(int i = 0; i < ntax; i++) {
+			rowStarts[i] = (int)((long)i*(i+1)/2);
+		}
+		if(!symmetrical) {
+			lower = new double[(int)(pairCount - ntax)];
+		}
+
+		int tilesPerSide = (ntax + TILE_SIZE - 1) / TILE_SIZE;
+		int tileCount = tilesPerSide*(tilesPerSide+1)/2;
+		TileTask task = new TileTask(0, tileCount);
+		if(tileCount <= TILES_PER_TASK) {
+			task.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+	}
+
+	private static byte[] getCodes(byte[] row) {
+		byte[] r = new byte[row.length];
+		int count = 0;
+		for(int i = 0; i < row.length; i++) {
+			int code = CODE_FOR_BYTE[row[i] & 0xff];
+			if(code >= 0) {
+				r[count] = (byte)code;
+				count++;
+			}
+		}
+		if(count < r.length) {
+			byte[] compress = new byte[count];
+			System.arraycopy(r, 0, compress, 0, count);
+			r = compress;
+		}
+		return r;
+	}
+
+	public int getNTax() {
+		return ntax;
+	}
+
+	/**
+	 * Returns the score for sequence i compared to sequence j. This is
+	 * the sum over the positions of sequence i.
+	 */
+	public double getScore(int i, int j) {
+		double r = 0;
+		if(i <= j) {
+			r = upper[rowStarts[j] + i];
+		} else if(lower == null) {
+			r = upper[rowStarts[i] + j];
+		} else {
+			r = lower[rowStarts[i] - i + j];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the scores for i <= j as a triangular array. The score
+	 * for i and j is at j*(j+1)/2 + i. This is not a copy, and must not
+	 * be modified.
+	 */
+	public double[] getUpperTriangle() {
+		return upper;
+	}
+
+	/**
+	 * Returns the scores as a square matrix.
+	 */
+	public double[][] getMatrix() {
+		double[][] r = new double[ntax][ntax];
+		for(int i = 0; i < ntax; i++) {
+			for(int j = 0; j < ntax; j++) {
+				r[i][j] = getScore(i, j);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Scores a range of tiles, splitting the range so parts are scored
+	 * in parallel. Tiles are numbered by rows of the triangle, and each
+	 * task writes only to the scores of its own tiles.
+	 */
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private int from;
+		private int to;
+
+		TileTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= TILES_PER_TASK) {
+				long[] sums = new long[TILE_SIZE*TILE_SIZE];
+				for(int i = from; i < to; i++) {
+					//tile i is in tile row tileJ, column tileI
+					int tileJ = (int)((Math.sqrt(8.0*i + 1) - 1) / 2);
+					while(tileJ*(tileJ+1)/2 > i) {
+						tileJ--;
+					}
+					while((tileJ+1)*(tileJ+2)/2 <= i) {
+						tileJ++;
+					}
+					int tileI = i - tileJ*(tileJ+1)/2;
+					scoreTile(tileI*TILE_SIZE, tileJ*TILE_SIZE, sums);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new TileTask(from, middle),
+						new TileTask(middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Scores the pairs with i from firstI and j from firstJ, up to
+	 * TILE_SIZE each, keeping i <= j. Scores for i > j are also worked
+	 * out if they are not symmetrical.
+	 */
+	private void scoreTile(int firstI, int firstJ, long[] sums) {
+		int endI = Math.min(firstI + TILE_SIZE, ntax);
+		int endJ = Math.min(firstJ + TILE_SIZE, ntax);
+		Arrays.fill(sums, 0);
+		int maxLength = 0;
+		for(int i = firstI; i < endI; i++) {
+			maxLength = Math.max(maxLength, codes[i].length);
+		}
+		for(int blockStart = 0; blockStart < maxLength;
+		blockStart += BLOCK_LENGTH) {
+			for(int i = firstI; i < endI; i++) {
+				byte[] rowI = codes[i];
+				for(int j = Math.max(i, firstJ); j < endJ; j++) {
+					byte[] rowJ = codes[j];
+					int sumIndex = (i - firstI)*TILE_SIZE + (j - firstJ);
+					sums[sumIndex] +=
+						getBlockScore(rowI, rowJ, blockStart);
+				}
+			}
+		}
+		for(int i = firstI; i < endI; i++) {
+			for(int j = Math.max(i, firstJ); j < endJ; j++) {
+				int sumIndex = (i - firstI)*TILE_SIZE + (j - firstJ);
+				upper[rowStarts[j] + i] = -1d + sums[sumIndex];
+				if(lower != null && i != j) {
+					lower[rowStarts[j] - j + i] = 
+						-1d + getScore(codes[j], codes[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the sum of the scores for the positions of rowI in the
+	 * block starting at blockStart.
+	 */
+	private long getBlockScore(byte[] rowI, byte[] rowJ, int blockStart) {
+		long r = 0;
+		int end = Math.min(blockStart + BLOCK_LENGTH, rowI.length);
+		for(int k = blockStart; k < end; k++) {
+			r += scores[rowI[k]*scoreSize + rowJ[k]];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the sum of the scores for the positions of rowI.
+	 */
+	private long getScore(byte[] rowI, byte[] rowJ) {
+		long r = 0;
+		for(int k = 0; k < rowI.length; k++) {
+			r += scores[rowI[k]*scoreSize + rowJ[k]];
+		}
+		return r;
+	}
+}
@@ -0,0 +1,128 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.util.Random;
+
+import edu.vt.vbi.ci.util.RandomSetUtils;
+
+/**
+ * Generates resampled replicates of an alignment (bootstrap, column
+ * jackknife, or gene-wise jackknife of a ConcatenatedSequenceAlignment)
+ * without copying the alignment for each replicate.
+ *
+ * The alignment is compressed to its distinct site patterns once. Each
+ * replicate is then a weight vector giving the number of columns of
+ * each pattern in the replicate, and getReplicate() wraps the vector in
+ * a WeightedPatternAlignment, which builds its rows only when it is
+ * written out for a tree building program.
+ *
+ * @author enordber
+ *
+ */
+public class PatternResampler {
+
+	private static Random random = new Random();
+
+	private SequenceAlignment alignment;
+	private SitePatternIndex patternIndex;
+
+	public PatternResampler(SequenceAlignment alignment) {
+		this.alignment = alignment;
+		patternIndex = alignment.getSitePatternIndex();
+	}
+
+	public SitePatternIndex getPatternIndex() {
+		return patternIndex;
+	}
+
+	/**
+	 * Returns pattern weights for a bootstrap replicate: as many columns
+	 * as the alignment has, sampled with replacement.
+	 */
+	public int[] getBootstrapWeights() {
+		int[] r = new int[patternIndex.getPatternCount()];
+		int[] columnToPattern = patternIndex.getColumnToPattern();
+		int length = columnToPattern.length;
+		for(int i = 0; i < length; i++) {
+			r[columnToPattern[random.nextInt(length)]]++;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns pattern weights for a column jackknife replicate: the
+	 * given number of columns, sampled without replacement.
+	 *
+	 * @param columns
+	 * @return
+	 */
+	public int[] getColumnJackknifeWeights(int columns) {
+		int[] r = new int[patternIndex.getPatternCount()];
+		int[] columnToPattern = patternIndex.getColumnToPattern();
+		int length = columnToPattern.length;
+		columns = Math.min(columns, length);
+		//partial shuffle of the column indices. The first 'columns'
+		//entries are the sample.
+		int[] order = new int[length];
+		for(int i = 0; i < length; i++) {
+			order[i] = i;
+		}
+		for(int i = 0; i < columns; i++) {
+			int swap = i + random.nextInt(length - i);
+			int column = order[swap];
+			order[swap] = order[i];
+			order[i] = column;
+			r[columnToPattern[column]]++;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns pattern weights for a gene-wise jackknife replicate: all
+	 * columns of geneCount of the concatenated alignments, chosen at
+	 * random without replacement. This is equivalent to concatenating
+	 * the chosen alignments. The alignment being resampled must be a
+	 * ConcatenatedSequenceAlignment.
+	 *
+	 * @param geneCount
+	 * @return
+	 */
+	public int[] getGeneJackknifeWeights(int geneCount) {
+		if(!(alignment instanceof ConcatenatedSequenceAlignment)) {
+			throw new IllegalStateException("gene-wise jackknife requires " +
+					"a ConcatenatedSequenceAlignment");
+		}
+		ConcatenatedSequenceAlignment concatenated =
+			(ConcatenatedSequenceAlignment) alignment;
+		int alignmentCount = concatenated.getAlignmentCount();
+		int[] genes = null;
+		if(geneCount >= alignmentCount) {
+			genes = new int[alignmentCount];
+			for(int i = 0; i < genes.length; i++) {
+				genes[i] = i;
+			}
+		} else {
+			genes = RandomSetUtils.getRandomSet(geneCount, 0,
+					alignmentCount-1, false);
+		}
+
+		int[] r = new int[patternIndex.getPatternCount()];
+		for(int i = 0; i < genes.length; i++) {
+			patternIndex.addPatternCounts(concatenated.getAlignmentStart(genes[i]),
+					concatenated.getAlignmentStop(genes[i]), r);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the replicate alignment for the given pattern weights.
+	 *
+	 * @param weights
+	 * @return
+	 */
+	public WeightedPatternAlignment getReplicate(int[] weights) {
+		WeightedPatternAlignment r = new WeightedPatternAlignment(patternIndex,
+				weights, alignment.getSequenceTitles(), alignment.getTaxa());
+		r.setName(alignment.getName() + "_resampled");
+		return r;
+	}
+}
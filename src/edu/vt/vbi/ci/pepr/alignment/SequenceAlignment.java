@@ -1,5 +1,13 @@
 package edu.vt.vbi.ci.pepr.alignment;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -50,20 +58,47 @@ public class SequenceAlignment {
 	public static final char GAP_CHAR = '-';
 	public static final char MISSING_CHAR = '?';
 
+	/*
+	 * formats for writeTo()
+	 */
+	public static final int FASTA_FORMAT = 0;
+	public static final int PHYLIP_FORMAT = 1;
+	public static final int EXTENDED_PHYLIP_TAXON_NAMES_FORMAT = 2;
+	public static final int EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT = 3;
+
+	private static final int WRITE_BUFFER_SIZE = 64*1024;
+
 	private String name;
 
 	/*
 	 * Stores sequences in alignment. Each element
-	 * is a char[] for one sequences. Each char[]
-	 * should be the same length, with gap characters
-	 * providing any padding needed.
+	 * is a byte[] for one sequence, with one byte per
+	 * residue (the ISO-8859-1 value of the residue character).
+	 * Each byte[] should be the same length, with gap 
+	 * characters providing any padding needed. The char and
+	 * String accessors are views over these rows.
 	 */
-	private char[][] alignedSequenceChars = new char[0][0];
+	private byte[][] alignedSequenceBytes = new byte[0][0];
+
+	/*
+	 * Optional column-major copy of alignedSequenceBytes, created
+	 * by getColumnMajorBytes(). Element [c][s] is the residue of
+	 * sequence s in column c. This is discarded whenever the rows
+	 * are changed.
+	 */
+	private byte[][] columnMajorBytes;
+
+	/*
+	 * Distinct site patterns of the alignment, created by 
+	 * getSitePatternIndex(). This is discarded whenever the rows
+	 * are changed.
+	 */
+	private SitePatternIndex sitePatternIndex;
 
 	/*
 	 * The titles, for each sequence in the 
 	 * alignment.The index values are the same as
-	 * in alignedSequenceChars
+	 * in alignedSequenceBytes
 	 */
 	private String[] sequenceTitles;
 
@@ -76,7 +111,7 @@ public class SequenceAlignment {
 	/*
 	 * The taxon names or ids for each sequence in
 	 * the alignment. The index values are the same
-	 * as in alignedSequenceChars. These values can 
+	 * as in alignedSequenceBytes. These values can 
 	 * be used to relate alignments of different
 	 * sequences from a common set of taxa. (e.g.
 	 * to support generating a concatenated alignment.)
@@ -101,9 +136,9 @@ public class SequenceAlignment {
 	}
 
 	public SequenceAlignment(String[] alignedSequences, String[] titles) {
-		alignedSequenceChars = new char[alignedSequences.length][];
+		alignedSequenceBytes = new byte[alignedSequences.length][];
 		for(int i = 0; i < alignedSequences.length; i++) {
-			alignedSequenceChars[i] = alignedSequences[i].toCharArray();
+			alignedSequenceBytes[i] = toBytes(alignedSequences[i]);
 		}
 		setTitles(titles);
 	}
@@ -114,13 +149,58 @@ public class SequenceAlignment {
 		setTitles(titles);
 	}
 
+	/**
+	 * Creates an alignment that uses the given byte rows directly,
+	 * without copying them. The caller must not modify the rows
+	 * afterwards.
+	 * 
+	 * @param alignedSequences one byte per residue, one row per sequence
+	 * @param titles
+	 * @param taxa may be null
+	 */
+	SequenceAlignment(byte[][] alignedSequences, String[] titles, String[] taxa) {
+		this();
+		alignedSequenceBytes = alignedSequences;
+		setTitles(titles);
+		if(taxa != null) {
+			setTaxa(taxa);
+		}
+	}
+
+	/**
+	 * Replaces all rows with the given byte rows, which are used 
+	 * directly, without copying. All rows must be the same length.
+	 * The caller must not modify the rows afterwards.
+	 */
+	void setAlignedSequenceBytes(byte[][] alignedSequences) {
+		alignedSequenceBytes = alignedSequences;
+		columnMajorBytes = null;
+		sitePatternIndex = null;
+	}
+
 	protected void setAlignedSequences(char[][] alignedSequences) {
-		alignedSequenceChars = new char[alignedSequences.length][];
-		for(int i = 0; i < alignedSequenceChars.length; i++) {
-			alignedSequenceChars[i] = new char[alignedSequences[i].length];
-			System.arraycopy(alignedSequences[i], 0, alignedSequenceChars[i], 0,
-					alignedSequences[i].length);
+		alignedSequenceBytes = new byte[alignedSequences.length][];
+		for(int i = 0; i < alignedSequenceBytes.length; i++) {
+			alignedSequenceBytes[i] = toBytes(alignedSequences[i]);
 		}
+		columnMajorBytes = null;
+		sitePatternIndex = null;
+	}
+
+	/**
+	 * Converts residue characters to the one-byte-per-residue form
+	 * used for storage. Residues are expected to be ASCII.
+	 */
+	static byte[] toBytes(char[] residues) {
+		byte[] r = new byte[residues.length];
+		for(int i = 0; i < r.length; i++) {
+			r[i] = (byte)residues[i];
+		}
+		return r;
+	}
+
+	static byte[] toBytes(String residues) {
+		return residues.getBytes(StandardCharsets.ISO_8859_1);
 	}
 
 	public void setTitles(String[] titles) {
@@ -155,23 +235,25 @@ public class SequenceAlignment {
 	 * @param sequence
 	 */
 	public void addSequence(String sequence, String title) {
-		char[] seqChars = sequence.toCharArray();
-		if(alignedSequenceChars == null) {
-			alignedSequenceChars = new char[0][];
+		byte[] seqBytes = toBytes(sequence);
+		if(alignedSequenceBytes == null) {
+			alignedSequenceBytes = new byte[0][];
 			if(debug) {
-				System.out.println("SequenceAlignment.addSequence() initialize alignedSequenceChars");
+				System.out.println("SequenceAlignment.addSequence() initialize alignedSequenceBytes");
 			}
 		}
 
-		char[][] tempHolder = alignedSequenceChars;
-		alignedSequenceChars = new char[alignedSequenceChars.length+1][];
+		byte[][] tempHolder = alignedSequenceBytes;
+		alignedSequenceBytes = new byte[alignedSequenceBytes.length+1][];
 		if(debug) {
-		    System.out.println("SequenceAlignment.addSequence() expand alignedSequenceChars for new sequence");
+		    System.out.println("SequenceAlignment.addSequence() expand alignedSequenceBytes for new sequence");
 		}
 		for(int i = 0; i < tempHolder.length; i++) {
-			alignedSequenceChars[i] = tempHolder[i];
+			alignedSequenceBytes[i] = tempHolder[i];
 		}
-		alignedSequenceChars[tempHolder.length] = seqChars;
+		alignedSequenceBytes[tempHolder.length] = seqBytes;
+		columnMajorBytes = null;
+		sitePatternIndex = null;
 
 		padSequencesIfNeeded();
 
@@ -202,13 +284,15 @@ public class SequenceAlignment {
 	 */
 	public void removeSequence(int index) {
 		int secondLength = getNTax() - index -1;
-		//remove index from alignedSequenceChars
-		char[][] nASC = new char[alignedSequenceChars.length-1][];
-		System.arraycopy(alignedSequenceChars, 0, nASC, 0, index);
+		//remove index from alignedSequenceBytes
+		byte[][] nASB = new byte[alignedSequenceBytes.length-1][];
+		System.arraycopy(alignedSequenceBytes, 0, nASB, 0, index);
 		if(secondLength > 0) {
-			System.arraycopy(alignedSequenceChars, index+1, nASC, index, secondLength);
+			System.arraycopy(alignedSequenceBytes, index+1, nASB, index, secondLength);
 		}
-		alignedSequenceChars = nASC;
+		alignedSequenceBytes = nASB;
+		columnMajorBytes = null;
+		sitePatternIndex = null;
 
 		//remove index from sequenceNames
 		String[] nSN = new String[sequenceNames.length-1];
@@ -232,17 +316,28 @@ public class SequenceAlignment {
 
 	public String getSequenceString(int index) {
 		String r = null;
-		if(index < alignedSequenceChars.length) {
-			r = new String(alignedSequenceChars[index]);
+		if(index < alignedSequenceBytes.length) {
+			r = new String(alignedSequenceBytes[index], StandardCharsets.ISO_8859_1);
 		} else {
 			System.out.println("SequenceAlignment.getSequenceString() requested " +
 					"sequence at index " + index + ", but this alignment " +
-					"only has " + alignedSequenceChars.length + 
+					"only has " + alignedSequenceBytes.length + 
 			" aligned sequences.");
 		}
 		return r;
 	}
 
+	/**
+	 * Returns the backing row for the sequence at the given index, with 
+	 * one byte per residue. This is not a copy, and must not be modified.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	byte[] getSequenceBytes(int index) {
+		return alignedSequenceBytes[index];
+	}
+
 	/**
 	 * Checks the lengths of sequences. If they are not
 	 * already the same length, they will be padded
@@ -251,33 +346,38 @@ public class SequenceAlignment {
 	 *
 	 */
 	private void padSequencesIfNeeded() {
+		if(alignedSequenceBytes.length == 0) {
+			return;
+		}
 		boolean allSameLength = true;
-		int firstSequenceLength = alignedSequenceChars[0].length;
+		int firstSequenceLength = alignedSequenceBytes[0].length;
 
-		for(int i = 0; i < alignedSequenceChars.length && allSameLength; i++) {
-			allSameLength = firstSequenceLength == alignedSequenceChars[i].length;
+		for(int i = 0; i < alignedSequenceBytes.length && allSameLength; i++) {
+			allSameLength = firstSequenceLength == alignedSequenceBytes[i].length;
 		}
 
 		if(!allSameLength) {
 			//find the maximum length, then pad everything to that length
 			int maxLength = firstSequenceLength;
-			for(int i = 1; i < alignedSequenceChars.length; i++) {
-				int thisLength = alignedSequenceChars[i].length;
+			for(int i = 1; i < alignedSequenceBytes.length; i++) {
+				int thisLength = alignedSequenceBytes[i].length;
 				if(thisLength > maxLength) {
 					maxLength = thisLength;
 				}
 			}
 
-			for(int i = 0; i < alignedSequenceChars.length; i++) {
-				if(alignedSequenceChars[i].length != maxLength) {
-					char[] forPadding = new char[maxLength];
-					Arrays.fill(forPadding, GAP_CHAR);
-					System.arraycopy(alignedSequenceChars[i],
+			for(int i = 0; i < alignedSequenceBytes.length; i++) {
+				if(alignedSequenceBytes[i].length != maxLength) {
+					byte[] forPadding = new byte[maxLength];
+					Arrays.fill(forPadding, (byte)GAP_CHAR);
+					System.arraycopy(alignedSequenceBytes[i],
 							0, forPadding, 0, 
-							alignedSequenceChars[i].length);
-					alignedSequenceChars[i] = forPadding;
+							alignedSequenceBytes[i].length);
+					alignedSequenceBytes[i] = forPadding;
 				}
 			}
+			columnMajorBytes = null;
+			sitePatternIndex = null;
 		}
 	}
 
@@ -287,7 +387,7 @@ public class SequenceAlignment {
 	 * @return
 	 */
 	public int getNTax() {
-		return alignedSequenceChars.length;
+		return alignedSequenceBytes.length;
 	}
 
 	/**
@@ -297,8 +397,8 @@ public class SequenceAlignment {
 	 */
 	public int getLength() {
 		int r = 0;
-		if(alignedSequenceChars.length > 0 && alignedSequenceChars[0] != null) {
-			r = alignedSequenceChars[0].length;
+		if(alignedSequenceBytes.length > 0 && alignedSequenceBytes[0] != null) {
+			r = alignedSequenceBytes[0].length;
 		}
 		return r;
 	}
@@ -313,10 +413,22 @@ public class SequenceAlignment {
 	 */
 	public char getChar(int seq, int pos) {
 		char r = 0;
-		r = alignedSequenceChars[seq][pos];
+		r = (char)(alignedSequenceBytes[seq][pos] & 0xff);
 		return r;
 	}
 
+	/**
+	 * Returns the residue at the given position in the alignment
+	 * matrix, in its one-byte stored form.
+	 * 
+	 * @param seq
+	 * @param pos
+	 * @return
+	 */
+	public byte getByte(int seq, int pos) {
+		return alignedSequenceBytes[seq][pos];
+	}
+
 	public String[] getSequenceTitles() {
 		return sequenceTitles;
 	}
@@ -362,13 +474,13 @@ public class SequenceAlignment {
 			sequenceTaxa = FastaUtilities.getTaxaFromTitles(sequenceTitles);
 		}
 		if(sequenceTaxa != null) {
-			if(alignedSequenceChars == null) {
-				System.out.println("SequenceAlignment.getTaxa() alignedSequenceChars is null");
-			} else if(sequenceTaxa.length != alignedSequenceChars.length) {
+			if(alignedSequenceBytes == null) {
+				System.out.println("SequenceAlignment.getTaxa() alignedSequenceBytes is null");
+			} else if(sequenceTaxa.length != getNTax()) {
 				System.out.println("SequenceAlignment.getTaxa() mismatch between" +
 						" number of taxa (" + sequenceTaxa.length + ") and " +
 						"number of sequences (" + 
-						alignedSequenceChars.length + ")");
+						getNTax() + ")");
 			}
 		}
 		return sequenceTaxa;
@@ -403,16 +515,7 @@ public class SequenceAlignment {
 	 * @return
 	 */
 	public String getAlignmentAsFasta() {
-		StringBuffer sb = new StringBuffer();
-		for(int i = 0; i < alignedSequenceChars.length; i++) {
-			sb.append(">");
-			sb.append(getSequenceTitle(i));
-			sb.append("\n");
-			sb.append(alignedSequenceChars[i]);
-			sb.append("\n");
-		}
-
-		return sb.toString();
+		return getAlignmentAsString(FASTA_FORMAT);
 	}
 
 	public String getAlignmentAsClustalW() {
@@ -487,38 +590,7 @@ public class SequenceAlignment {
 	 * @return
 	 */
 	public String getAlignmentAsExtendedPhylipUsingTaxonNames() {
-		String r = "";
-		StringBuffer sb = new StringBuffer();
-		sb.append(getNTax());
-		sb.append(" ");
-		sb.append(getLength());
-		sb.append("\n");
-
-		//create fake taxon names
-		String[] paddedTaxa = new String[sequenceTaxa.length];
-
-		//determine length of padding string, so it is one longer than the 
-		//longest taxon name
-		int longestTaxon = 0;
-		for(int i = 0; i < sequenceTaxa.length; i++) {
-			longestTaxon = Math.max(longestTaxon, sequenceTaxa[i].length());
-		}
-		longestTaxon++;
-		char[] padChars = new char[longestTaxon];
-		Arrays.fill(padChars, ' ');
-		String pad = new String(padChars);
-		for(int i = 0; i < paddedTaxa.length; i++) {
-			paddedTaxa[i] = sequenceTaxa[i];
-			paddedTaxa[i] = paddedTaxa[i] + pad.substring(paddedTaxa[i].length());
-		}
-		for(int i = 0; i < getNTax(); i++) {
-			sb.append(paddedTaxa[i]);
-			sb.append(getSequenceString(i));
-			sb.append("\n");
-		}
-		r = sb.toString();
-		return r;
-
+		return getAlignmentAsString(EXTENDED_PHYLIP_TAXON_NAMES_FORMAT);
 	}
 
 	/**
@@ -526,77 +598,219 @@ public class SequenceAlignment {
 	 * @return
 	 */
 	public String getAlignmentAsExtendedPhylipUsingSequenceNames() {
+		return getAlignmentAsString(EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT);
+	}
 
-		String r = "";
-		StringBuffer sb = new StringBuffer();
-		sb.append(getNTax());
-		sb.append(" ");
-		sb.append(getLength());
-		sb.append("\n");
+	/**
+	 * Returns the alignment in phylip format. 'Fake' taxon
+	 * names are used, rather than the full titles, or the
+	 * real taxon names.
+	 * @return
+	 */
+	public String getAlignmentAsPhylip() {
+		return getAlignmentAsString(PHYLIP_FORMAT);
+	}
 
-		//create trimmed names. These are the first token in the name
-		String[] trimmedNames = new String[sequenceTitles.length];
-		for(int i = 0; i < trimmedNames.length; i++) {
-			trimmedNames[i] = sequenceTitles[i].split("\\s+")[0];
+	private String getAlignmentAsString(int format) {
+		String r = "";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writeTo(out, format);
+			r = out.toString();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+		return r;
+	}
+
+	/**
+	 * Writes the alignment to the stream in the given format. The stream
+	 * is not closed. See writeTo(WritableByteChannel, int).
+	 *
+	 * @param out
+	 * @param format one of FASTA_FORMAT, PHYLIP_FORMAT, 
+	 *               EXTENDED_PHYLIP_TAXON_NAMES_FORMAT or 
+	 *               EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, int format) throws IOException {
+		writeTo(Channels.newChannel(out), format);
+		out.flush();
+	}
 
-		//create padded sequence names
-		String[] paddedNames = new String[trimmedNames.length];
+	/**
+	 * Writes the alignment to the channel in the given format. Rows are
+	 * copied from the stored residues into a fixed size buffer, which is
+	 * written out whenever it fills, so no String is built for the 
+	 * alignment or for any sequence. The output is the same as the 
+	 * corresponding getAlignmentAs...() method. The channel is not closed.
+	 *
+	 * @param channel
+	 * @param format one of FASTA_FORMAT, PHYLIP_FORMAT, 
+	 *               EXTENDED_PHYLIP_TAXON_NAMES_FORMAT or 
+	 *               EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel, int format)
+	throws IOException {
+		String[] labels = getRowLabels(format);
+		//a heap buffer, as a direct buffer would be allocated and freed for
+		//every call. File channels copy it through their own cached buffer
+		ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		if(format != FASTA_FORMAT) {
+			putBytes(getBytes(getNTax() + " " + getLength() + "\n"), 
+					buffer, channel);
+		}
+		int ntax = getNTax();
+		for(int i = 0; i < ntax; i++) {
+			putBytes(getBytes(labels[i]), buffer, channel);
+			putSequenceBytes(i, buffer, channel);
+			putByte((byte)'\n', buffer, channel);
+		}
+		drain(buffer, channel);
+	}
 
-		//determine length of padding string, so it is one longer than the 
-		//longest taxon name
-		int longestTaxon = 0;
-		for(int i = 0; i < trimmedNames.length; i++) {
-			longestTaxon = Math.max(longestTaxon, trimmedNames[i].length());
+	/**
+	 * Returns the text written before each sequence for the format.
+	 * For fasta, this is the title line. For phylip formats, this is
+	 * the padded name.
+	 */
+	private String[] getRowLabels(int format) {
+		String[] r = null;
+		switch(format) {
+		case FASTA_FORMAT:
+			r = new String[getNTax()];
+			for(int i = 0; i < r.length; i++) {
+				r[i] = ">" + getSequenceTitle(i) + "\n";
+			}
+			break;
+		case EXTENDED_PHYLIP_TAXON_NAMES_FORMAT:
+			r = getPaddedNames(sequenceTaxa);
+			break;
+		case EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT:
+			//trimmed names are the first token in the title
+			String[] trimmedNames = new String[sequenceTitles.length];
+			for(int i = 0; i < trimmedNames.length; i++) {
+				trimmedNames[i] = sequenceTitles[i].split("\\s+")[0];
+			}
+			r = getPaddedNames(trimmedNames);
+			break;
+		case PHYLIP_FORMAT:
+			//create fake taxon names
+			r = new String[sequenceTaxa.length];
+			String pad = "          ";
+			for(int i = 0; i < r.length; i++) {
+				r[i] = "Taxon_" + i;
+				r[i] = r[i] + pad.substring(r[i].length());
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unknown alignment format: " 
+					+ format);
 		}
-		longestTaxon++;
-		char[] padChars = new char[longestTaxon];
+		return r;
+	}
+
+	/**
+	 * Pads the names with spaces, so each is one longer than 
+	 * the longest name.
+	 */
+	private static String[] getPaddedNames(String[] names) {
+		String[] r = new String[names.length];
+		int longestName = 0;
+		for(int i = 0; i < names.length; i++) {
+			longestName = Math.max(longestName, names[i].length());
+		}
+		longestName++;
+		char[] padChars = new char[longestName];
 		Arrays.fill(padChars, ' ');
 		String pad = new String(padChars);
-		for(int i = 0; i < paddedNames.length; i++) {
-			paddedNames[i] = trimmedNames[i];
-			paddedNames[i] = paddedNames[i] + pad.substring(paddedNames[i].length());
-		}
-		for(int i = 0; i < getNTax(); i++) {
-			sb.append(paddedNames[i]);
-			sb.append(getSequenceString(i));
-			sb.append("\n");
+		for(int i = 0; i < r.length; i++) {
+			r[i] = names[i] + pad.substring(names[i].length());
 		}
-		r = sb.toString();
 		return r;
+	}
 
+	/**
+	 * Names and titles are encoded as FileWriter would encode them.
+	 */
+	private static byte[] getBytes(String text) {
+		return text.getBytes(Charset.defaultCharset());
 	}
 
 	/**
-	 * Returns the alignment in phylip format. 'Fake' taxon
-	 * names are used, rather than the full titles, or the
-	 * real taxon names.
-	 * @return
+	 * Puts the residues of the sequence at the given index into the
+	 * buffer, writing the buffer to the channel whenever it fills.
+	 * Subclasses that do not store rows can override this to encode
+	 * the row without building it.
 	 */
-	public String getAlignmentAsPhylip() 
-	{
-		String r = "";
-		StringBuffer sb = new StringBuffer();
-		sb.append(getNTax());
-		sb.append(" ");
-		sb.append(getLength());
-		sb.append("\n");
-
-		//create fake taxon names
-		String[] fakeTaxa = new String[sequenceTaxa.length];
-		String pad = "          ";
-		for(int i = 0; i < fakeTaxa.length; i++) {
-			fakeTaxa[i] = "Taxon_" + i;
-			fakeTaxa[i] = fakeTaxa[i] + pad.substring(fakeTaxa[i].length());
-		}
-		for(int i = 0; i < getNTax(); i++) {
-			sb.append(fakeTaxa[i]);
-			sb.append(getSequenceString(i));
-			sb.append("\n");
+	void putSequenceBytes(int index, ByteBuffer buffer, 
+			WritableByteChannel channel) throws IOException {
+		putBytes(getSequenceBytes(index), buffer, channel);
+	}
+
+	static void putBytes(byte[] bytes, ByteBuffer buffer, 
+			WritableByteChannel channel) throws IOException {
+		putBytes(bytes, 0, bytes.length, buffer, channel);
+	}
+
+	/**
+	 * Puts length bytes, starting at offset, into the buffer, writing
+	 * the buffer to the channel whenever it fills.
+	 */
+	static void putBytes(byte[] bytes, int offset, int length, 
+			ByteBuffer buffer, WritableByteChannel channel) 
+	throws IOException {
+		int end = offset + length;
+		while(offset < end) {
+			if(!buffer.hasRemaining()) {
+				drain(buffer, channel);
+			}
+			int count = Math.min(buffer.remaining(), end - offset);
+			buffer.put(bytes, offset, count);
+			offset += count;
 		}
-		r = sb.toString();
-		return r;
 	}
+
+	static void putByte(byte b, ByteBuffer buffer, 
+			WritableByteChannel channel) throws IOException {
+		if(!buffer.hasRemaining()) {
+			drain(buffer, channel);
+		}
+		buffer.put(b);
+	}
+
+	/**
+	 * Puts count copies of the byte into the buffer, writing the buffer
+	 * to the channel whenever it fills.
+	 */
+	static void putRepeatedByte(byte b, int count, ByteBuffer buffer, 
+			WritableByteChannel channel) throws IOException {
+		while(count > 0) {
+			if(!buffer.hasRemaining()) {
+				drain(buffer, channel);
+			}
+			int run = Math.min(buffer.remaining(), count);
+			for(int i = 0; i < run; i++) {
+				buffer.put(b);
+			}
+			count -= run;
+		}
+	}
+
+	/**
+	 * Writes everything in the buffer to the channel, and clears 
+	 * the buffer.
+	 */
+	static void drain(ByteBuffer buffer, WritableByteChannel channel) 
+	throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
 	/**
 	 * Returns a string representation of this alignment. The format
 	 * is one line per sequence: title-tab-sequence-newline
@@ -652,14 +866,166 @@ public class SequenceAlignment {
 	public char[] getColumn(int columnIndex) {
 		char[] r = null;
 		if(columnIndex > -1 && columnIndex < getLength()) {
-			r = new char[alignedSequenceChars.length];
-			for(int i = 0; i < r.length; i++) {
-				r[i] = alignedSequenceChars[i][columnIndex];
+			r = new char[alignedSequenceBytes.length];
+			byte[][] columns = columnMajorBytes;
+			if(columns != null) {
+				byte[] column = columns[columnIndex];
+				for(int i = 0; i < r.length; i++) {
+					r[i] = (char)(column[i] & 0xff);
+				}
+			} else {
+				for(int i = 0; i < r.length; i++) {
+					r[i] = (char)(alignedSequenceBytes[i][columnIndex] & 0xff);
+				}
 			}
 		}
 		return r;
 	}
 
+	/**
+	 * Copies a single column of the alignment into the given array, 
+	 * in stored byte form, and returns it. If dest is null or too short, 
+	 * a new array is created. This allows columns to be visited 
+	 * without allocating an array per column.
+	 * 
+	 * @param columnIndex
+	 * @param dest
+	 * @return
+	 */
+	public byte[] getColumnBytes(int columnIndex, byte[] dest) {
+		int ntax = alignedSequenceBytes.length;
+		if(dest == null || dest.length < ntax) {
+			dest = new byte[ntax];
+		}
+		byte[][] columns = columnMajorBytes;
+		if(columns != null) {
+			System.arraycopy(columns[columnIndex], 0, dest, 0, ntax);
+		} else {
+			for(int i = 0; i < ntax; i++) {
+				dest[i] = alignedSequenceBytes[i][columnIndex];
+			}
+		}
+		return dest;
+	}
+
+	/**
+	 * Returns a new alignment with only the selected columns of this 
+	 * alignment, and the same titles and taxa. The rows are read once 
+	 * each, and no column arrays are created.
+	 * 
+	 * @param selected true for each column to keep
+	 * @return
+	 */
+	SequenceAlignment copyColumns(boolean[] selected) {
+		int selectedCount = 0;
+		for(int i = 0; i < selected.length; i++) {
+			if(selected[i]) {
+				selectedCount++;
+			}
+		}
+		int ntax = getNTax();
+		byte[][] rows = new byte[ntax][selectedCount];
+		for(int i = 0; i < ntax; i++) {
+			byte[] row = getSequenceBytes(i);
+			byte[] copy = rows[i];
+			int next = 0;
+			for(int j = 0; j < selected.length; j++) {
+				if(selected[j]) {
+					copy[next++] = row[j];
+				}
+			}
+		}
+		return new SequenceAlignment(rows, getSequenceTitles(), getTaxa());
+	}
+
+	/**
+	 * Returns a column-major copy of the alignment, where element [c][s]
+	 * is the residue of sequence s in column c. The copy is created on 
+	 * the first call and kept until the alignment is modified or 
+	 * releaseColumnMajorBytes() is called. While it is held, column
+	 * accessors read from it, which is much more cache-friendly for
+	 * algorithms that work column by column. It doubles the memory used
+	 * by the alignment, so it should be released when no longer needed.
+	 * The returned arrays must not be modified.
+	 * 
+	 * @return
+	 */
+	public synchronized byte[][] getColumnMajorBytes() {
+		if(columnMajorBytes == null) {
+			int ntax = getNTax();
+			int length = getLength();
+			byte[][] columns = new byte[length][ntax];
+			//get each row once. Subclasses that do not store rows build
+			//them on each call
+			byte[][] rows = new byte[ntax][];
+			for(int i = 0; i < ntax; i++) {
+				rows[i] = getSequenceBytes(i);
+			}
+			//transpose in blocks of columns so reads from each row stay 
+			//within a small region
+			int blockSize = 256;
+			for(int blockStart = 0; blockStart < length; blockStart += blockSize) {
+				int blockEnd = Math.min(length, blockStart + blockSize);
+				for(int i = 0; i < ntax; i++) {
+					byte[] row = rows[i];
+					for(int j = blockStart; j < blockEnd; j++) {
+						columns[j][i] = row[j];
+					}
+				}
+			}
+			columnMajorBytes = columns;
+		}
+		return columnMajorBytes;
+	}
+
+	/**
+	 * Discards the column-major copy created by getColumnMajorBytes().
+	 */
+	public synchronized void releaseColumnMajorBytes() {
+		columnMajorBytes = null;
+	}
+
+	/**
+	 * Returns the distinct site patterns of this alignment, with the
+	 * number of columns having each pattern and the pattern of each
+	 * column. The index is created on the first call and kept until the
+	 * alignment is modified.
+	 * 
+	 * @return
+	 */
+	public synchronized SitePatternIndex getSitePatternIndex() {
+		if(sitePatternIndex == null) {
+			sitePatternIndex = new SitePatternIndex(this);
+		}
+		return sitePatternIndex;
+	}
+
+	/**
+	 * Returns the number of distinct site patterns (columns) in this
+	 * alignment.
+	 * 
+	 * @return
+	 */
+	public int getPatternCount() {
+		return getSitePatternIndex().getPatternCount();
+	}
+
+	/**
+	 * Returns the column at the given pattern index in the char form
+	 * used by the per-column analyses, reusing dest if it is long enough.
+	 */
+	private char[] getPatternColumn(SitePatternIndex patterns, 
+			int patternIndex, char[] dest) {
+		byte[] pattern = patterns.getPattern(patternIndex);
+		if(dest == null || dest.length != pattern.length) {
+			dest = new char[pattern.length];
+		}
+		for(int i = 0; i < dest.length; i++) {
+			dest[i] = (char)(pattern[i] & 0xff);
+		}
+		return dest;
+	}
+
 	public Bipartition[] getBipartitionsForColumn(int index) {
 		Bipartition[] r = null;
 		if(columnBipartitions == null) {
@@ -699,17 +1065,36 @@ public class SequenceAlignment {
 		Bipartition[] r = null;
 		ArrayList bipartitions = new ArrayList();
 		int columnCount = getLength();
+		if(columnBipartitions == null) {
+			determineColumnBipartitions();
+		}
 
+		//find the non-trivial Bipartitions once for each pattern
+		SitePatternIndex patterns = getSitePatternIndex();
+		Bipartition[][] patternNonTrivial = 
+			new Bipartition[patterns.getPatternCount()][];
+		int[] columnToPattern = patterns.getColumnToPattern();
 		for(int i = 0; i < columnCount; i++) {
-			Bipartition[] columnBiparts = getBipartitionsForColumn(i);
-			if(columnBiparts != null && columnBiparts.length <= maxStates) {
-				for(int j = 0; j < columnBiparts.length; j++) {
-					//add if not trivial
-					int cardinality = columnBiparts[j].getSmallerSide().cardinality();
-					if(cardinality > 1) {
-						bipartitions.add(columnBiparts[j]);
+			int pattern = columnToPattern[i];
+			if(patternNonTrivial[pattern] == null) {
+				ArrayList<Bipartition> nonTrivial = new ArrayList<Bipartition>();
+				Bipartition[] columnBiparts = columnBipartitions[i];
+				if(columnBiparts != null && columnBiparts.length <= maxStates) {
+					for(int j = 0; j < columnBiparts.length; j++) {
+						//add if not trivial
+						int cardinality = columnBiparts[j].getSmallerSide().cardinality();
+						if(cardinality > 1) {
+							nonTrivial.add(columnBiparts[j]);
+						}
 					}
 				}
+				patternNonTrivial[pattern] = new Bipartition[nonTrivial.size()];
+				nonTrivial.toArray(patternNonTrivial[pattern]);
+			}
+			//each column contributes its Bipartitions, so repeated 
+			//patterns are counted once per column
+			for(int j = 0; j < patternNonTrivial[pattern].length; j++) {
+				bipartitions.add(patternNonTrivial[pattern][j]);
 			}
 		}
 		r = new Bipartition[bipartitions.size()];
@@ -718,25 +1103,44 @@ public class SequenceAlignment {
 		return r;
 	}
 
+	/**
+	 * Calculates the Bipartitions once for each distinct site pattern.
+	 * Columns with the same pattern share the same Bipartition array.
+	 */
 	private void determineColumnBipartitions() {
-		columnBipartitions = new Bipartition[getLength()][];
+		SitePatternIndex patterns = getSitePatternIndex();
+		Bipartition[][] patternBipartitions = 
+			new Bipartition[patterns.getPatternCount()][];
+		char[] column = null;
+		for(int i = 0; i < patternBipartitions.length; i++) {
+			column = getPatternColumn(patterns, i, column);
+			patternBipartitions[i] = getBipartitionsForAlignmentColumn(column);
+		}
 
+		int[] columnToPattern = patterns.getColumnToPattern();
+		columnBipartitions = new Bipartition[columnToPattern.length][];
 		for(int i = 0; i < columnBipartitions.length; i++) {
-			columnBipartitions[i] = 
-				getBipartitionsForAlignmentColumn(getColumn(i));
+			columnBipartitions[i] = patternBipartitions[columnToPattern[i]];
 		}
 	}
 
 	/**
 	 * Calculates and stores the character state arrays for all columns
-	 * in the alignment.
+	 * in the alignment. These are calculated once for each distinct site
+	 * pattern, and columns with the same pattern share the same array.
 	 */
 	private void determineColumnCharacterClasses() {
-		columnCharacterClasses = new int[getLength()][];
+		SitePatternIndex patterns = getSitePatternIndex();
+		int[][] patternClasses = new int[patterns.getPatternCount()][];
+		for(int i = 0; i < patternClasses.length; i++) {
+			patternClasses[i] = ColumnStatistics.
+				getCharacterClasses(patterns.getPattern(i), null);
+		}
 
+		int[] columnToPattern = patterns.getColumnToPattern();
+		columnCharacterClasses = new int[columnToPattern.length][];
 		for(int i = 0; i < columnCharacterClasses.length; i++) {
-			columnCharacterClasses[i] = 
-				getCharacterClassAssignmentsForAlignmentColumn(getColumn(i));
+			columnCharacterClasses[i] = patternClasses[columnToPattern[i]];
 		}
 	}
 
@@ -758,53 +1162,6 @@ public class SequenceAlignment {
 		return r;
 	}
 
-	/**
-	 * Returns an array the same length as the column array. Values in the
-	 * array indicate the character class for that position in the column.
-	 * The values are bit flags, so they will all be powers of 2. Missing data
-	 * columns are given a value of 0. Gaps are treated the same as other 
-	 * characters.
-	 * 
-	 * @param column
-	 * @return
-	 */
-	private int[] getCharacterClassAssignmentsForAlignmentColumn(char[] column) {
-		int[] r = new int[column.length];
-		int currentClass = 1;
-		int nextClass = 2;
-		int index = 0;
-
-		while(column[index] == SequenceAlignment.MISSING_CHAR ||
-				column[index] == SequenceAlignment.GAP_CHAR) {
-			index++;
-		}
-		r[index] = currentClass;
-
-		index++;
-		for(;index < r.length; index++) {
-			//ignore missing characters
-			if(column[index] != SequenceAlignment.MISSING_CHAR) {
-				//set to -1 so we can tell later if no class was found 
-				r[index] = -1;
-				//see if this character already has a class
-				for(int j = 0 ; j < index; j++) {
-					if(column[index] == column[j]) {
-						//this class is the same as for element j
-						r[index] = r[j];
-					}
-				}
-				if(r[index] == -1) {
-					//no existing class was found for this character, 
-					//so it defines a new class
-					r[index] = nextClass;
-					nextClass <<= 1;
-				}
-			}
-		}
-
-		return r;
-	}
-
 	private Bipartition[] getBipartitionsForAlignmentColumn(char[] column) {
 		Bipartition[] r = null;
 
@@ -925,20 +1282,12 @@ public class SequenceAlignment {
 	public SequenceAlignment getSubAlignment(int from, int to) {
 		SequenceAlignment r = null;
 		int length = to-from;
-		char[][] columns = new char[length][];
-		for(int i = 0; i < columns.length; i++) {
-			columns[i] = getColumn(from+i);
-		}
-
-		//transpose the columns
-		char[][] subAlignment = new char[getNTax()][columns.length];
+		//copy the range directly from each row
+		byte[][] subAlignment = new byte[getNTax()][length];
 		for(int i = 0; i < subAlignment.length; i++) {
-			for(int j = 0; j < subAlignment[i].length; j++) {
-				subAlignment[i][j] = columns[j][i];
-			}
+			System.arraycopy(getSequenceBytes(i), from, subAlignment[i], 0, length);
 		}
-		r = new SequenceAlignment(subAlignment, getSequenceTitles());
-		r.setTaxa(getTaxa());
+		r = new SequenceAlignment(subAlignment, getSequenceTitles(), getTaxa());
 		String subName = getName()+"_" + from + "-" + to;
 		r.setName(subName);
 		return r;
@@ -952,7 +1301,6 @@ public class SequenceAlignment {
 	public SequenceAlignment getShuffledAlignment() {
 		SequenceAlignment r = null;
 		int length = getLength();
-		char[][] shuffledColumns = new char[length][];
 		int[] newColumnOrder = new int[length];
 		boolean[] columnAssigned = new boolean[length];
 
@@ -965,20 +1313,8 @@ public class SequenceAlignment {
 			columnAssigned[nextIndex] = true;
 		}
 
-		for(int i = 0; i < shuffledColumns.length; i++) {
-			shuffledColumns[i] = getColumn(newColumnOrder[i]);
-		}
-
-		//now transpose the shuffled columns, 
-		char[][] shuffledAlignment = new char[getNTax()][getLength()];
-		for(int i = 0; i < shuffledAlignment.length; i++) {
-			for(int j = 0; j < shuffledAlignment[i].length; j++) {
-				shuffledAlignment[i][j] = shuffledColumns[j][i];
-			}
-		}
-
-		r = new SequenceAlignment(shuffledAlignment, getSequenceTitles());
-		r.setTaxa(getTaxa());
+		r = new SequenceAlignment(getColumnsInOrder(newColumnOrder),
+				getSequenceTitles(), getTaxa());
 		r.setName(getName()+ "_shuffled");
 
 		return r;
@@ -988,13 +1324,13 @@ public class SequenceAlignment {
 	 * Generates a shuffled alignment using sampling with or 
 	 * without replacement. Used with replacement, this method 
 	 * generates alignments suitable for use in bootstrap
-	 * analyses.
+	 * analyses. For many replicates of the same alignment, 
+	 * PatternResampler avoids copying the alignment for each one.
 	 * @return
 	 */
 	public SequenceAlignment getSampleWithReplacement(boolean withReplacement) {
 		SequenceAlignment r = null;
 		int length = getLength();
-		char[][] shuffledColumns = new char[length][];
 		int[] newColumnOrder = new int[length];
 		boolean[] columnAssigned = new boolean[length];
 
@@ -1007,22 +1343,30 @@ public class SequenceAlignment {
 			columnAssigned[nextIndex] = true;
 		}
 
-		for(int i = 0; i < shuffledColumns.length; i++) {
-			shuffledColumns[i] = getColumn(newColumnOrder[i]);
-		}
+		r = new SequenceAlignment(getColumnsInOrder(newColumnOrder),
+				getSequenceTitles(), getTaxa());
+		r.setName(getName()+ "_shuffled");
+
+		return r;
+	}
 
-		//now transpose the shuffled columns, 
-		char[][] shuffledAlignment = new char[getNTax()][getLength()];
-		for(int i = 0; i < shuffledAlignment.length; i++) {
-			for(int j = 0; j < shuffledAlignment[i].length; j++) {
-				shuffledAlignment[i][j] = shuffledColumns[j][i];
+	/**
+	 * Builds new rows made of the given columns of this alignment, in 
+	 * the given order. Columns may be repeated. Each row is filled 
+	 * directly from the corresponding row of this alignment.
+	 * 
+	 * @param columnOrder
+	 * @return
+	 */
+	private byte[][] getColumnsInOrder(int[] columnOrder) {
+		byte[][] r = new byte[getNTax()][columnOrder.length];
+		for(int i = 0; i < r.length; i++) {
+			byte[] sourceRow = getSequenceBytes(i);
+			byte[] row = r[i];
+			for(int j = 0; j < row.length; j++) {
+				row[j] = sourceRow[columnOrder[j]];
 			}
 		}
-
-		r = new SequenceAlignment(shuffledAlignment, getSequenceTitles());
-		r.setTaxa(getTaxa());
-		r.setName(getName()+ "_shuffled");
-
 		return r;
 	}
 
@@ -1039,30 +1383,19 @@ public class SequenceAlignment {
 		this.stepsPerSite = stepsPerSite;
 	}
 
+	/**
+	 * Returns the similarity score for each pair of sequences, using the
+	 * given score matrix. The scores are calculated in parallel by
+	 * PairwiseScores.
+	 * 
+	 * @param scoreMatrix
+	 * @return
+	 */
 	public double[][] getPairwiseScores(int[][] scoreMatrix) {
 		double[][] r = null;
-		//convert sequences to ints
-		int[][] sequenceInts = new int[getNTax()][];
 		padSequencesIfNeeded();
-		for(int i = 0; i < sequenceInts.length; i++) {
-			sequenceInts[i] = 
-				AlignmentUtilities.
-				convertAminaAcidSequenceToInts(getSequenceString(i));
-		}
-
-		//calculate score for each pair of sequences, using the scorMatirx
-		r = new double[sequenceInts.length][sequenceInts.length];
-		for(int i = 0; i < r.length; i++) {
-			Arrays.fill(r[i], -1f);
-			for(int j = 0; j < r[i].length; j++) {
-				//calculate the score for the pair (i,j) by summing the
-				//scores for each position
-				for(int k = 0; k < sequenceInts[i].length; k++) {
-					r[i][j] += 
-						scoreMatrix[sequenceInts[i][k]][sequenceInts[j][k]];
-				}
-			}
-		}
+		PairwiseScores scores = new PairwiseScores(this, scoreMatrix);
+		r = scores.getMatrix();
 		return r;
 	}
 
@@ -1073,11 +1406,13 @@ public class SequenceAlignment {
 	 */
 	public double getProportionGapOrMissing() {
 		double r = 0;
-		int totalChars = alignedSequenceChars.length * alignedSequenceChars[0].length;
+		int ntax = getNTax();
+		int totalChars = ntax * getLength();
 		int gapOrMissing = 0;
-		for(int i = 0; i < alignedSequenceChars.length; i++) {
-			for(int j = 0; j < alignedSequenceChars[i].length; j++) {
-				switch(alignedSequenceChars[i][j]) {
+		for(int i = 0; i < ntax; i++) {
+			byte[] row = getSequenceBytes(i);
+			for(int j = 0; j < row.length; j++) {
+				switch(row[j]) {
 				case GAP_CHAR:
 					gapOrMissing++;
 					break;
@@ -0,0 +1,189 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.util.Arrays;
+
+/**
+ * The distinct site patterns (columns) of a SequenceAlignment. Identical
+ * columns are stored once, with a count of how many times each occurs,
+ * and a map from each column of the alignment to its pattern.
+ *
+ * Patterns are numbered in order of their first occurrence in the
+ * alignment. Each pattern is stored as a byte[] with one entry per
+ * sequence, in the stored byte form used by SequenceAlignment.
+ *
+ * @author enordber
+ *
+ */
+public class SitePatternIndex {
+
+	/*
+	 * number of columns transposed at a time while reading the alignment
+	 */
+	private static final int BLOCK_SIZE = 256;
+
+	private int ntax;
+	private byte[][] patterns;
+	private int[] patternCounts;
+	private int[] columnToPattern;
+
+	/*
+	 * open-addressed hash table of pattern index + 1, with 0 marking an
+	 * empty slot. Only used while the index is built.
+	 */
+	private int[] slots;
+	private long[] patternHashes;
+	private int patternCount;
+
+	public SitePatternIndex(SequenceAlignment alignment) {
+		ntax = alignment.getNTax();
+		int length = alignment.getLength();
+		columnToPattern = new int[length];
+		patterns = new byte[Math.max(16, length/4)][];
+		patternCounts = new int[patterns.length];
+		patternHashes = new long[patterns.length];
+		int capacity = 16;
+		while(capacity < length*2) {
+			capacity <<= 1;
+		}
+		slots = new int[capacity];
+
+		byte[][] rows = new byte[ntax][];
+		for(int i = 0; i < ntax; i++) {
+			rows[i] = alignment.getSequenceBytes(i);
+		}
+
+		//read the columns in blocks, so each row is read sequentially
+		byte[][] block = new byte[Math.min(BLOCK_SIZE, Math.max(1, length))][ntax];
+		for(int blockStart = 0; blockStart < length; blockStart += BLOCK_SIZE) {
+			int blockEnd = Math.min(length, blockStart + BLOCK_SIZE);
+			for(int i = 0; i < ntax; i++) {
+				byte[] row = rows[i];
+				for(int j = blockStart; j < blockEnd; j++) {
+					block[j-blockStart][i] = row[j];
+				}
+			}
+			for(int j = blockStart; j < blockEnd; j++) {
+				columnToPattern[j] = addColumn(block[j-blockStart]);
+			}
+		}
+
+		patterns = Arrays.copyOf(patterns, patternCount);
+		patternCounts = Arrays.copyOf(patternCounts, patternCount);
+		slots = null;
+		patternHashes = null;
+	}
+
+	/**
+	 * Finds the pattern matching the column, adding a copy of the
+	 * column as a new pattern if there is none. The count for the
+	 * pattern is incremented, and its index is returned.
+	 */
+	private int addColumn(byte[] column) {
+		int r = -1;
+		long hash = getHash(column);
+		int mask = slots.length - 1;
+		int slot = (int)hash & mask;
+		while(r < 0) {
+			int entry = slots[slot];
+			if(entry == 0) {
+				r = patternCount;
+				if(r == patterns.length) {
+					int newSize = patterns.length*2;
+					patterns = Arrays.copyOf(patterns, newSize);
+					patternCounts = Arrays.copyOf(patternCounts, newSize);
+					patternHashes = Arrays.copyOf(patternHashes, newSize);
+				}
+				patterns[r] = column.clone();
+				patternHashes[r] = hash;
+				slots[slot] = r + 1;
+				patternCount++;
+			} else if(patternHashes[entry-1] == hash &&
+					Arrays.equals(patterns[entry-1], column)) {
+				r = entry-1;
+			} else {
+				slot = (slot + 1) & mask;
+			}
+		}
+		patternCounts[r]++;
+		return r;
+	}
+
+	private static long getHash(byte[] column) {
+		long r = 0x9E3779B97F4A7C15L;
+		for(int i = 0; i < column.length; i++) {
+			r = (r ^ column[i]) * 0x100000001B3L;
+		}
+		//final mix, so the low bits used for the slot depend on all bytes
+		r ^= r >>> 33;
+		r *= 0xFF51AFD7ED558CCDL;
+		r ^= r >>> 33;
+		return r;
+	}
+
+	/**
+	 * Returns the number of sequences in each pattern.
+	 */
+	public int getNTax() {
+		return ntax;
+	}
+
+	/**
+	 * Returns the number of columns in the indexed alignment.
+	 */
+	public int getLength() {
+		return columnToPattern.length;
+	}
+
+	/**
+	 * Returns the number of distinct site patterns.
+	 */
+	public int getPatternCount() {
+		return patterns.length;
+	}
+
+	/**
+	 * Returns the pattern with the given index. This is not a copy,
+	 * and must not be modified.
+	 */
+	public byte[] getPattern(int patternIndex) {
+		return patterns[patternIndex];
+	}
+
+	/**
+	 * Returns the number of columns in the alignment that have each
+	 * pattern. This is not a copy, and must not be modified.
+	 */
+	public int[] getPatternCounts() {
+		return patternCounts;
+	}
+
+	/**
+	 * Returns the index of the pattern of the given column.
+	 */
+	public int getPatternForColumn(int column) {
+		return columnToPattern[column];
+	}
+
+	/**
+	 * Returns the pattern index for each column of the alignment. This
+	 * is not a copy, and must not be modified.
+	 */
+	public int[] getColumnToPattern() {
+		return columnToPattern;
+	}
+
+	/**
+	 * Returns the number of times each pattern occurs in the columns
+	 * from (inclusive) to to (exclusive), added to the counts in weights.
+	 * If weights is null, a new array is created.
+	 */
+	public int[] addPatternCounts(int from, int to, int[] weights) {
+		if(weights == null) {
+			weights = new int[patterns.length];
+		}
+		for(int i = from; i < to; i++) {
+			weights[columnToPattern[i]]++;
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,311 @@
+package edu.vt.vbi.ci.pepr.alignment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A SequenceAlignment defined by a weight for each pattern of a
+ * SitePatternIndex, as produced by a PatternResampler. Pattern p
+ * contributes weights[p] identical columns, in pattern order. No
+ * alignment matrix is stored; each row is built from the patterns
+ * when it is requested, so a replicate costs only its weight vector
+ * until it is written out.
+ *
+ * Sequences that have only missing data in the weighted patterns
+ * (for example, taxa that are not present in any of the genes chosen
+ * for a gene-wise jackknife replicate) are left out.
+ *
+ * The replicate is a view of the patterns. It is copied into a normal
+ * alignment matrix by materialize(), which is done automatically if the
+ * alignment is modified. The weights and patterns still describe the
+ * replicate as it was created.
+ *
+ * @author enordber
+ *
+ */
+public class WeightedPatternAlignment extends SequenceAlignment {
+
+	private SitePatternIndex patternIndex;
+	private int[] weights;
+
+	/*
+	 * the patterns with non-zero weight, and the first column of each
+	 * in this alignment. columnStarts has one extra entry, for the length.
+	 */
+	private int[] usedPatterns;
+	private int[] columnStarts;
+
+	/*
+	 * index of each sequence of this alignment in the patterns
+	 */
+	private int[] rows;
+
+	/*
+	 * true if rows are built from the patterns, rather than stored in
+	 * this alignment
+	 */
+	private boolean view = true;
+
+	/**
+	 * @param patternIndex patterns of the source alignment
+	 * @param weights number of columns for each pattern
+	 * @param titles titles for each sequence of the source alignment
+	 * @param taxa taxa for each sequence of the source alignment.
+	 *             May be null.
+	 */
+	public WeightedPatternAlignment(SitePatternIndex patternIndex,
+			int[] weights, String[] titles, String[] taxa) {
+		super();
+		this.patternIndex = patternIndex;
+		this.weights = weights;
+
+		int used = 0;
+		for(int i = 0; i < weights.length; i++) {
+			if(weights[i] > 0) {
+				used++;
+			}
+		}
+		usedPatterns = new int[used];
+		columnStarts = new int[used+1];
+		used = 0;
+		for(int i = 0; i < weights.length; i++) {
+			if(weights[i] > 0) {
+				usedPatterns[used] = i;
+				columnStarts[used+1] = columnStarts[used] + weights[i];
+				used++;
+			}
+		}
+
+		//keep only the sequences with some data in the used patterns
+		boolean[] hasData = new boolean[patternIndex.getNTax()];
+		for(int i = 0; i < usedPatterns.length; i++) {
+			byte[] pattern = patternIndex.getPattern(usedPatterns[i]);
+			for(int j = 0; j < pattern.length; j++) {
+				if(pattern[j] != MISSING_CHAR) {
+					hasData[j] = true;
+				}
+			}
+		}
+		int rowCount = 0;
+		for(int i = 0; i < hasData.length; i++) {
+			if(hasData[i]) {
+				rowCount++;
+			}
+		}
+		rows = new int[rowCount];
+		String[] rowTitles = new String[rowCount];
+		String[] rowTaxa = null;
+		if(taxa != null) {
+			rowTaxa = new String[rowCount];
+		}
+		rowCount = 0;
+		for(int i = 0; i < hasData.length; i++) {
+			if(hasData[i]) {
+				rows[rowCount] = i;
+				rowTitles[rowCount] = titles[i];
+				if(taxa != null) {
+					rowTaxa[rowCount] = taxa[i];
+				}
+				rowCount++;
+			}
+		}
+		setTitles(rowTitles);
+		if(rowTaxa != null) {
+			setTaxa(rowTaxa);
+		}
+	}
+
+	/**
+	 * Returns the weight of each pattern. This is not a copy.
+	 */
+	public int[] getWeights() {
+		return weights;
+	}
+
+	public SitePatternIndex getPatternIndex() {
+		return patternIndex;
+	}
+
+	/**
+	 * Returns true if the rows of this alignment are built from the
+	 * patterns when they are requested.
+	 */
+	public boolean isView() {
+		return view;
+	}
+
+	/**
+	 * Copies the rows of the view into a new alignment matrix, so it is
+	 * no longer a view. This does nothing if this is not a view.
+	 */
+	public synchronized void materialize() {
+		if(view) {
+			byte[][] matrix = new byte[rows.length][];
+			for(int i = 0; i < matrix.length; i++) {
+				matrix[i] = getSequenceBytes(i);
+			}
+			setAlignedSequenceBytes(matrix);
+		}
+	}
+
+	void setAlignedSequenceBytes(byte[][] alignedSequences) {
+		view = false;
+		super.setAlignedSequenceBytes(alignedSequences);
+	}
+
+	protected void setAlignedSequences(char[][] alignedSequences) {
+		view = false;
+		super.setAlignedSequences(alignedSequences);
+	}
+
+	public void addSequence(String sequence, String title) {
+		materialize();
+		super.addSequence(sequence, title);
+	}
+
+	public void removeSequence(int index) {
+		materialize();
+		super.removeSequence(index);
+	}
+
+	public int getNTax() {
+		int r = 0;
+		if(view) {
+			r = rows.length;
+		} else {
+			r = super.getNTax();
+		}
+		return r;
+	}
+
+	public int getLength() {
+		int r = 0;
+		if(view) {
+			r = columnStarts[usedPatterns.length];
+		} else {
+			r = super.getLength();
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the index in usedPatterns of the pattern that provides
+	 * the given column.
+	 */
+	private int getUsedPatternIndex(int pos) {
+		int r = Arrays.binarySearch(columnStarts, 0, usedPatterns.length, pos);
+		if(r < 0) {
+			//not the first column of a pattern
+			r = -r - 2;
+		}
+		return r;
+	}
+
+	public byte getByte(int seq, int pos) {
+		byte r = 0;
+		if(view) {
+			int pattern = usedPatterns[getUsedPatternIndex(pos)];
+			r = patternIndex.getPattern(pattern)[rows[seq]];
+		} else {
+			r = super.getByte(seq, pos);
+		}
+		return r;
+	}
+
+	public char getChar(int seq, int pos) {
+		return (char)(getByte(seq, pos) & 0xff);
+	}
+
+	public char[] getColumn(int columnIndex) {
+		char[] r = null;
+		if(view) {
+			if(columnIndex > -1 && columnIndex < getLength()) {
+				byte[] pattern = patternIndex.getPattern(
+						usedPatterns[getUsedPatternIndex(columnIndex)]);
+				r = new char[rows.length];
+				for(int i = 0; i < r.length; i++) {
+					r[i] = (char)(pattern[rows[i]] & 0xff);
+				}
+			}
+		} else {
+			r = super.getColumn(columnIndex);
+		}
+		return r;
+	}
+
+	public byte[] getColumnBytes(int columnIndex, byte[] dest) {
+		if(view) {
+			if(dest == null || dest.length < rows.length) {
+				dest = new byte[rows.length];
+			}
+			byte[] pattern = patternIndex.getPattern(
+					usedPatterns[getUsedPatternIndex(columnIndex)]);
+			for(int i = 0; i < rows.length; i++) {
+				dest[i] = pattern[rows[i]];
+			}
+		} else {
+			dest = super.getColumnBytes(columnIndex, dest);
+		}
+		return dest;
+	}
+
+	/**
+	 * Returns the row for the sequence at the given index. For a view,
+	 * the row is built on each call.
+	 */
+	byte[] getSequenceBytes(int index) {
+		byte[] r = null;
+		if(view) {
+			r = new byte[getLength()];
+			int row = rows[index];
+			for(int i = 0; i < usedPatterns.length; i++) {
+				byte residue = patternIndex.getPattern(usedPatterns[i])[row];
+				int start = columnStarts[i];
+				int end = columnStarts[i+1];
+				if(end - start == 1) {
+					r[start] = residue;
+				} else {
+					Arrays.fill(r, start, end, residue);
+				}
+			}
+		} else {
+			r = super.getSequenceBytes(index);
+		}
+		return r;
+	}
+
+	/**
+	 * For a view, writes the row as runs of each pattern's residue,
+	 * without building the row.
+	 */
+	void putSequenceBytes(int index, ByteBuffer buffer,
+			WritableByteChannel channel) throws IOException {
+		if(view) {
+			int row = rows[index];
+			for(int i = 0; i < usedPatterns.length; i++) {
+				byte residue = patternIndex.getPattern(usedPatterns[i])[row];
+				putRepeatedByte(residue, columnStarts[i+1] - columnStarts[i],
+						buffer, channel);
+			}
+		} else {
+			super.putSequenceBytes(index, buffer, channel);
+		}
+	}
+
+	public String getSequenceString(int index) {
+		String r = null;
+		if(!view) {
+			r = super.getSequenceString(index);
+		} else if(index < rows.length) {
+			r = new String(getSequenceBytes(index), StandardCharsets.ISO_8859_1);
+		} else {
+			System.out.println("WeightedPatternAlignment.getSequenceString() " +
+					"requested sequence at index " + index + ", but this " +
+					"alignment only has " + rows.length + " aligned sequences.");
+		}
+		return r;
+	}
+}
@@ -267,10 +267,37 @@ public class Bipartition implements Comparable{
 		useParticipatingTaxonSetForEqualityCheck = b;
 	}
 
+	/**
+	 * Orders by descending hash code, then by the smaller side and the
+	 * larger side, so only Bipartitions with equal sides compare as 0.
+	 * The hash codes are compared directly, rather than subtracted, 
+	 * which could overflow.
+	 */
 	public int compareTo(Object o) {
 		int r = 0;
 		Bipartition otherBP = (Bipartition) o;
-		r = otherBP.hashCode() - this.hashCode();
+		int hash = this.hashCode();
+		int otherHash = otherBP.hashCode();
+		r = hash > otherHash ? -1 : (hash == otherHash ? 0 : 1);
+		if(r == 0) {
+			r = compareBits(getSmallerSide(), otherBP.getSmallerSide());
+		}
+		if(r == 0) {
+			r = compareBits(getLargerSide(), otherBP.getLargerSide());
+		}
+		return r;
+	}
+
+	private static int compareBits(ExtendedBitSet a, ExtendedBitSet b) {
+		int r = 0;
+		long[] aWords = a.toLongArray();
+		long[] bWords = b.toLongArray();
+		r = aWords.length - bWords.length;
+		for(int i = aWords.length-1; r == 0 && i >= 0; i--) {
+			if(aWords[i] != bWords[i]) {
+				r = Long.compareUnsigned(aWords[i], bWords[i]) < 0 ? -1 : 1;
+			}
+		}
 		return r;
 	}
 	
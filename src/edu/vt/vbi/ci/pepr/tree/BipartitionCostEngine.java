@@ -0,0 +1,195 @@
+package edu.vt.vbi.ci.pepr.tree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the cost of Bipartitions against a fixed, counted set of
+ * reference Bipartitions. The cost of a Bipartition is the total count
+ * of the reference Bipartitions it is not compatible with, as returned
+ * by BipartitionSet.getCost().
+ *
+ * The canonical sides of the reference Bipartitions are copied into one
+ * array of words, with their cardinalities and counts in parallel arrays,
+ * so each cost is a single loop of popcounts over that array. Costs
+ * returned by getCost() are remembered for the most recently used
+ * CACHE_SIZE Bipartitions. getCosts() evaluates a batch of Bipartitions
+ * in parallel in the common ForkJoinPool.
+ * The batch does not use the remembered costs, as calculating a cost
+ * takes about as long as looking it up under the lock.
+ *
+ * @author enordber
+ *
+ */
+public class BipartitionCostEngine {
+
+	/*
+	 * maximum number of remembered costs
+	 */
+	private static final int CACHE_SIZE = 1 << 16;
+
+	/*
+	 * number of Bipartitions evaluated by each parallel task
+	 */
+	private static final int QUERIES_PER_TASK = 256;
+
+	private int size;
+	private int wordCount;
+	private int referenceCount;
+	/*
+	 * canonical side of reference Bipartition i is in
+	 * words[i*wordCount] to words[(i+1)*wordCount - 1]
+	 */
+	private long[] words;
+	private int[] cardinalities;
+	private int[] counts;
+
+	/*
+	 * Key: PackedBipartition
+	 * value: Integer - cost of the Bipartition
+	 */
+	private Map<PackedBipartition,Integer> costCache;
+
+	/**
+	 * @param references distinct reference Bipartitions, all with the
+	 *                   same number of taxa
+	 * @param counts number of times each reference Bipartition occurs
+	 */
+	public BipartitionCostEngine(PackedBipartition[] references, int[] counts) {
+		referenceCount = references.length;
+		if(referenceCount > 0) {
+			size = references[0].getSize();
+		}
+		wordCount = PackedBipartition.getWordCount(size);
+		words = new long[referenceCount*wordCount];
+		cardinalities = new int[referenceCount];
+		this.counts = new int[referenceCount];
+		for(int i = 0; i < referenceCount; i++) {
+			for(int j = 0; j < wordCount; j++) {
+				words[i*wordCount + j] = references[i].getWord(j);
+			}
+			cardinalities[i] = references[i].getCardinality();
+			this.counts[i] = counts[i];
+		}
+		costCache = new LinkedHashMap<PackedBipartition,Integer>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<PackedBipartition,Integer> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	public int getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * Returns the total count of the reference Bipartitions that are not
+	 * compatible with the given Bipartition.
+	 *
+	 * @param bipartition
+	 * @return
+	 */
+	public int getCost(PackedBipartition bipartition) {
+		int r = 0;
+		Integer cached = null;
+		synchronized(costCache) {
+			cached = costCache.get(bipartition);
+		}
+		if(cached != null) {
+			r = cached.intValue();
+		} else {
+			r = calculateCost(bipartition);
+			synchronized(costCache) {
+				costCache.put(bipartition, Integer.valueOf(r));
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the cost of each of the given Bipartitions. Long arrays
+	 * are split into ranges that are evaluated in parallel.
+	 * The costs are not remembered.
+	 *
+	 * @param bipartitions
+	 * @return
+	 */
+	public int[] getCosts(PackedBipartition[] bipartitions) {
+		int[] r = new int[bipartitions.length];
+		CostTask task = new CostTask(bipartitions, r, 0, bipartitions.length);
+		if(bipartitions.length <= QUERIES_PER_TASK) {
+			task.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+		return r;
+	}
+
+	private int calculateCost(PackedBipartition bipartition) {
+		int r = 0;
+		int cardinality = bipartition.getCardinality();
+		if(wordCount == 1) {
+			long query = bipartition.getWord(0);
+			for(int i = 0; i < referenceCount; i++) {
+				int and = Long.bitCount(words[i] & query);
+				if(and != 0 && and != cardinality && and != cardinalities[i]) {
+					r += counts[i];
+				}
+			}
+		} else {
+			long[] query = new long[wordCount];
+			for(int j = 0; j < wordCount; j++) {
+				query[j] = bipartition.getWord(j);
+			}
+			int offset = 0;
+			for(int i = 0; i < referenceCount; i++) {
+				int and = 0;
+				for(int j = 0; j < wordCount; j++) {
+					and += Long.bitCount(words[offset + j] & query[j]);
+				}
+				if(and != 0 && and != cardinality && and != cardinalities[i]) {
+					r += counts[i];
+				}
+				offset += wordCount;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Evaluates a range of query Bipartitions, splitting the range so
+	 * parts are evaluated in parallel.
+	 */
+	private class CostTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private PackedBipartition[] queries;
+		private int[] costs;
+		private int from;
+		private int to;
+
+		CostTask(PackedBipartition[] queries, int[] costs, int from, int to) {
+			this.queries = queries;
+			this.costs = costs;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= QUERIES_PER_TASK) {
+				for(int i = from; i < to; i++) {
+					costs[i] = calculateCost(queries[i]);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new CostTask(queries, costs, from, middle),
+						new CostTask(queries, costs, middle, to));
+			}
+		}
+	}
+}
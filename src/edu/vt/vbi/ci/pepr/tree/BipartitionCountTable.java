@@ -0,0 +1,215 @@
+package edu.vt.vbi.ci.pepr.tree;
+
+import java.util.Arrays;
+
+/**
+ * Counts of distinct PackedBipartitions, in a primitive open-addressed
+ * table keyed by the 64-bit fingerprint of each Bipartition.
+ *
+ * Each distinct Bipartition is given an id when it is first added, in
+ * order from 0, and its count is kept in an int array indexed by id,
+ * so nothing is boxed. Slots hold a fingerprint and the id + 1, with
+ * 0 marking an empty slot. Two Bipartitions may share a fingerprint,
+ * so a matching fingerprint is always checked against the stored
+ * Bipartition, and probing continues if they differ.
+ *
+ * @author enordber
+ *
+ */
+public class BipartitionCountTable {
+
+	private long[] slotFingerprints;
+	private int[] slotIds;
+
+	/*
+	 * Bipartitions and counts, indexed by id. Only the first
+	 * size entries are used.
+	 */
+	private PackedBipartition[] bipartitions;
+	private int[] counts;
+	private int size;
+
+	public BipartitionCountTable() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize number of distinct Bipartitions expected
+	 */
+	public BipartitionCountTable(int expectedSize) {
+		int slotCount = 16;
+		while(slotCount < expectedSize*2) {
+			slotCount <<= 1;
+		}
+		slotFingerprints = new long[slotCount];
+		slotIds = new int[slotCount];
+		bipartitions = new PackedBipartition[Math.max(16, expectedSize)];
+		counts = new int[bipartitions.length];
+	}
+
+	/**
+	 * Returns the number of distinct Bipartitions.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds count to the count for the Bipartition, adding the Bipartition
+	 * if it is not already in the table.
+	 *
+	 * @param bipartition
+	 * @param count
+	 * @return the id of the Bipartition
+	 */
+	public int add(PackedBipartition bipartition, int count) {
+		int r = -1;
+		long fingerprint = bipartition.getFingerprint();
+		int slot = findSlot(bipartition, fingerprint);
+		if(slotIds[slot] != 0) {
+			r = slotIds[slot] - 1;
+		} else {
+			r = size;
+			if(size == bipartitions.length) {
+				PackedBipartition[] newBipartitions =
+					new PackedBipartition[size*2];
+				System.arraycopy(bipartitions, 0, newBipartitions, 0, size);
+				bipartitions = newBipartitions;
+				int[] newCounts = new int[size*2];
+				System.arraycopy(counts, 0, newCounts, 0, size);
+				counts = newCounts;
+			}
+			bipartitions[r] = bipartition;
+			size++;
+			slotFingerprints[slot] = fingerprint;
+			slotIds[slot] = size;
+			if(size*2 > slotIds.length) {
+				grow();
+			}
+		}
+		counts[r] += count;
+		return r;
+	}
+
+	/**
+	 * Returns the id of the Bipartition, or -1 if it is not in the table.
+	 */
+	public int getId(PackedBipartition bipartition) {
+		int slot = findSlot(bipartition, bipartition.getFingerprint());
+		return slotIds[slot] - 1;
+	}
+
+	/**
+	 * Returns the count for the Bipartition, or 0 if it is not
+	 * in the table.
+	 */
+	public int getCount(PackedBipartition bipartition) {
+		int r = 0;
+		int id = getId(bipartition);
+		if(id >= 0) {
+			r = counts[id];
+		}
+		return r;
+	}
+
+	public int getCount(int id) {
+		return counts[id];
+	}
+
+	public PackedBipartition getBipartition(int id) {
+		return bipartitions[id];
+	}
+
+	/**
+	 * Returns the distinct Bipartitions, indexed by id.
+	 */
+	public PackedBipartition[] getBipartitions() {
+		PackedBipartition[] r = new PackedBipartition[size];
+		System.arraycopy(bipartitions, 0, r, 0, size);
+		return r;
+	}
+
+	/**
+	 * Returns the counts, indexed by id.
+	 */
+	public int[] getCounts() {
+		int[] r = new int[size];
+		System.arraycopy(counts, 0, r, 0, size);
+		return r;
+	}
+
+	/**
+	 * Returns a new table with the topN most frequent Bipartitions, in
+	 * the same order. If the count of the last one kept is shared by
+	 * others, they are all kept, so more than topN may be kept.
+	 *
+	 * @param topN
+	 * @return
+	 */
+	public BipartitionCountTable getTop(int topN) {
+		int cutoff = getCountCutoff(topN);
+		int kept = 0;
+		for(int i = 0; i < size; i++) {
+			if(counts[i] >= cutoff) {
+				kept++;
+			}
+		}
+		BipartitionCountTable r = new BipartitionCountTable(kept);
+		for(int i = 0; i < size; i++) {
+			if(counts[i] >= cutoff) {
+				r.add(bipartitions[i], counts[i]);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the lowest count that is kept by getTop(topN). This is the
+	 * topN-th highest count, 1 if topN is at least the number of
+	 * Bipartitions, or Integer.MAX_VALUE if topN is less than 1.
+	 */
+	private int getCountCutoff(int topN) {
+		int r = 1;
+		if(topN < 1) {
+			r = Integer.MAX_VALUE;
+		} else if(topN < size) {
+			int[] sorted = getCounts();
+			Arrays.sort(sorted);
+			r = sorted[size - topN];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the slot holding the Bipartition, or the empty slot where
+	 * it would be added.
+	 */
+	private int findSlot(PackedBipartition bipartition, long fingerprint) {
+		int mask = slotIds.length - 1;
+		int slot = (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+		while(slotIds[slot] != 0 && (slotFingerprints[slot] != fingerprint ||
+				!bipartitions[slotIds[slot]-1].equals(bipartition))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldFingerprints = slotFingerprints;
+		int[] oldIds = slotIds;
+		slotFingerprints = new long[oldFingerprints.length*2];
+		slotIds = new int[slotFingerprints.length];
+		int mask = slotIds.length - 1;
+		for(int i = 0; i < oldIds.length; i++) {
+			if(oldIds[i] != 0) {
+				int slot = (int)(oldFingerprints[i] ^
+						(oldFingerprints[i] >>> 32)) & mask;
+				while(slotIds[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slotFingerprints[slot] = oldFingerprints[i];
+				slotIds[slot] = oldIds[i];
+			}
+		}
+	}
+}
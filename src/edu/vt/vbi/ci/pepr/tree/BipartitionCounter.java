@@ -0,0 +1,274 @@
+package edu.vt.vbi.ci.pepr.tree;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Counts the bipartitions (splits) found in a series of trees, for
+ * adding support values to a main tree.
+ *
+ * Each taxon is given a random 64-bit key, and the leaves below a node
+ * are identified by the XOR of their keys. These hashes are computed for
+ * every node in a single postorder pass, and counted in a primitive
+ * open-addressed table, so each tree costs time proportional to its
+ * number of nodes and no per-node objects are created. Trees can be
+ * added one at a time as they are read or built, from any Thread, and
+ * are not kept.
+ *
+ * The two sides of a bipartition have hashes h and h ^ k, where k is the
+ * XOR of the keys of all taxa in the main tree. The count for a
+ * bipartition is the sum of the counts for both sides, so it does not
+ * matter which side is below the node in each tree. Different
+ * bipartitions could in principle share a hash, but with 64-bit keys the
+ * chance of this is negligible for any realistic number of bipartitions.
+ *
+ * If the counter is created with a list of taxa, leaves with other
+ * labels are ignored, as are their contributions to their ancestors'
+ * bipartitions. If it is created without taxa, every label is given a
+ * key when it is first seen. This is for counting support trees before
+ * the main tree is available, and assumes every label in the support
+ * trees is also in the main tree.
+ *
+ * @author enordber
+ *
+ */
+public class BipartitionCounter {
+
+	/*
+	 * fixed seed, so results are repeatable
+	 */
+	private static final long KEY_SEED = 0x5DEECE66DL;
+
+	private HashMap<String,Long> taxonToKey;
+	private Random random;
+	/*
+	 * true if labels not yet in taxonToKey are given new keys
+	 */
+	private boolean addNewTaxa;
+
+	/*
+	 * open-addressed count table. slotKeys[i] is only meaningful if
+	 * slotCounts[i] > 0. The hash 0 (no leaves below the node) is
+	 * counted separately, so 0 can mark empty slots.
+	 */
+	private long[] slotKeys;
+	private int[] slotCounts;
+	private int usedSlots;
+	private int zeroCount;
+
+	private int treeCount;
+
+	/**
+	 * Creates a counter that gives a key to each label when it is first
+	 * seen. Use this when the main tree is not yet known.
+	 */
+	public BipartitionCounter() {
+		random = new Random(KEY_SEED);
+		taxonToKey = new HashMap<String,Long>();
+		addNewTaxa = true;
+		slotKeys = new long[1024];
+		slotCounts = new int[slotKeys.length];
+	}
+
+	/**
+	 * Creates a counter for the given taxa. Leaves with other labels
+	 * are ignored.
+	 *
+	 * @param taxa the taxa of the main tree
+	 */
+	public BipartitionCounter(String[] taxa) {
+		this();
+		for(int i = 0; i < taxa.length; i++) {
+			getKey(taxa[i]);
+		}
+		addNewTaxa = false;
+	}
+
+	/**
+	 * Returns the key for the taxon, or 0 if the taxon has no key and
+	 * new taxa are not being added.
+	 */
+	private long getKey(String taxon) {
+		long r = 0;
+		Long key = taxonToKey.get(taxon);
+		if(key != null) {
+			r = key.longValue();
+		} else if(addNewTaxa) {
+			r = random.nextLong();
+			taxonToKey.put(taxon, Long.valueOf(r));
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of trees added so far.
+	 */
+	public synchronized int getTreeCount() {
+		return treeCount;
+	}
+
+	/**
+	 * Returns the hash of the leaves below every node of the tree,
+	 * indexed by node. Nodes that are not connected to the rest of the
+	 * tree (for example, a root left over after unrooting) have no
+	 * descendant leaves, and get the hash 0.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	private long[] getNodeHashes(BasicTree tree) {
+		int[][] children = tree.getNodeChildPointers();
+		int[] parents = tree.getNodeParentPointers();
+		String[] leafLabels = tree.getLeaves();
+		int nodeCount = children.length;
+		long[] r = new long[nodeCount];
+
+		//iterative postorder traversal from each node without a parent.
+		//A node is finished when it is popped for the second time.
+		int[] stack = new int[nodeCount*2 + 2];
+		boolean[] expanded = new boolean[nodeCount];
+		for(int start = 0; start < nodeCount; start++) {
+			if(parents[start] != BasicTree.NO_PARENT_INDICATOR) {
+				continue;
+			}
+			int top = 0;
+			stack[top++] = start;
+			while(top > 0) {
+				int node = stack[top-1];
+				if(!expanded[node]) {
+					expanded[node] = true;
+					for(int i = children[node].length-1; i >= 0; i--) {
+						stack[top++] = children[node][i];
+					}
+				} else {
+					top--;
+					long hash = 0;
+					if(children[node].length == 0) {
+						if(node < leafLabels.length) {
+							hash = getKey(leafLabels[node]);
+						}
+					} else {
+						for(int i = 0; i < children[node].length; i++) {
+							hash ^= r[children[node][i]];
+						}
+					}
+					r[node] = hash;
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Parses the tree string, unroots the tree and counts its
+	 * bipartitions. Only the counts are kept.
+	 *
+	 * @param treeString
+	 */
+	public void addTree(String treeString) {
+		BasicTree tree = new BasicTree(treeString);
+		tree.unroot();
+		addTree(tree);
+	}
+
+	/**
+	 * Counts the bipartitions for every node in the tree. The tree should
+	 * already be unrooted, if the main tree is.
+	 *
+	 * @param tree
+	 */
+	public synchronized void addTree(BasicTree tree) {
+		long[] hashes = getNodeHashes(tree);
+		for(int i = 0; i < hashes.length; i++) {
+			increment(hashes[i]);
+		}
+		treeCount++;
+	}
+
+	/**
+	 * Returns the number of counted nodes with the given hash
+	 * for the leaves below them.
+	 */
+	private int getCount(long hash) {
+		int r = 0;
+		if(hash == 0) {
+			r = zeroCount;
+		} else {
+			int slot = findSlot(hash);
+			r = slotCounts[slot];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of times the bipartition of each node of the
+	 * main tree has been counted, indexed by node.
+	 */
+	public synchronized int[] getNodeCounts(BasicTree mainTree) {
+		long[] hashes = getNodeHashes(mainTree);
+
+		//XOR of the keys of all distinct taxa in the main tree. This
+		//turns the hash for one side of a bipartition into the other
+		long allTaxaKey = 0;
+		String[] leafLabels = mainTree.getLeaves();
+		HashSet<String> seen = new HashSet<String>(leafLabels.length*2);
+		for(int i = 0; i < leafLabels.length; i++) {
+			if(seen.add(leafLabels[i])) {
+				allTaxaKey ^= getKey(leafLabels[i]);
+			}
+		}
+
+		int[] r = new int[hashes.length];
+		for(int i = 0; i < r.length; i++) {
+			r[i] = getCount(hashes[i]);
+			if(allTaxaKey != 0) {
+				r[i] += getCount(hashes[i] ^ allTaxaKey);
+			}
+		}
+		return r;
+	}
+
+	private void increment(long hash) {
+		if(hash == 0) {
+			zeroCount++;
+		} else {
+			int slot = findSlot(hash);
+			if(slotCounts[slot] == 0) {
+				slotKeys[slot] = hash;
+				usedSlots++;
+			}
+			slotCounts[slot]++;
+			if(usedSlots*2 > slotKeys.length) {
+				grow();
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot holding the hash, or the empty slot where
+	 * it would be added.
+	 */
+	private int findSlot(long hash) {
+		int mask = slotKeys.length - 1;
+		int slot = (int)(hash ^ (hash >>> 32)) & mask;
+		while(slotCounts[slot] != 0 && slotKeys[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = slotKeys;
+		int[] oldCounts = slotCounts;
+		slotKeys = new long[oldKeys.length*2];
+		slotCounts = new int[slotKeys.length];
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldCounts[i] != 0) {
+				int slot = findSlot(oldKeys[i]);
+				slotKeys[slot] = oldKeys[i];
+				slotCounts[slot] = oldCounts[i];
+			}
+		}
+	}
+}
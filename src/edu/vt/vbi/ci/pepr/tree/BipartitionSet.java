@@ -2,36 +2,55 @@ package edu.vt.vbi.ci.pepr.tree;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 
 import edu.vt.vbi.ci.pepr.alignment.SequenceAlignment;
-import edu.vt.vbi.ci.pepr.stats.StatisticsUtilities;
 
+/**
+ * A counted set of Bipartitions, with support and cost calculations used
+ * to find congruent sets of Bipartitions.
+ * 
+ * Bipartitions are stored internally as PackedBipartitions, so the
+ * all-against-all compatibility tests do not allocate. Methods that take
+ * or return a Bipartition convert to or from the packed form. The
+ * distinct Bipartitions and their counts are kept in a
+ * BipartitionCountTable, and the supports and costs are kept in arrays
+ * indexed by the id of each Bipartition in that table.
+ * 
+ * @author enordber
+ *
+ */
 public class BipartitionSet {
 
 	private String[] taxa;
 
 	/*
-	 * Key: Bipartition
-	 * value: Integer - number of times this Bipartition has been added
+	 * the distinct Bipartitions, with the number of times each
+	 * has been added
 	 */
-	private HashMap bipartitionToCount;
+	private BipartitionCountTable bipartitionCounts;
 
 	/*
-	 *Key: Bipartition
-	 *value: Double - ratio of non-conflicting columns to all columns for
-	 *                this Bipartition 
+	 * ratio of non-conflicting columns to all columns for each
+	 * Bipartition, indexed by id in bipartitionCounts. null until
+	 * calculated.
 	 */
-	private HashMap bipartitionToSupport;
+	private double[] supports;
 
 	/*
-	 * Key: Bipartition
-	 * value: Integer - cost for this Bipartition (number of changes needed in
-	 *                  complete set to make consistent with this Bipartition)
+	 * cost for each Bipartition (number of changes needed in complete
+	 * set to make consistent with this Bipartition), indexed by id in
+	 * bipartitionCounts. null until calculated.
 	 */
-	private HashMap bipartitionToCost;
+	private int[] costs;
+
+	/*
+	 * calculates costs against the Bipartitions in this set. Created
+	 * when first needed, and discarded when a Bipartition is added.
+	 */
+	private BipartitionCostEngine costEngine;
 
 	/*
 	 * Tracks if the support values need to be calculated, either because
@@ -40,22 +59,24 @@ public class BipartitionSet {
 	 */
 	private boolean supportCalculationNeeded = true;
 
-	private Bipartition[] bipartitions;
+	/*
+	 * All Bipartitions in the order they were added, including repeats.
+	 * Only the first bipartitionCount elements are used.
+	 */
+	private PackedBipartition[] bipartitions;
+	private int bipartitionCount;
 
 	/*
-	 * key: a Bipartition
-	 * value: ArrayList of all Bipartitions that are supertree-equivalent
-	 *        to the key Bipartition
-	 *        
-	 * The specific Bipartition used as the key is whichever one happens
-	 * to be added first.
+	 * number of Bipartitions added individually that are equivalent
+	 * to each Bipartition
 	 */
-	private HashMap equivalentBipartitionToIndividualBipartitionList;
+	private BipartitionCountTable equivalentBipartitionCounts;
 
 	public BipartitionSet() {
-		bipartitionToCount = new HashMap();
-		equivalentBipartitionToIndividualBipartitionList = new HashMap();
-		bipartitions = new Bipartition[0];
+		bipartitionCounts = new BipartitionCountTable();
+		equivalentBipartitionCounts = new BipartitionCountTable();
+		bipartitions = new PackedBipartition[16];
+		bipartitionCount = 0;
 	}
 
 	public BipartitionSet(Bipartition[] biparts) {
@@ -81,61 +102,44 @@ public class BipartitionSet {
 		setBipartitions(biparts, topN);
 	}
 
-	private void setBipartitions(Bipartition[] biparts, int topN) {
-		//sort bipartitions
-		//go through array keeping each unique bipart once, and keeping the 
-		//count of the number of times it is seen
-		int uniqueBipartCount = 0;
-		Bipartition previousBipart = null;
-		Arrays.sort(biparts);
-		for(int i = 0; i < biparts.length; i++) {
-			if(!biparts[i].equals(previousBipart)) {
-				uniqueBipartCount++;
-				previousBipart = biparts[i];
-			}
-		}
-
-		bipartitions = new Bipartition[uniqueBipartCount];
-		int[] bipartCounts = new int[uniqueBipartCount];
-		int index = -1;
-		for(int i = 0; i < biparts.length; i++) {
-			if(!biparts[i].equals(previousBipart)) {
-				index++;
-				bipartitions[index] = biparts[i];
-				previousBipart = biparts[i];
-			}
-			bipartCounts[index]++;
-		}
-
-		int[] countDistribution = StatisticsUtilities.getDistribution(bipartCounts);
-
-		//determine count cutoff
-		int countCutoff = 0;
-		int included = 0;
-		for(int i = countDistribution.length-1; i >= 0 && included < topN; i--) {
-			countCutoff = i;
-			included += countDistribution[i];
+	/**
+	 * Create a BipartitionSet with the topN most frequent of the given
+	 * distinct Bipartitions, as with BipartitionSet(Bipartition[], int).
+	 * Each Bipartition is given once, with the number of times it occurs.
+	 * 
+	 * @param uniqueBiparts distinct Bipartitions
+	 * @param counts number of times each Bipartition occurs
+	 * @param topN
+	 */
+	public BipartitionSet(PackedBipartition[] uniqueBiparts, int[] counts,
+			int topN) {
+		this();
+		BipartitionCountTable allCounts = 
+			new BipartitionCountTable(uniqueBiparts.length);
+		for(int i = 0; i < uniqueBiparts.length; i++) {
+			allCounts.add(uniqueBiparts[i], counts[i]);
 		}
+		keepTopBipartitions(allCounts, topN);
+	}
 
-		Bipartition[] topBiparts = new Bipartition[included];
-		int[] topCounts = new int[included];
-		index = -1;
-		for(int i = 0; i < bipartitions.length; i++) {
-			if(bipartCounts[i] >=countCutoff) {
-				index++;
-				topBiparts[index] = bipartitions[i];
-				topCounts[index] = bipartCounts[i];
-			}
+	private void setBipartitions(Bipartition[] bipartitionsIn, int topN) {
+		//count each unique bipart
+		BipartitionCountTable allCounts = new BipartitionCountTable();
+		for(int i = 0; i < bipartitionsIn.length; i++) {
+			allCounts.add(new PackedBipartition(bipartitionsIn[i]), 1);
 		}
+		keepTopBipartitions(allCounts, topN);
+	}
 
-		bipartitions = topBiparts;
-		bipartCounts = topCounts;
-
-		bipartitionToCount = new HashMap();
-		for(int i = 0; i < bipartitions.length; i++) {
-			Integer count = new Integer(bipartCounts[i]);
-			bipartitionToCount.put(bipartitions[i], count);
-		}
+	/**
+	 * Keeps the topN most frequent of the counted Bipartitions, along with
+	 * any others having the same count as the least frequent one kept.
+	 */
+	private void keepTopBipartitions(BipartitionCountTable allCounts,
+			int topN) {
+		bipartitionCounts = allCounts.getTop(topN);
+		bipartitions = bipartitionCounts.getBipartitions();
+		bipartitionCount = bipartitions.length;
 	}
 
 	public void add(Bipartition[] bipartitions) {
@@ -153,30 +157,30 @@ public class BipartitionSet {
 	 * @param bipartition
 	 */
 	public void add(Bipartition bipartition) {
-		Integer count = (Integer) bipartitionToCount.get(bipartition);
-
-		if(count == null) {
-			count = new Integer(1);
-			bipartitionToCount.put(bipartition, count);
-		} else {
-			count = new Integer(count.intValue()+1);
-			bipartitionToCount.put(bipartition, count);
-		}
-
-		ArrayList equivalentList = 
-			(ArrayList)equivalentBipartitionToIndividualBipartitionList.get(bipartition);
-		if(equivalentList == null) {
-			equivalentList = new ArrayList(1);
-			equivalentBipartitionToIndividualBipartitionList.put(bipartition, equivalentList);
-		}
-
-		equivalentList.ensureCapacity(equivalentList.size() + 1);
-		equivalentList.add(bipartition);
+		add(new PackedBipartition(bipartition));
+	}
 
-		Bipartition[] newBP = new Bipartition[bipartitions.length+1];
-		System.arraycopy(bipartitions, 0, newBP, 0, bipartitions.length);
-		newBP[bipartitions.length] = bipartition;
-		bipartitions = newBP;
+	/**
+	 * Add a PackedBipartition to the set. If this Bipartition has already
+	 * been added its count is incremented.
+	 * 
+	 * @param bipartition
+	 */
+	public void add(PackedBipartition bipartition) {
+		bipartitionCounts.add(bipartition, 1);
+		equivalentBipartitionCounts.add(bipartition, 1);
+		costEngine = null;
+		costs = null;
+		supports = null;
+
+		if(bipartitionCount == bipartitions.length) {
+			PackedBipartition[] newBP = 
+				new PackedBipartition[Math.max(16, bipartitions.length*2)];
+			System.arraycopy(bipartitions, 0, newBP, 0, bipartitionCount);
+			bipartitions = newBP;
+		}
+		bipartitions[bipartitionCount] = bipartition;
+		bipartitionCount++;
 	}
 
 	/**
@@ -197,21 +201,17 @@ public class BipartitionSet {
 	 * @return
 	 */
 	public Bipartition[] getNonTrivialBipartitions() {
-		Bipartition[] r = null;
-		HashSet biparts = new HashSet();
-		for(int i = 0; i < bipartitions.length; i++) {
-			biparts.add(bipartitions[i]);
-		}
+		return toBipartitions(getNonTrivialPackedBipartitions());
+	}
 
-		//remove trivial bipartitions
-		for(int i = 0; i < bipartitions.length; i++) {
-			int cardinality = bipartitions[i].getSmallerSide().cardinality();
-			if(cardinality <= 1 || cardinality >= taxa.length-1) {
-				biparts.remove(bipartitions[i]);
+	private Collection getNonTrivialPackedBipartitions() {
+		HashSet r = new HashSet();
+		for(int i = 0; i < bipartitionCount; i++) {
+			int cardinality = bipartitions[i].getCardinality();
+			if(cardinality > 1 && cardinality < taxa.length-1) {
+				r.add(bipartitions[i]);
 			}
 		}
-		r = new Bipartition[biparts.size()];
-		biparts.toArray(r);
 		return r;
 	}
 
@@ -219,11 +219,14 @@ public class BipartitionSet {
 	 * Prints information about all non-trivial Bipartitions.
 	 */
 	public void printNonTrivialBipartitionsAndCounts() {
-		printBipartitionsAndCounts(getNonTrivialBipartitions());
+		Collection nonTrivial = getNonTrivialPackedBipartitions();
+		PackedBipartition[] packed = new PackedBipartition[nonTrivial.size()];
+		nonTrivial.toArray(packed);
+		printBipartitionsAndCounts(packed);
 	}
 	
 	public void printBipartitionsAndCounts() {
-		printBipartitionsAndCounts(getBipartitions());
+		printBipartitionsAndCounts(getPackedBipartitions());
 	}
 
 	public SequenceAlignment getBipartitionsAsSequenceAlignment() {
@@ -233,11 +236,9 @@ public class BipartitionSet {
 		String missing = "?";
 
 		//determine total number of bipartitions (including duplicates)
-		Integer[] counts = new Integer[bipartitionToCount.size()];
-		bipartitionToCount.values().toArray(counts);
         int length = 0;
-        for(int i = 0; i < counts.length; i++) {
-        	length += counts[i].intValue();
+        for(int i = 0; i < bipartitionCounts.size(); i++) {
+        	length += bipartitionCounts.getCount(i);
         }
 		
 		int taxonCount = taxa.length;
@@ -249,11 +250,11 @@ public class BipartitionSet {
 			title = taxa[i];
 			sequenceBuffer = new StringBuffer();
 
-			for(int j = 0; j < bipartitions.length; j++) {
+			for(int j = 0; j < bipartitionCount; j++) {
 
-				if(bipartitions[j].getSmallerSide().get(i)) {
+				if(bipartitions[j].get(i)) {
 						sequenceBuffer.append(present);
-				} else if(bipartitions[j].getParticipatingTaxonSet().get(i)) {
+				} else if(bipartitions[j].isParticipating(i)) {
 						sequenceBuffer.append(absent);
 				} else {
 						sequenceBuffer.append(missing);
@@ -276,9 +277,9 @@ public class BipartitionSet {
 	 */
 	boolean isCompatible(Bipartition bp) {
 		boolean r = true;
-
-		for(int i = 0; r && i < bipartitions.length; i++) {
-			r = bipartitions[i].isSupertreeCompatible(bp);
+		PackedBipartition packed = new PackedBipartition(bp);
+		for(int i = 0; r && i < bipartitionCount; i++) {
+			r = bipartitions[i].isSupertreeCompatible(packed);
 		}
 		return r;
 	}
@@ -287,13 +288,13 @@ public class BipartitionSet {
 	 * 
 	 * @param biparts
 	 */
-	private void printBipartitionsAndCounts(Bipartition[] biparts) {
+	private void printBipartitionsAndCounts(PackedBipartition[] biparts) {
 		//print taxon list
 		for(int i = 0; i < taxa.length; i++) {
 			System.out.println(i + ": " + taxa[i]);
 		}
 		System.out.println();
-		Bipartition[] bipartitions = new Bipartition[biparts.length];
+		PackedBipartition[] bipartitions = new PackedBipartition[biparts.length];
 		System.arraycopy(biparts, 0, bipartitions, 0, biparts.length);
 		System.out.println("sort bipartitions...");
 		Arrays.sort(bipartitions, new BipartitionSupportComparator());
@@ -312,37 +313,57 @@ public class BipartitionSet {
 			sb.append(getCost(bipartitions[i]));
 			sb.append("\t");
 			sb.append(truncateDouble(getSupport(bipartitions[i]), 10000));
-			if(bipartitions[i].getParticipatingTaxonSet() != null) {
-				sb.append("\t");
-				sb.append(bipartitions[i].getParticipatingTaxonSet().getString(taxa.length));
+			sb.append("\t");
+			for(int j = 0; j < taxa.length; j++) {
+				sb.append(bipartitions[i].isParticipating(j) ? '*' : '.');
 			}
-			if(equivalentBipartitionToIndividualBipartitionList.containsKey(bipartitions[i])) {
-				ArrayList equivalentList = 
-					(ArrayList) equivalentBipartitionToIndividualBipartitionList.get(bipartitions[i]);
+			int equivalentCount = 
+				equivalentBipartitionCounts.getCount(bipartitions[i]);
+			if(equivalentCount > 0) {
 				sb.append("\t");
-				sb.append(equivalentList.size());
+				sb.append(equivalentCount);
 			} else {
 				sb.append("\t");
 				sb.append("");
 			}
 			sb.append("\t");
-			sb.append(bipartitions[i].getSmallerSide().toString());
+			sb.append(bipartitions[i].toBitSet().toString());
 			System.out.println(sb);
 		}
 	}
 
 	public int getCount(Bipartition bipartition) {
-		int r = 0;
-		Integer count = (Integer) bipartitionToCount.get(bipartition);
-		if(count != null) {
-			r = count.intValue();
-		}
-		return r;
+		return getCount(new PackedBipartition(bipartition));
+	}
+
+	public int getCount(PackedBipartition bipartition) {
+		return bipartitionCounts.getCount(bipartition);
 	}
 
 	public Bipartition[] getBipartitions() {
-		Bipartition[] r = new Bipartition[bipartitionToCount.size()];
-		bipartitionToCount.keySet().toArray(r);
+		return toBipartitions(getPackedBipartitions());
+	}
+
+	/**
+	 * Returns the distinct Bipartitions in this set, in packed form,
+	 * in the order they were first added.
+	 */
+	public PackedBipartition[] getPackedBipartitions() {
+		return bipartitionCounts.getBipartitions();
+	}
+
+	private static Bipartition[] toBipartitions(Collection packedBipartitions) {
+		PackedBipartition[] packed = 
+			new PackedBipartition[packedBipartitions.size()];
+		packedBipartitions.toArray(packed);
+		return toBipartitions(packed);
+	}
+
+	private static Bipartition[] toBipartitions(PackedBipartition[] packed) {
+		Bipartition[] r = new Bipartition[packed.length];
+		for(int i = 0; i < r.length; i++) {
+			r[i] = packed[i].toBipartition();
+		}
 		return r;
 	}
 
@@ -355,7 +376,7 @@ public class BipartitionSet {
 	 */
 	public BipartitionSet findCompatibleBipartitionSet() {
 		BipartitionSet r = null;
-		Bipartition[] biparts = getBipartitions();
+		PackedBipartition[] biparts = getPackedBipartitions();
 
 		calculateBipartitionCosts();
 		biparts = removeConflictorsForSupported(biparts, 0.5);
@@ -371,17 +392,18 @@ public class BipartitionSet {
 		String[] taxaCopy = new String[taxa.length];
 		System.arraycopy(taxa, 0, taxaCopy, 0, taxa.length);
 		r.setTaxa(taxaCopy);
-		r.bipartitionToSupport = new HashMap();
-		r.bipartitionToCost = new HashMap();
+		r.bipartitionCounts = new BipartitionCountTable(biparts.length);
+		r.supports = new double[biparts.length];
+		r.costs = new int[biparts.length];
 		for(int i = 0; i < biparts.length; i++) {
-			r.bipartitionToCount.put(biparts[i], 
-					bipartitionToCount.get(biparts[i]));
-			r.bipartitionToSupport.put(biparts[i],
-					bipartitionToSupport.get(biparts[i]));
-			r.bipartitionToCost.put(biparts[i], 
-					bipartitionToCost.get(biparts[i]));
-			r.equivalentBipartitionToIndividualBipartitionList.put(biparts[i], 
-					equivalentBipartitionToIndividualBipartitionList.get(biparts[i]));
+			int id = r.bipartitionCounts.add(biparts[i], getCount(biparts[i]));
+			r.supports[id] = getSupport(biparts[i]);
+			r.costs[id] = getCost(biparts[i]);
+			int equivalentCount = 
+				equivalentBipartitionCounts.getCount(biparts[i]);
+			if(equivalentCount > 0) {
+				r.equivalentBipartitionCounts.add(biparts[i], equivalentCount);
+			}
 		}
 		r.printNonTrivialBipartitionsAndCounts();
 		return r;
@@ -395,8 +417,8 @@ public class BipartitionSet {
 		//of the counts of the Bipartitions connected by the edge.
 
 		ArrayList nodePairList = new ArrayList();
-		for(int i = 0; i < bipartitions.length; i++) {
-			for(int j = i+1; j < bipartitions.length; j++) {
+		for(int i = 0; i < bipartitionCount; i++) {
+			for(int j = i+1; j < bipartitionCount; j++) {
 				if(bipartitions[i].isSupertreeCompatible(bipartitions[j]));
 				nodePairList.add(new Object[]{bipartitions[i], bipartitions[j]});
 			}
@@ -407,8 +429,8 @@ public class BipartitionSet {
 
 		double[] edgeWeights = new double[nodePairs.length];
 		for(int i = 0; i < edgeWeights.length; i++) {
-			edgeWeights[i] = getCount((Bipartition) nodePairs[i][0]) + 
-			getCount((Bipartition) nodePairs[i][1]);
+			edgeWeights[i] = getCount((PackedBipartition) nodePairs[i][0]) + 
+			getCount((PackedBipartition) nodePairs[i][1]);
 		}
 		return r;
 	}
@@ -421,9 +443,9 @@ public class BipartitionSet {
 	 * @param biparts
 	 * @return
 	 */
-	private Bipartition[] removeConflictorsForSupported(Bipartition[] biparts,
+	private PackedBipartition[] removeConflictorsForSupported(PackedBipartition[] biparts,
 			double support) {
-		Bipartition[] r = null;
+		PackedBipartition[] r = null;
 		//load all Bipartitions into a HashSet, making them easier to remove
 		//along the way
 		HashSet retainedBiparts = new HashSet((int)(biparts.length*1.25));
@@ -449,7 +471,7 @@ public class BipartitionSet {
 
 		//create a new array for the Bipartitions in the HashSet
 		//sort the array and return it
-		r = new Bipartition[retainedBiparts.size()];
+		r = new PackedBipartition[retainedBiparts.size()];
 		retainedBiparts.toArray(r);
 		Arrays.sort(r, new BipartitionCountComparator());
 		return r;
@@ -464,8 +486,8 @@ public class BipartitionSet {
 	 * @param biparts
 	 * @return
 	 */
-	private Bipartition[] removeMostConflicted(Bipartition[] biparts) {
-		Bipartition[] r = null;
+	private PackedBipartition[] removeMostConflicted(PackedBipartition[] biparts) {
+		PackedBipartition[] r = null;
 		//these are the number of columns supporting each bipartition
 		int counts[] = new int[biparts.length];
 		for(int i = 0; i < counts.length; i++) {
@@ -500,7 +522,7 @@ public class BipartitionSet {
 
 		if(minSupportIndex >= 0) {
 			//create an array with all biparts except the one at minIndex
-			r = new Bipartition[biparts.length-1];
+			r = new PackedBipartition[biparts.length-1];
 			int secondPartLength = biparts.length - minSupportIndex - 1;
 			System.arraycopy(biparts, 0, r, 0, minSupportIndex);
 			System.arraycopy(biparts, minSupportIndex+1, r, 
@@ -511,8 +533,8 @@ public class BipartitionSet {
 		return r;
 	}
 
-	private Bipartition[] removeLeastSupported(Bipartition[] biparts) {
-		Bipartition[] r = null;
+	private PackedBipartition[] removeLeastSupported(PackedBipartition[] biparts) {
+		PackedBipartition[] r = null;
 
 		int minSupportIndex = 0;
 		double minSupportValue = 0.0;
@@ -529,8 +551,7 @@ public class BipartitionSet {
 	 * support, the Bipartition.
 	 */
 	private void calculateFullSupports() {
-		Bipartition[] biparts = new Bipartition[bipartitionToCount.size()];
-		bipartitionToCount.keySet().toArray(biparts);
+		PackedBipartition[] biparts = getPackedBipartitions();
 		//these are the number of columns supporting each bipartition
 		int counts[] = new int[biparts.length];
 		for(int i = 0; i < counts.length; i++) {
@@ -562,46 +583,30 @@ public class BipartitionSet {
 			directSupports[i] = (double)counts[i] / (double)(counts[i] + incompatibleScore);
 		}
 
-		bipartitionToSupport = new HashMap();
-		for(int i = 0; i < biparts.length; i++) {
-			Double d = new Double(directSupports[i]);
-			bipartitionToSupport.put(biparts[i], d);
-		}
+		supports = directSupports;
 	}
 
 	/**
 	 * Calculates the cost for each Bipartition and stores the values
-	 * in the bipartitionToCost HashMap for later retrieval.
+	 * in the costs array for later retrieval.
 	 * 
 	 */
 	private void calculateBipartitionCosts() {
-		Bipartition[] biparts = getBipartitions();
-		int[] costs = new int[biparts.length];
-
-		for(int i = 0; i < biparts.length; i++) {
-			for(int j = 0; j < biparts.length; j++) {
-				boolean isCompatible = biparts[i].isCompatible(biparts[j]);
-				if(!isCompatible) {
-					costs[i] += getCount(biparts[j]);
-				}
-			}
-		}
-
-		bipartitionToCost = new HashMap((int) (biparts.length * 1.25));
-		for(int i = 0; i < biparts.length; i++) {
-			bipartitionToCost.put(biparts[i], new Integer(costs[i]));
-		}
+		PackedBipartition[] biparts = getPackedBipartitions();
+		costs = getCostEngine().getCosts(biparts);
 	}
 
-	private void calculateCostForBipartition(Bipartition bipart) {
-		int cost = 0;
-		for(int j = 0; j < bipartitions.length; j++) {
-			boolean isCompatible = bipart.isCompatible(bipartitions[j]);
-			if(!isCompatible) {
-				cost += getCount(bipartitions[j]);
-			}
+	/**
+	 * Returns the BipartitionCostEngine for the distinct Bipartitions
+	 * in this set, creating it if needed.
+	 */
+	private synchronized BipartitionCostEngine getCostEngine() {
+		if(costEngine == null) {
+			costEngine = new BipartitionCostEngine(
+					bipartitionCounts.getBipartitions(),
+					bipartitionCounts.getCounts());
 		}
-		bipartitionToCost.put(bipart, new Integer(cost));
+		return costEngine;
 	}
 
 	/**
@@ -616,16 +621,16 @@ public class BipartitionSet {
 	 * @param bipartition
 	 * @return
 	 */
-	double getSupport(Bipartition bipartition) {
+	double getSupport(PackedBipartition bipartition) {
 		double r = Double.NaN;
-		if(bipartitionToSupport == null) {
+		if(supports == null) {
 			calculateFullSupports();
 		}
-		Double support = (Double)bipartitionToSupport.get(bipartition);
-		if(support == null) {
+		int id = bipartitionCounts.getId(bipartition);
+		if(id < 0 || id >= supports.length) {
 			r = 0.0;
 		} else {
-			r = support.doubleValue();
+			r = supports[id];
 		}
 		return r;
 	}
@@ -640,14 +645,48 @@ public class BipartitionSet {
 	 * @return
 	 */
 	public int getCost(Bipartition bipartition) {
+		return getCost(new PackedBipartition(bipartition));
+	}
+
+	/**
+	 * Returns the cost for the given PackedBipartition. Costs that
+	 * have not already been stored for this set are calculated by the
+	 * cost engine, so this may be called from several Threads.
+	 * 
+	 * @param bipartition
+	 * @return
+	 */
+	public int getCost(PackedBipartition bipartition) {
 		int r = -1;
-		if(bipartitionToCost == null) {
-			calculateBipartitionCosts();
-		} if(!bipartitionToCost.containsKey(bipartition)) {
-			calculateCostForBipartition(bipartition);
+		int id = -1;
+		if(costs != null) {
+			id = bipartitionCounts.getId(bipartition);
 		}
+		if(id >= 0 && id < costs.length) {
+			r = costs[id];
+		} else {
+			r = getCostEngine().getCost(bipartition);
+		}
+		return r;
+	}
 
-		r = ((Integer)bipartitionToCost.get(bipartition)).intValue();
+	/**
+	 * Returns the cost for each of the given PackedBipartitions,
+	 * evaluating them in parallel.
+	 * 
+	 * @param biparts
+	 * @return
+	 */
+	public int[] getCosts(PackedBipartition[] biparts) {
+		int[] r = getCostEngine().getCosts(biparts);
+		if(costs != null) {
+			for(int i = 0; i < biparts.length; i++) {
+				int id = bipartitionCounts.getId(biparts[i]);
+				if(id >= 0 && id < costs.length) {
+					r[i] = costs[id];
+				}
+			}
+		}
 		return r;
 	}
 
@@ -673,8 +712,8 @@ public class BipartitionSet {
 	private class BipartitionCountComparator implements Comparator {
 
 		public int compare(Object o1, Object o2) {
-			int count1 = getCount((Bipartition) o1);
-			int count2 = getCount((Bipartition) o2);
+			int count1 = getCount((PackedBipartition) o1);
+			int count2 = getCount((PackedBipartition) o2);
 
 			return count2 - count1;
 		}
@@ -689,8 +728,8 @@ public class BipartitionSet {
 
 		public int compare(Object o1, Object o2) {
 			int r = 0;
-			double sup1 = getSupport((Bipartition) o1);
-			double sup2 = getSupport((Bipartition) o2);
+			double sup1 = getSupport((PackedBipartition) o1);
+			double sup2 = getSupport((PackedBipartition) o2);
 			double diff = sup2 - sup1;
 
 			if(diff < 0) {
@@ -710,8 +749,8 @@ public class BipartitionSet {
 	private class BipartitionCostComparator implements Comparator {
 
 		public int compare(Object o1, Object o2) {
-			int cost1 = getCost((Bipartition) o1);
-			int cost2 = getCost((Bipartition) o2);
+			int cost1 = getCost((PackedBipartition) o1);
+			int cost2 = getCost((PackedBipartition) o2);
 
 			return cost1 - cost2;
 		}
@@ -1,6 +1,7 @@
 package edu.vt.vbi.ci.pepr.tree;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
@@ -43,11 +44,10 @@ public class FastTreeRunner implements Runnable{
 		try {
 			File alignmentFile = File.createTempFile(alignment.getName(), ".faa", workingDir);
 			//write alignment to file, as fasta format.
-			FileWriter fw = new FileWriter(alignmentFile);
-			fw.write(alignment.getAlignmentAsFasta());
-			fw.write("\n");
-			fw.flush();
-			fw.close();
+			FileOutputStream out = new FileOutputStream(alignmentFile);
+			alignment.writeTo(out, SequenceAlignment.FASTA_FORMAT);
+			out.write('\n');
+			out.close();
 			alignmentFile.deleteOnExit();
 
 			//if constraints have been provided, create constraints file
@@ -56,7 +56,7 @@ public class FastTreeRunner implements Runnable{
 			boolean useConstraints = false;
 			if(treeConstraints != null) {
 				useConstraints = true;
-				fw = new FileWriter(constraintsFileName);
+				FileWriter fw = new FileWriter(constraintsFileName);
 				fw.write(treeConstraints);
 				fw.flush();
 				fw.close();
@@ -155,10 +155,10 @@ public class FastTreeRunner implements Runnable{
 			File userDir = new File(System.getProperty("user.dir"));
 			//write alignment to file
 			File alignFile = File.createTempFile("align", ".phy", userDir);
-			FileWriter alignWriter = new FileWriter(alignFile);
-			alignWriter.write(alignment.getAlignmentAsExtendedPhylipUsingTaxonNames());
-			alignWriter.flush();
-			alignWriter.close();
+			FileOutputStream alignOut = new FileOutputStream(alignFile);
+			alignment.writeTo(alignOut.getChannel(), 
+					SequenceAlignment.EXTENDED_PHYLIP_TAXON_NAMES_FORMAT);
+			alignOut.close();
 			String alignmentFileName = alignFile.getName();
 
 			//write treeString to a file
@@ -181,7 +181,7 @@ public class FastTreeRunner implements Runnable{
 					" -n " + getRunName() + " -t " + intreeFileName;
 
 			//run raxml
-			CommandResults raxmlResults = ExecUtilities.exec(raxmlCommand);
+			CommandResults raxmlResults = ExecUtilities.exec(raxmlCommand, getThreadCount());
 
 			//read raxml result file
 			String raxmlTreeFileName = "RAxML_result." + getRunName();
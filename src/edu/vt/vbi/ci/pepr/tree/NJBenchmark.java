@@ -0,0 +1,100 @@
+package edu.vt.vbi.ci.pepr.tree;
+
+import java.util.Random;
+
+/**
+ * Times TreeBuilder.getNJTreeString(), TreeBuilder.getRapidNJTreeString()
+ * and TreeBuilder.getNJTopology() on random distance matrices. The
+ * distances are between random points in a few dimensions, so they are
+ * metric and the trees are not degenerate.
+ *
+ * Usage: NJBenchmark [taxon count]...
+ * The default taxon counts are 1000, 5000 and 10000.
+ *
+ * @author enordber
+ *
+ */
+public class NJBenchmark {
+
+	private static final int DIMENSIONS = 8;
+	private static final long SEED = 1;
+
+	public static void main(String[] args) {
+		int[] sizes = new int[]{1000, 5000, 10000};
+		if(args.length > 0) {
+			sizes = new int[args.length];
+			for(int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for(int i = 0; i < sizes.length; i++) {
+			runBenchmark(sizes[i]);
+		}
+	}
+
+	private static void runBenchmark(int size) {
+		String[] nodes = new String[size];
+		for(int i = 0; i < size; i++) {
+			nodes[i] = "t" + i;
+		}
+		double[][] distances = getRandomDistances(size);
+
+		long start = System.currentTimeMillis();
+		String tree = TreeBuilder.getNJTreeString(nodes, distances,
+				TreeBuilder.DISTANCE);
+		long treeTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		String rapidTree = TreeBuilder.getRapidNJTreeString(nodes, distances,
+				TreeBuilder.DISTANCE);
+		long rapidTreeTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		String topology = TreeBuilder.getNJTopology(nodes, distances,
+				TreeBuilder.DISTANCE);
+		long topologyTime = System.currentTimeMillis() - start;
+
+		System.out.println("taxa: " + size + "\tgetNJTreeString: " +
+				treeTime + " ms\tgetRapidNJTreeString: " + rapidTreeTime +
+				" ms\tgetNJTopology: " + topologyTime + " ms" +
+				"\tsame topology: " + 
+				getTopology(tree).equals(getTopology(rapidTree)) +
+				"\ttree length: " + (tree == null ? 0 : tree.length()) +
+				"\ttopology length: " +
+				(topology == null ? 0 : topology.length()));
+	}
+
+	/**
+	 * Returns the tree string without branch lengths.
+	 */
+	private static String getTopology(String tree) {
+		String r = String.valueOf(tree);
+		r = r.replaceAll(":[-0-9.E]+", "");
+		return r;
+	}
+
+	private static double[][] getRandomDistances(int size) {
+		Random random = new Random(SEED);
+		double[][] points = new double[size][DIMENSIONS];
+		for(int i = 0; i < size; i++) {
+			for(int j = 0; j < DIMENSIONS; j++) {
+				points[i][j] = random.nextDouble();
+			}
+		}
+
+		double[][] r = new double[size][size];
+		for(int i = 0; i < size; i++) {
+			for(int j = i+1; j < size; j++) {
+				double sum = 0;
+				for(int k = 0; k < DIMENSIONS; k++) {
+					double diff = points[i][k] - points[j][k];
+					sum += diff*diff;
+				}
+				r[i][j] = Math.sqrt(sum);
+				r[j][i] = r[i][j];
+			}
+		}
+		return r;
+	}
+}
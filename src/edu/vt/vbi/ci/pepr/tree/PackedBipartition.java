@@ -0,0 +1,360 @@
+package edu.vt.vbi.ci.pepr.tree;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import edu.vt.vbi.ci.util.ExtendedBitSet;
+
+/**
+ * An immutable Bipartition of a set of taxa, stored as 64-bit words.
+ * Only one side is stored: the canonical side, which is the smaller
+ * side, or the side containing the first taxon when both sides are the
+ * same size. This is the same side that Bipartition.getSmallerSide()
+ * returns, and the other side is its complement within size taxa.
+ *
+ * The compatibility and cost tests work directly on the words, using
+ * popcounts, so they do not allocate anything. This makes them suitable
+ * for the all-against-all comparisons in BipartitionSet.
+ *
+ * As with Bipartition, the participating taxon set is used for supertree
+ * compatibility tests, but is not part of equality.
+ *
+ * @author enordber
+ *
+ */
+public final class PackedBipartition implements Comparable<PackedBipartition> {
+
+	private final long[] words;
+	/*
+	 * taxa present in the data used to determine this bipartition.
+	 * null means all taxa are participating.
+	 */
+	private final long[] participating;
+	private final int size;
+	private final int cardinality;
+	private final int hash;
+
+	/**
+	 * Creates a PackedBipartition with the given side. The side may
+	 * be either side of the bipartition, it is converted to the
+	 * canonical side. Bits at or above size are ignored.
+	 *
+	 * @param side
+	 * @param size number of taxa
+	 */
+	public PackedBipartition(long[] side, int size) {
+		this(side, null, size);
+	}
+
+	/**
+	 * @param side either side of the bipartition
+	 * @param participating taxa present in the data this bipartition was
+	 *                      determined from. May be null, meaning all taxa.
+	 * @param size number of taxa
+	 */
+	public PackedBipartition(long[] side, long[] participating, int size) {
+		this.size = size;
+		int wordCount = getWordCount(size);
+		long[] canonical = new long[wordCount];
+		System.arraycopy(side, 0, canonical, 0, Math.min(side.length, wordCount));
+		maskToSize(canonical, size);
+		int card = getCardinality(canonical);
+		int complementCard = size - card;
+		boolean useComplement = complementCard < card;
+		if(complementCard == card && size > 0) {
+			//same size on both sides. use the side with the first taxon
+			useComplement = (canonical[0] & 1L) == 0;
+		}
+		if(useComplement) {
+			for(int i = 0; i < wordCount; i++) {
+				canonical[i] = ~canonical[i];
+			}
+			maskToSize(canonical, size);
+			card = complementCard;
+		}
+		this.words = canonical;
+		this.cardinality = card;
+
+		long[] part = null;
+		if(participating != null) {
+			part = new long[wordCount];
+			System.arraycopy(participating, 0, part, 0,
+					Math.min(participating.length, wordCount));
+			maskToSize(part, size);
+			if(getCardinality(part) == size) {
+				part = null;
+			}
+		}
+		this.participating = part;
+		this.hash = computeHash(canonical);
+	}
+
+	/**
+	 * Creates the PackedBipartition equivalent to the given Bipartition,
+	 * including its participating taxon set.
+	 */
+	public PackedBipartition(Bipartition bipartition) {
+		this(toWords(bipartition.getSmallerSide()),
+				toWords(bipartition.getParticipatingTaxonSet()),
+				bipartition.getSize());
+	}
+
+	/**
+	 * Creates a PackedBipartition from one side given as a BitSet.
+	 */
+	public PackedBipartition(BitSet side, int size) {
+		this(toWords(side), null, size);
+	}
+
+	public static int getWordCount(int size) {
+		return (size + 63) >>> 6;
+	}
+
+	private static long[] toWords(BitSet bs) {
+		long[] r = null;
+		if(bs != null) {
+			r = bs.toLongArray();
+		}
+		return r;
+	}
+
+	private static void maskToSize(long[] words, int size) {
+		int extraBits = words.length*64 - size;
+		if(extraBits > 0 && words.length > 0) {
+			words[words.length-1] &= -1L >>> extraBits;
+		}
+	}
+
+	private static int getCardinality(long[] words) {
+		int r = 0;
+		for(int i = 0; i < words.length; i++) {
+			r += Long.bitCount(words[i]);
+		}
+		return r;
+	}
+
+	/**
+	 * Same value as BitSet.hashCode() for the canonical side, so
+	 * a PackedBipartition has the same hash code as the
+	 * equivalent Bipartition.
+	 */
+	private static int computeHash(long[] words) {
+		long h = 1234;
+		for(int i = words.length; --i >= 0;) {
+			h ^= words[i] * (i + 1);
+		}
+		return (int)((h >> 32) ^ h);
+	}
+
+	/**
+	 * Returns the number of taxa.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of taxa on the canonical (smaller) side.
+	 */
+	public int getCardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * Returns true if the taxon is on the canonical side.
+	 */
+	public boolean get(int taxon) {
+		boolean r = false;
+		if(taxon < size) {
+			r = (words[taxon >>> 6] & (1L << taxon)) != 0;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns true if the taxon was present in the data this
+	 * bipartition was determined from.
+	 */
+	public boolean isParticipating(int taxon) {
+		boolean r = taxon < size;
+		if(r && participating != null) {
+			r = (participating[taxon >>> 6] & (1L << taxon)) != 0;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns true if one side has no more than one taxon.
+	 */
+	public boolean isTrivial() {
+		return cardinality <= 1;
+	}
+
+	/**
+	 * Returns the word at the given index of the canonical side,
+	 * or 0 if index is beyond the last word.
+	 */
+	public long getWord(int index) {
+		long r = 0;
+		if(index < words.length) {
+			r = words[index];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the number of taxa on the canonical sides
+	 * of both bipartitions.
+	 */
+	public int getIntersectionCardinality(PackedBipartition other) {
+		int r = 0;
+		int wordCount = Math.min(words.length, other.words.length);
+		for(int i = 0; i < wordCount; i++) {
+			r += Long.bitCount(words[i] & other.words[i]);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns true if the given bipartition and this bipartition
+	 * may coexist in the same tree. This is the same test as
+	 * Bipartition.isCompatible(): the canonical sides must either
+	 * not overlap, or one must contain the other.
+	 */
+	public boolean isCompatible(PackedBipartition other) {
+		int and = getIntersectionCardinality(other);
+		return and == 0 || and == cardinality || and == other.cardinality;
+	}
+
+	/**
+	 * Returns the number of changes needed to make this bipartition
+	 * compatible with the other one. Zero means they are compatible.
+	 * This gives the same value as Bipartition.getCompatibilityCost().
+	 */
+	public int getCompatibilityCost(PackedBipartition other) {
+		int r = 0;
+		int and = getIntersectionCardinality(other);
+		if(!(and == 0 || and == cardinality || and == other.cardinality)) {
+			//taxa of this canonical side that are on the other
+			//bipartition's larger side
+			int andLarger = cardinality - and;
+			r = Math.min(and, andLarger);
+		}
+		return r;
+	}
+
+	/**
+	 * Compatibility test taking into account the taxa that were present
+	 * when each bipartition was determined. Only the taxa participating
+	 * in both are considered. This is the same test as
+	 * Bipartition.isSupertreeCompatible().
+	 */
+	public boolean isSupertreeCompatible(PackedBipartition other) {
+		boolean r = true;
+		int wordCount = Math.min(words.length, other.words.length);
+		int sharedParticipating = 0;
+		int thisAdjusted = 0;
+		int otherAdjusted = 0;
+		int both = 0;
+		for(int i = 0; i < wordCount; i++) {
+			long thisPart = participating == null ? -1L : participating[i];
+			long otherPart =
+				other.participating == null ? -1L : other.participating[i];
+			sharedParticipating += Long.bitCount(thisPart & otherPart);
+			long thisSide = words[i] & otherPart;
+			long otherSide = other.words[i] & thisPart;
+			thisAdjusted += Long.bitCount(thisSide);
+			otherAdjusted += Long.bitCount(otherSide);
+			both += Long.bitCount(thisSide & otherSide);
+		}
+		if(sharedParticipating > 0) {
+			r = both == 0 || both == thisAdjusted || both == otherAdjusted;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns a new BitSet with the taxa of the canonical side.
+	 */
+	public BitSet toBitSet() {
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * Returns the equivalent Bipartition, with its own copies of
+	 * the bit sets.
+	 */
+	public Bipartition toBipartition() {
+		ExtendedBitSet side = new ExtendedBitSet();
+		side.or(toBitSet());
+		Bipartition r = new Bipartition(side, size);
+		if(participating != null) {
+			ExtendedBitSet part = new ExtendedBitSet();
+			part.or(BitSet.valueOf(participating));
+			r.setParticipatingTaxonSet(part);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the canonical side as a String, with '*' for taxa on
+	 * that side and '.' for other taxa.
+	 */
+	public String getString() {
+		char[] chars = new char[size];
+		for(int i = 0; i < size; i++) {
+			chars[i] = get(i) ? '*' : '.';
+		}
+		return new String(chars);
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Returns a 64-bit hash of the number of taxa and the canonical
+	 * side, for use as a key in primitive tables. Equal
+	 * PackedBipartitions have the same fingerprint.
+	 */
+	public long getFingerprint() {
+		long r = 0x9E3779B97F4A7C15L * (size + 1);
+		for(int i = 0; i < words.length; i++) {
+			r = (r ^ words[i]) * 0xBF58476D1CE4E5B9L;
+			r ^= r >>> 31;
+		}
+		r ^= r >>> 29;
+		return r;
+	}
+
+	/**
+	 * PackedBipartitions are equal if they have the same number of
+	 * taxa and the same canonical side.
+	 */
+	public boolean equals(Object other) {
+		boolean r = false;
+		if(other instanceof PackedBipartition) {
+			PackedBipartition otherBP = (PackedBipartition) other;
+			r = hash == otherBP.hash && size == otherBP.size &&
+			Arrays.equals(words, otherBP.words);
+		}
+		return r;
+	}
+
+	/**
+	 * Orders by hash code, then size, then by the words of the
+	 * canonical side, so only equal PackedBipartitions compare as 0.
+	 */
+	public int compareTo(PackedBipartition other) {
+		int r = hash < other.hash ? -1 : (hash == other.hash ? 0 : 1);
+		if(r == 0) {
+			r = size - other.size;
+		}
+		for(int i = 0; r == 0 && i < words.length; i++) {
+			if(words[i] != other.words[i]) {
+				r = Long.compareUnsigned(words[i], other.words[i]) < 0 ? -1 : 1;
+			}
+		}
+		return r;
+	}
+}
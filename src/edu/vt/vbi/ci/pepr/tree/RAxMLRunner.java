@@ -2,6 +2,7 @@
 package edu.vt.vbi.ci.pepr.tree;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashSet;
@@ -144,7 +145,7 @@ public class RAxMLRunner {
 				String executableNameOnly = new File(raxmlPath).getName();
 				PEPRTracker.setTreeOptions(executableNameOnly + " " + raxmlOptions);
 				//run raxml, and wait for it to finish
-				CommandResults results = ExecUtilities.exec(raxmlCommand);
+				CommandResults results = ExecUtilities.exec(raxmlCommand, getThreadCount());
 			} catch (IOException ioe) {
 				logger.error(ioe);
 			}
@@ -205,7 +206,7 @@ public class RAxMLRunner {
 				"RAxML_perSiteLLs." + runName;
 			String raxmlCommand = raxmlPath + raxmlOptions;
 			System.out.println("ML branch length raxml command: " + raxmlCommand);
-			CommandResults secondResults = ExecUtilities.exec(raxmlCommand);
+			CommandResults secondResults = ExecUtilities.exec(raxmlCommand, getThreadCount());
 
 		} catch (IOException ioe) {
 			logger.error(ioe);
@@ -248,7 +249,7 @@ public class RAxMLRunner {
 			}
 			//run raxml, and wait for it to finish
 			String raxmlCommand = raxmlPath + raxmlOptions;
-			CommandResults firstResults = ExecUtilities.exec(raxmlCommand);
+			CommandResults firstResults = ExecUtilities.exec(raxmlCommand, getThreadCount());
 
 			//do a second raxml run to determine the ML branch lengths 
 			//given the parsimony tree that was just calculated
@@ -269,7 +270,7 @@ public class RAxMLRunner {
 			raxmlCommand = raxmlPath + raxmlOptions;
 			String executableNameOnly = new File(raxmlPath).getName();
 			PEPRTracker.setTreeOptions(executableNameOnly + " " + raxmlOptions);
-			CommandResults secondResults = ExecUtilities.exec(raxmlCommand);
+			CommandResults secondResults = ExecUtilities.exec(raxmlCommand, getThreadCount());
 			if(deleteGeneratedFiles()) {
 				new File(parsimonyTreeFileName).deleteOnExit();
 			}
@@ -400,16 +401,16 @@ public class RAxMLRunner {
 
 	private void writeAlignmentToFile(SequenceAlignment sa,
 			String infileName) throws IOException {
-		FileWriter fw = new FileWriter(infileName);
-		String phylipAlignment;
+		int format = SequenceAlignment.EXTENDED_PHYLIP_SEQUENCE_NAMES_FORMAT;
 		if(useTaxonNames) {
-			phylipAlignment = sa.getAlignmentAsExtendedPhylipUsingTaxonNames();
-		} else {
-			phylipAlignment = sa.getAlignmentAsExtendedPhylipUsingSequenceNames();
+			format = SequenceAlignment.EXTENDED_PHYLIP_TAXON_NAMES_FORMAT;
+		}
+		FileOutputStream out = new FileOutputStream(infileName);
+		try {
+			sa.writeTo(out.getChannel(), format);
+		} finally {
+			out.close();
 		}
-		fw.write(phylipAlignment);
-		fw.flush();
-		fw.close();
 	}
 	
 	private void writeTreeFile(String[] trees, String fileName) throws IOException {
@@ -500,7 +501,7 @@ public class RAxMLRunner {
 			
 			//run RAxML command
 			CommandResults results = 
-					ExecUtilities.exec(raxmlDecorateCommand);
+					ExecUtilities.exec(raxmlDecorateCommand, getThreadCount());
 			//read result from file
 			String resultFileName = "RAxML_bipartitions." + runName;
 			TextFile resultFile = new TextFile(resultFileName);
@@ -20,11 +20,24 @@ public class TreeBuilder {
 	public static final int DISTANCE = 0;
 	public static final int SIMILARITY = 1;
 	private static final boolean debug = false;
+	/*
+	 * getRapidNJTreeString() adds up the row sums again, instead of 
+	 * updating them, once this few nodes remain
+	 */
+	private static final int EXACT_SUM_NODES = 64;
 
 	/**
 	 * Returns a String representation of the neighbor-joining 
 	 * tree of the given nodes, based on the given distance matrix.
 	 * Tree is returned in newick format.
+	 * 
+	 * At each step the pair of nodes with the minimum distance (or maximum
+	 * similarity) is merged, and the distance from the new node to each
+	 * other node is the mean of the distances from the merged nodes. The
+	 * merging is done in place in one symmetrical copy of the matrix,
+	 * with the new node taking the place of the first merged node, so the
+	 * matrix is not copied at each step.
+	 * 
 	 * @param nodes
 	 * @param matrix
 	 * @param matrixType Type of matrix being provided.
@@ -34,107 +47,68 @@ public class TreeBuilder {
 	public static String getNJTopology(String[] nodes, 
 			double[][] matrix, int matrixType) {
 		String r = null;
-
-		//find pair of nodes with minimum distance
-
-		/*
-		 * indices for pair of nodes with minimum distance
-		 */
-		int mergeI = -1; 
-		int mergeJ = -1; 
-
-		int[] mergeCoordinates = null;
-		if(matrixType == DISTANCE) {
-			mergeCoordinates = getMinValueCoordinates(matrix);
-		} else if(matrixType == SIMILARITY) {
-			mergeCoordinates = getMaxValueCoordinates(matrix);
-		} else {
+		if(matrixType != DISTANCE && matrixType != SIMILARITY) {
 			throw new IllegalArgumentException("matrixType must be " +
 					"either TreeBuider.DISTANCE or " +
 					"TreeBuilder.SIMILARITY in " +
 			"TreeBuilder.getNJTopology()");
 		}
-		mergeI = mergeCoordinates[0];
-		mergeJ = mergeCoordinates[1];
-
-		if(debug) {
-			System.out.println("merging nodes " + mergeI + " and " + mergeJ
-					+ ": " + nodes[mergeI] + ", " + nodes[mergeJ] + 
-					" distance: " + matrix[mergeI][mergeJ]);
-		}
-		//create new node, consisting of the two closest nodes.
-		StringBuffer combinedNode = new StringBuffer();
-		combinedNode.append("(");
-		combinedNode.append(nodes[mergeI]);
-		combinedNode.append(",");
-		combinedNode.append(nodes[mergeJ]);
-		combinedNode.append(")");
-
-		//if more than one node is left, make a recursive call to 
-		//this method
-		if(nodes.length > 2) { //Actually, this check could be done
-			//before searching for minimum distance.
-			//If there are only two nodes remaining,
-			//just combine them and return the result.
 
-			//create new distance matrix, using mean distances for the new node
-			//New distance matrix should be one column and one row smaller
-			//than input matrix, because two nodes have been combined into
-			//a single node.
-			double[][] newDistances = 
-				new double[nodes.length-1][nodes.length-1];
-			//Determine new index for each original node.
-			//The new node will be at index 0
-			int[] newIndices = new int[nodes.length];
-			int newIndexOffset = 1;
-			for(int i = 0; i < nodes.length; i++) {
-				if(i == mergeI || i == mergeJ) {
-					newIndexOffset--;
-					newIndices[i] = 0;
-				} else {
-					newIndices[i] = i+newIndexOffset;
-				}
+		double[][] distances = getSymmetricalCopy(matrix);
+		String[] names = new String[nodes.length];
+		System.arraycopy(nodes, 0, names, 0, nodes.length);
+		NodeOrder order = new NodeOrder(nodes.length);
+		boolean firstMerge = true;
+
+		while(r == null) {
+			//find pair of nodes with minimum distance
+			int[] mergeCoordinates = null;
+			if(matrixType == DISTANCE) {
+				mergeCoordinates = getMinValueCoordinates(distances, order);
+			} else {
+				mergeCoordinates = getMaxValueCoordinates(distances, order);
 			}
+			int mergeI = order.get(mergeCoordinates[0]);
+			int mergeJ = order.get(mergeCoordinates[1]);
 
-			//copy unchanged values to new distances
-			for(int i = 0; i < matrix.length; i++) {
-				if(i != mergeI) {
-					int newI = newIndices[i];
-					for(int j = i; j < matrix.length; j++) {
-						if(j != mergeJ) {
-							int newJ = newIndices[j];
-							newDistances[newI][newJ] = 
-								matrix[i][j];
-							newDistances[newJ][newI] = 
-								matrix[i][j];
-						}
-					}
-				}
+			if(debug) {
+				System.out.println("merging nodes " + mergeI + " and " + 
+						mergeJ + ": " + names[mergeI] + ", " + names[mergeJ] +
+						" distance: " + distances[mergeI][mergeJ]);
 			}
-
-			//determine average distances for new combined node
-			for(int i = 0; i < matrix.length; i++) {
-				if(newIndices[i] != 0) {
-					double valueI = matrix[mergeI][i];
-					double valueJ = matrix[mergeJ][i];
-					double mean = (valueI + valueJ)/2;
-					newDistances[0][newIndices[i]] = mean;
-					newDistances[newIndices[i]][0] = mean;
+			//create new node, consisting of the two closest nodes.
+			StringBuffer combinedNode = new StringBuffer();
+			combinedNode.append("(");
+			combinedNode.append(names[mergeI]);
+			combinedNode.append(",");
+			combinedNode.append(names[mergeJ]);
+			combinedNode.append(")");
+
+			if(order.size() > 2) {
+				//the new node replaces mergeI. Its distance to each other
+				//node is the mean of the distances from the merged nodes
+				double[] rowI = firstMerge ? matrix[mergeI] : distances[mergeI];
+				double[] rowJ = firstMerge ? matrix[mergeJ] : distances[mergeJ];
+				for(int i = 0; i < order.size(); i++) {
+					int node = order.get(i);
+					if(node != mergeI && node != mergeJ) {
+						double mean = (rowI[node] + rowJ[node])/2;
+						distances[mergeI][node] = mean;
+						distances[node][mergeI] = mean;
+					}
 				}
+				distances[mergeI][mergeI] = 0;
+				distances[mergeJ] = null;
+				names[mergeI] = combinedNode.toString();
+				names[mergeJ] = null;
+				order.merge(mergeI, mergeJ);
+				firstMerge = false;
+			} else {
+				//if only one node remains, return the String 
+				//representation of the node
+				combinedNode.append(";");
+				r = combinedNode.toString();
 			}
-
-			String[] newNodes = new String[nodes.length-1];
-			for(int i = 0; i < nodes.length; i++){
-				newNodes[newIndices[i]] = nodes[i];
-			}
-			newNodes[0] = combinedNode.toString();
-
-			r = getNJTopology(newNodes, newDistances, matrixType);
-		}	else {	
-			//if only one node remains, return the String 
-			//representation of the node
-			combinedNode.append(";");
-			r = combinedNode.toString();
 		}
 		return r;
 	}
@@ -143,11 +117,20 @@ public class TreeBuilder {
 	 * Returns a String representation of the neighbor-joining 
 	 * tree of the given nodes, based on the given distance matrix.
 	 * Tree is returned in newick format.
+	 * 
+	 * The joining is done in place in one symmetrical copy of the matrix,
+	 * with the new node taking the place of the first joined node, so no
+	 * matrix is copied at each step and the Q matrix is not stored. The
+	 * remaining nodes are kept in the order the recursive form of this
+	 * method used (the new node first, then the others in their previous
+	 * order), and the row sums are added up in that order, so the tree,
+	 * including the branch lengths, is the same as that version gave.
+	 * 
 	 * @param nodes
 	 * @param distanceMatrix
 	 * @param matrixType Type of matrix being provided.
 	 * 	                  DISTANCE or SIMILARITY
-	 * @return
+	 * @return the tree, or null if there are fewer than four nodes
 	 */
 	public static String getNJTreeString(String[] nodes, 
 			double[][] distanceMatrix, int matrixType) {
@@ -158,189 +141,631 @@ public class TreeBuilder {
 			distanceMatrix = convertSimilarityToDistanceMatrix(distanceMatrix);
 			matrixType = DISTANCE;
 		}
-		//create Q matrix from distance Matrix
-		//find pair of nodes with minimum distance/maximum similarity
-		double[][] Q = new double[distanceMatrix.length][distanceMatrix.length];
 
-		//calculate sums for each row
-		double[] sums = new double[Q.length];
+		double[][] distances = getSymmetricalCopy(distanceMatrix);
+		String[] names = new String[nodes.length];
+		System.arraycopy(nodes, 0, names, 0, nodes.length);
+		NodeOrder order = new NodeOrder(nodes.length);
+		double[] sums = new double[nodes.length];
+		boolean firstMerge = true;
+
+		//the first sums use the full rows of the given matrix
 		for(int i = 0; i < sums.length; i++) {
 			sums[i] = 0;
-			for(int j = 0; j < Q.length; j++) {
+			for(int j = 0; j < sums.length; j++) {
 				sums[i] += distanceMatrix[i][j];
 			}
 		}
 
-		int rMinus2 = Q.length - 2;
+		boolean done = false;
+		while(!done) {
+			int nodeCount = order.size();
+			if(!firstMerge) {
+				calculateRowSums(distances, order, sums);
+			}
+			int rMinus2 = nodeCount - 2;
+
+			//find the pair of nodes with the minimum Q value
+			int[] mergeCoordinates = getMinQCoordinates(distances, order, sums);
+			int mergeI = order.get(mergeCoordinates[0]);
+			int mergeJ = order.get(mergeCoordinates[1]);
+			double mergeDistance = distances[mergeI][mergeJ];
+
+			if(debug) {
+				System.out.println("merging nodes " + mergeI + " and " + 
+						mergeJ + ": " + names[mergeI] + ", " + names[mergeJ] +
+						" distance: " + mergeDistance);
+			}
 
-		for(int i = 0; i < Q.length; i++) {
-			//initialize diagonals to 0.0
-			Q[i][i] = 0.0;
-			for(int j = i+1; j < Q.length; j++) {
-				double value = (rMinus2 * distanceMatrix[i][j]) -
-				sums[i] - sums[j];
-				Q[i][j] = value;
-				Q[j][i] = value;
+			//determine distances from the new node to each of the merged nodes
+
+			//from mergeI to combined
+			double mergeIToCombinedDistance = (mergeDistance /2) + 
+			( (1/(2d*rMinus2)) * (sums[mergeI] - sums[mergeJ]) );
+
+			//from mergeJ to combined
+			double mergeJToCombined = mergeDistance - mergeIToCombinedDistance;
+
+			//this is a kludge - prevent negative branch lengths
+			mergeIToCombinedDistance = Math.max(mergeIToCombinedDistance, 0);
+			mergeJToCombined = Math.max(mergeJToCombined, 0);
+
+			//create new node, consisting of the two closest nodes.
+			StringBuffer combinedNode = new StringBuffer();
+			combinedNode.append("(");
+			combinedNode.append(names[mergeI]);
+			combinedNode.append(":" + mergeIToCombinedDistance);
+			combinedNode.append(",");
+			combinedNode.append(names[mergeJ]);
+			combinedNode.append(":" + mergeJToCombined);
+			combinedNode.append(")");
+
+			if(nodeCount - 1 < 3) {
+				//there were fewer than four nodes to begin with
+				done = true;
+			} else {
+				//the new node replaces mergeI
+				double[] rowI = 
+					firstMerge ? distanceMatrix[mergeI] : distances[mergeI];
+				double[] rowJ = 
+					firstMerge ? distanceMatrix[mergeJ] : distances[mergeJ];
+				for(int i = 0; i < nodeCount; i++) {
+					int node = order.get(i);
+					if(node != mergeI && node != mergeJ) {
+						double mean = (rowI[node] + rowJ[node] - mergeDistance)/2;
+						distances[mergeI][node] = mean;
+						distances[node][mergeI] = mean;
+					}
+				}
+				distances[mergeI][mergeI] = 0;
+				distances[mergeJ] = null;
+				names[mergeI] = combinedNode.toString();
+				names[mergeJ] = null;
+				order.merge(mergeI, mergeJ);
+				firstMerge = false;
+
+				if(order.size() == 3) {
+					//there are three nodes remaining, which means there is
+					//no more merging to be done. 
+					//Need to determine the branch lengths for the three 
+					//remaining branches (from each of the three remaining 
+					//nodes to the 'root')
+					calculateRowSums(distances, order, sums);
+					int node0 = order.get(0);
+					int node1 = order.get(1);
+					int node2 = order.get(2);
+
+					//determine distances for three remaining nodes
+					double distance0 = (distances[node0][node1] /2) + 
+					(0.5 * (sums[node0] - sums[node1]));
+					double distance1 = (distances[node1][node2] /2) + 
+					(0.5 * (sums[node1] - sums[node2]));
+					double distance2 = (distances[node2][node0] /2) + 
+					(0.5 * (sums[node2] - sums[node0]));
+
+					if(debug) {
+						System.out.println("distance0: " + distance0);
+						System.out.println("distance1: " + distance1);
+						System.out.println("distance2: " + distance2);
+					}
+
+					r = "(" + names[node0] + ":" + distance0 + ","
+					+ names[node1] + ":" + distance1 + "," + 
+					names[node2] + ":" + distance2 + ");";
+					done = true;
+				}
 			}
 		}
+		return r;
+	}
 
-		if(debug) {
-			//print distance matrix and Q matrix
-			printMatrices(nodes, distanceMatrix, Q);
+	/**
+	 * Returns a String representation of the neighbor-joining 
+	 * tree of the given nodes, based on the given distance matrix, in
+	 * newick format. This gives the same tree as getNJTreeString(), 
+	 * except where pairs have equal (or nearly equal) Q values, but looks 
+	 * at only a small part of the Q matrix at each step, so it is much 
+	 * faster for large numbers of nodes.
+	 * 
+	 * This follows RapidNJ (Simonsen, Mailund and Pedersen, 2008). Each
+	 * node has a row of distances sorted in ascending order, holding the
+	 * nodes that existed when it was created, so each pair is in exactly
+	 * one row. The Q value for a distance d in row i is at least
+	 * (r-2)d - sum(i) - max(sum), so a row is only read until that bound
+	 * is greater than the smallest Q value found so far. The row sums are
+	 * updated at each step rather than added up again, which is why the
+	 * branch lengths may differ from getNJTreeString() in the last digits.
+	 * 
+	 * @param nodes
+	 * @param distanceMatrix
+	 * @param matrixType Type of matrix being provided.
+	 * 	                  DISTANCE or SIMILARITY
+	 * @return the tree, or null if there are fewer than four nodes
+	 */
+	public static String getRapidNJTreeString(String[] nodes, 
+			double[][] distanceMatrix, int matrixType) {
+		String r = null;
+
+		//if similarity matrix is passed in, convert it to a distance matrix
+		if(matrixType == SIMILARITY) {
+			distanceMatrix = convertSimilarityToDistanceMatrix(distanceMatrix);
+			matrixType = DISTANCE;
 		}
 
-		/*
-		 * indices for pair of nodes with minimum distance
-		 */
-		int mergeI = -1; 
-		int mergeJ = -1; 
+		double[][] distances = getSymmetricalCopy(distanceMatrix);
+		String[] names = new String[nodes.length];
+		System.arraycopy(nodes, 0, names, 0, nodes.length);
+		NodeOrder order = new NodeOrder(nodes.length);
+		double[] sums = new double[nodes.length];
+		boolean firstMerge = true;
 
-		int[] mergeCoordinates = null;
-		if(matrixType == DISTANCE) {
-			mergeCoordinates = getMinValueCoordinates(Q);
-		} else if(matrixType == SIMILARITY) {
-			mergeCoordinates = getMaxValueCoordinates(Q);
-		} else {
-			throw new IllegalArgumentException("matrixType must be " +
-					"either TreeBuider.DISTANCE or " +
-					"TreeBuilder.SIMILARITY in " +
-			"TreeBuilder.getNJTopology()");
+		//the first sums use the full rows of the given matrix
+		for(int i = 0; i < sums.length; i++) {
+			sums[i] = 0;
+			for(int j = 0; j < sums.length; j++) {
+				sums[i] += distanceMatrix[i][j];
+			}
 		}
-		mergeI = mergeCoordinates[0];
-		mergeJ = mergeCoordinates[1];
 
-		if(debug) {
-			System.out.println("merging nodes " + mergeI + " and " + mergeJ
-					+ ": " + nodes[mergeI] + ", " + nodes[mergeJ] + 
-					" distance: " + distanceMatrix[mergeI][mergeJ] + " Q: " + Q[mergeI][mergeJ]);
+		//the step at which the node in each slot was created. A sorted 
+		//row holds only the nodes created before its own node
+		int[] created = new int[nodes.length];
+		SortedRow[] rows = new SortedRow[nodes.length];
+		for(int i = 0; i < rows.length; i++) {
+			created[i] = i;
+			rows[i] = new SortedRow(distances[i], i);
 		}
+		int nextCreated = nodes.length;
+
+		boolean done = false;
+		while(!done) {
+			int nodeCount = order.size();
+			int rMinus2 = nodeCount - 2;
+
+			//find the pair of nodes with the minimum Q value
+			int[] mergeCoordinates = 
+				getRapidMinQCoordinates(rows, created, order, sums);
+			int mergeI = order.get(mergeCoordinates[0]);
+			int mergeJ = order.get(mergeCoordinates[1]);
+			double mergeDistance = distances[mergeI][mergeJ];
+
+			if(debug) {
+				System.out.println("merging nodes " + mergeI + " and " + 
+						mergeJ + ": " + names[mergeI] + ", " + names[mergeJ] +
+						" distance: " + mergeDistance);
+			}
 
-		//determine distances from the new node to each of the merged nodes
-
-		//from mergeI to combined
-		double mergeIToCombinedDistance = (distanceMatrix[mergeI][mergeJ] /2) + 
-		( (1/(2d*rMinus2)) * (sums[mergeI] - sums[mergeJ]) );
+			//from mergeI to combined
+			double mergeIToCombinedDistance = (mergeDistance /2) + 
+			( (1/(2d*rMinus2)) * (sums[mergeI] - sums[mergeJ]) );
+
+			//from mergeJ to combined
+			double mergeJToCombined = mergeDistance - mergeIToCombinedDistance;
+
+			//this is a kludge - prevent negative branch lengths
+			mergeIToCombinedDistance = Math.max(mergeIToCombinedDistance, 0);
+			mergeJToCombined = Math.max(mergeJToCombined, 0);
+
+			//create new node, consisting of the two closest nodes.
+			StringBuffer combinedNode = new StringBuffer();
+			combinedNode.append("(");
+			combinedNode.append(names[mergeI]);
+			combinedNode.append(":" + mergeIToCombinedDistance);
+			combinedNode.append(",");
+			combinedNode.append(names[mergeJ]);
+			combinedNode.append(":" + mergeJToCombined);
+			combinedNode.append(")");
+
+			if(nodeCount - 1 < 3) {
+				//there were fewer than four nodes to begin with
+				done = true;
+			} else {
+				//the new node replaces mergeI. The sums of the other nodes 
+				//lose the distances to the merged nodes and gain the 
+				//distance to the new node
+				double[] rowI = 
+					firstMerge ? distanceMatrix[mergeI] : distances[mergeI];
+				double[] rowJ = 
+					firstMerge ? distanceMatrix[mergeJ] : distances[mergeJ];
+				double newSum = 0;
+				for(int i = 0; i < nodeCount; i++) {
+					int node = order.get(i);
+					if(node != mergeI && node != mergeJ) {
+						double oldI = distances[node][mergeI];
+						double oldJ = distances[node][mergeJ];
+						double mean = (rowI[node] + rowJ[node] - mergeDistance)/2;
+						distances[mergeI][node] = mean;
+						distances[node][mergeI] = mean;
+						sums[node] = sums[node] - oldI - oldJ + mean;
+						newSum += mean;
+					}
+				}
+				distances[mergeI][mergeI] = 0;
+				distances[mergeJ] = null;
+				sums[mergeI] = newSum;
+				names[mergeI] = combinedNode.toString();
+				names[mergeJ] = null;
+				order.merge(mergeI, mergeJ);
+				if(firstMerge || order.size() <= EXACT_SUM_NODES) {
+					//the first sums may have come from an unsymmetrical 
+					//matrix. Near the end, the sums are added up as 
+					//getNJTreeString() does, because some Q values are 
+					//equal there (with four nodes left, each pair has the
+					//same Q value as the other two nodes)
+					calculateRowSums(distances, order, sums);
+					firstMerge = false;
+				}
 
-		//from mergeJ to combined
-		double mergeJToCombined = distanceMatrix[mergeI][mergeJ] - mergeIToCombinedDistance;
+				created[mergeI] = nextCreated;
+				nextCreated++;
+				rows[mergeI] = new SortedRow(distances[mergeI], order);
+				rows[mergeJ] = null;
+
+				if(order.size() == 3) {
+					//there are three nodes remaining, which means there is
+					//no more merging to be done. 
+					//Need to determine the branch lengths for the three 
+					//remaining branches (from each of the three remaining 
+					//nodes to the 'root')
+					calculateRowSums(distances, order, sums);
+					int node0 = order.get(0);
+					int node1 = order.get(1);
+					int node2 = order.get(2);
+
+					//determine distances for three remaining nodes
+					double distance0 = (distances[node0][node1] /2) + 
+					(0.5 * (sums[node0] - sums[node1]));
+					double distance1 = (distances[node1][node2] /2) + 
+					(0.5 * (sums[node1] - sums[node2]));
+					double distance2 = (distances[node2][node0] /2) + 
+					(0.5 * (sums[node2] - sums[node0]));
+
+					r = "(" + names[node0] + ":" + distance0 + ","
+					+ names[node1] + ":" + distance1 + "," + 
+					names[node2] + ":" + distance2 + ");";
+					done = true;
+				}
+			}
+		}
+		return r;
+	}
 
-		//this is a kludge - prevent negative branch lengths
-		mergeIToCombinedDistance = Math.max(mergeIToCombinedDistance, 0);
-		mergeJToCombined = Math.max(mergeJToCombined, 0);
-		
-		//create new node, consisting of the two closest nodes.
-		StringBuffer combinedNode = new StringBuffer();
-		combinedNode.append("(");
-		combinedNode.append(nodes[mergeI]);
-		combinedNode.append(":" + mergeIToCombinedDistance);
-		combinedNode.append(",");
-		combinedNode.append(nodes[mergeJ]);
-		combinedNode.append(":" + mergeJToCombined);
-		combinedNode.append(")");
+	/**
+	 * Returns a copy of the matrix, made symmetrical from the upper 
+	 * triangle and diagonal. This is the part of the matrix the 
+	 * recursive methods copied for the remaining nodes.
+	 */
+	private static double[][] getSymmetricalCopy(double[][] matrix) {
+		double[][] r = new double[matrix.length][matrix.length];
+		for(int i = 0; i < r.length; i++) {
+			for(int j = i; j < r.length; j++) {
+				r[i][j] = matrix[i][j];
+				r[j][i] = matrix[i][j];
+			}
+		}
+		return r;
+	}
 
-		//if more than one node is left, make a recursive call to 
-		//this method
-		if(nodes.length > 0) { 
+	/**
+	 * Calculates the sum of the distances for each remaining node,
+	 * adding them up in node order.
+	 */
+	private static void calculateRowSums(double[][] distances,
+			NodeOrder order, double[] sums) {
+		int nodeCount = order.size();
+		for(int i = 0; i < nodeCount; i++) {
+			int nodeI = order.get(i);
+			double[] row = distances[nodeI];
+			double sum = 0;
+			for(int j = 0; j < nodeCount; j++) {
+				sum += row[order.get(j)];
+			}
+			sums[nodeI] = sum;
+		}
+	}
 
-			//create new distance matrix, using mean distances for the new node
-			//New distance matrix should be one column and one row smaller
-			//than input matrix, because two nodes have been combined into
-			//a single node.
-			double[][] newDistances = 
-				new double[nodes.length-1][nodes.length-1];
-			//Determine new index for each original node.
-			//The new node will be at index 0
-			int[] newIndices = new int[nodes.length];
-			int newIndexOffset = 1;
-			for(int i = 0; i < nodes.length; i++) {
-				if(i == mergeI || i == mergeJ) {
-					newIndexOffset--;
-					newIndices[i] = 0;
-				} else {
-					newIndices[i] = i+newIndexOffset;
+	/**
+	 * Returns the positions in the node order of the pair of nodes with
+	 * the minimum Q value. The first pair with that value is returned.
+	 */
+	private static int[] getMinQCoordinates(double[][] distances, 
+			NodeOrder order, double[] sums) {
+		int minI = -1, minJ = -1; //positions for pair with minimum value
+		double minQ = Double.MAX_VALUE; //minimum value so far
+		int nodeCount = order.size();
+		int rMinus2 = nodeCount - 2;
+		for(int i = 0; i < nodeCount; i++) {
+			int nodeI = order.get(i);
+			double[] row = distances[nodeI];
+			double sumI = sums[nodeI];
+			for(int j = i+1; j < nodeCount; j++) {
+				int nodeJ = order.get(j);
+				double value = (rMinus2 * row[nodeJ]) - sumI - sums[nodeJ];
+				if(value < minQ) {
+					minQ = value;
+					minI = i;
+					minJ = j;
 				}
 			}
+		}
+		return new int[]{minI, minJ};
+	}
 
-			//copy unchanged values to new distances
-			for(int i = 0; i < distanceMatrix.length; i++) {
-				if(i != mergeI) {
-					int newI = newIndices[i];
-					for(int j = i; j < distanceMatrix.length; j++) {
-						if(j != mergeJ) {
-							int newJ = newIndices[j];
-							newDistances[newI][newJ] = 
-								distanceMatrix[i][j];
-							newDistances[newJ][newI] = 
-								distanceMatrix[i][j];
-						}
+	/**
+	 * Returns the positions in the node order of the pair of nodes with
+	 * the minimum Q value, reading each sorted row only until the lower
+	 * bound for the rest of the row is greater than the minimum found so
+	 * far. Of pairs with the same Q value, the first in node order is 
+	 * returned, as getMinQCoordinates() does.
+	 */
+	private static int[] getRapidMinQCoordinates(SortedRow[] rows, 
+			int[] created, NodeOrder order, double[] sums) {
+		int minI = -1, minJ = -1; //positions for pair with minimum value
+		double minQ = Double.MAX_VALUE; //minimum value so far
+		int nodeCount = order.size();
+		int rMinus2 = nodeCount - 2;
+		double maxSum = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < nodeCount; i++) {
+			maxSum = Math.max(maxSum, sums[order.get(i)]);
+		}
+
+		for(int i = 0; i < nodeCount; i++) {
+			int nodeI = order.get(i);
+			SortedRow row = rows[nodeI];
+			double sumI = sums[nodeI];
+			int end = row.start;
+			while(end < row.size) {
+				double distance = row.distances[end];
+				//the bound is worked out in both orders of subtraction,
+				//so it is never above a Q value because of rounding
+				double scaled = rMinus2 * distance;
+				if(scaled - sumI - maxSum > minQ && 
+						scaled - maxSum - sumI > minQ) {
+					break;
+				}
+				int nodeJ = row.nodes[end];
+				int j = order.getPosition(nodeJ);
+				if(j >= 0 && created[nodeJ] < created[nodeI]) {
+					//subtract the sums in node order, as 
+					//getMinQCoordinates() does
+					double value = 0;
+					int first = i;
+					int second = j;
+					if(i < j) {
+						value = (rMinus2 * distance) - sumI - sums[nodeJ];
+					} else {
+						value = (rMinus2 * distance) - sums[nodeJ] - sumI;
+						first = j;
+						second = i;
+					}
+					if(value < minQ || (value == minQ && (first < minI || 
+							(first == minI && second < minJ)))) {
+						minQ = value;
+						minI = first;
+						minJ = second;
 					}
 				}
+				end++;
 			}
+			row.removeInvalid(end, created[nodeI], created, order);
+		}
+		return new int[]{minI, minJ};
+	}
 
-			//determine average distances for new combined node
-			for(int i = 0; i < distanceMatrix.length; i++) {
-				if(newIndices[i] != 0) {
-					double valueI = distanceMatrix[mergeI][i];
-					double valueJ = distanceMatrix[mergeJ][i];
-					double mean = (valueI + valueJ - distanceMatrix[mergeI][mergeJ])/2;
-					newDistances[0][newIndices[i]] = mean;
-					newDistances[newIndices[i]][0] = mean;
+	/**
+	 * Returns the positions in the node order of the first pair of nodes
+	 * with the minimum distance.
+	 */
+	private static int[] getMinValueCoordinates(double[][] distances, 
+			NodeOrder order) {
+		int minI = -1, minJ = -1; //positions for pair with minimum value
+		double minDistance = Double.MAX_VALUE; //minimum value so far
+		int nodeCount = order.size();
+		for(int i = 0; i < nodeCount; i++) {
+			double[] row = distances[order.get(i)];
+			for(int j = i+1; j < nodeCount; j++) {
+				double value = row[order.get(j)];
+				if(value < minDistance) {
+					minDistance = value;
+					minI = i;
+					minJ = j;
 				}
 			}
+		}
+		return new int[]{minI, minJ};
+	}
 
-			String[] newNodes = new String[nodes.length-1];
-			for(int i = 0; i < nodes.length; i++){
-				newNodes[newIndices[i]] = nodes[i];
+	/**
+	 * Returns the positions in the node order of the first pair of nodes
+	 * with the maximum value.
+	 */
+	private static int[] getMaxValueCoordinates(double[][] distances, 
+			NodeOrder order) {
+		int maxI = -1, maxJ = -1; //positions for pair with maximum value
+		double maxDistance = Double.NEGATIVE_INFINITY; //maximum value so far
+		int nodeCount = order.size();
+		for(int i = 0; i < nodeCount; i++) {
+			double[] row = distances[order.get(i)];
+			for(int j = i+1; j < nodeCount; j++) {
+				double value = row[order.get(j)];
+				if(value > maxDistance) {
+					maxDistance = value;
+					maxI = i;
+					maxJ = j;
+				}
 			}
-			newNodes[0] = combinedNode.toString();
+		}
+		return new int[]{maxI, maxJ};
+	}
 
+	/**
+	 * The order of the remaining nodes, by their original index. When two
+	 * nodes are merged, the new node (which keeps the index of the first
+	 * merged node) goes first, followed by the other remaining nodes in
+	 * their previous order.
+	 */
+	private static class NodeOrder {
+		private int[] nodes;
+		private int[] buffer;
+		/*
+		 * position of each node, or -1 for nodes that have been merged
+		 * into another
+		 */
+		private int[] positions;
+		private int size;
+
+		NodeOrder(int size) {
+			this.size = size;
+			nodes = new int[size];
+			buffer = new int[size];
+			positions = new int[size];
+			for(int i = 0; i < size; i++) {
+				nodes[i] = i;
+				positions[i] = i;
+			}
+		}
 
-			if(newNodes.length > 3) {
-			    //set the distanceMatrix to null. Otherwise, if the recursion goes too
-				//deep, we'll use too much memory
-				distanceMatrix = null;
-				r = getNJTreeString(newNodes, newDistances, matrixType);
-			} else if(newNodes.length == 3) {
-				//there are three nodes remaining, which means there is no more
-				//merging to be done. 
-				//Need to determine the branch lengths for the three remaining 
-				//branches (from each of the three remaining nodes to the 'root')
+		int size() {
+			return size;
+		}
 
-				if(debug) {
-					System.out.println("done merging. these are the 3 nodes remaining: "); 
-					printMatrices(newNodes, newDistances, null);
-					for(int i = 0; i < newNodes.length; i++) {
-						System.out.println(newNodes[i]);
-					}
-				}
+		/**
+		 * Returns the original index of the node at the position.
+		 */
+		int get(int position) {
+			return nodes[position];
+		}
 
-				sums = new double[newDistances.length];
-				for(int i = 0; i < newDistances.length; i++) {
-					sums[i] = 0;
-					for(int j = 0; j < newDistances[i].length; j++) {
-						sums[i] += newDistances[i][j];
-					}
+		/**
+		 * Returns the position of the node with the original index, or -1
+		 * if it has been merged into another node.
+		 */
+		int getPosition(int node) {
+			return positions[node];
+		}
+
+		void merge(int mergeI, int mergeJ) {
+			buffer[0] = mergeI;
+			int next = 1;
+			for(int i = 0; i < size; i++) {
+				if(nodes[i] != mergeI && nodes[i] != mergeJ) {
+					buffer[next] = nodes[i];
+					next++;
 				}
+			}
+			int[] temp = nodes;
+			nodes = buffer;
+			buffer = temp;
+			size = next;
+			positions[mergeJ] = -1;
+			for(int i = 0; i < size; i++) {
+				positions[nodes[i]] = i;
+			}
+		}
+	}
 
-				//determine distances for three remaining nodes
-				double distance0 = (newDistances[0][1] /2) + 
-				(0.5 * (sums[0] - sums[1]));
-				double distance1 = (newDistances[1][2] /2) + 
-				(0.5 * (sums[1] - sums[2]));
-				double distance2 = (newDistances[2][0] /2) + 
-				(0.5 * (sums[2] - sums[0]));
+	/**
+	 * The distances from one node to the nodes that existed when it was
+	 * created, sorted in ascending order. Entries become invalid when 
+	 * their node is merged, and are removed from the part of the row 
+	 * that has been read, so they are not read again.
+	 */
+	private static class SortedRow {
+		private double[] distances;
+		private int[] nodes;
+		/*
+		 * entries before start have been removed
+		 */
+		private int start;
+		private int size;
 
-				if(debug) {
-					System.out.println("distance0: " + distance0);
-					System.out.println("distance1: " + distance1);
-					System.out.println("distance2: " + distance2);
+		/**
+		 * Creates the row for one of the original nodes, holding the 
+		 * nodes with lower indices.
+		 */
+		SortedRow(double[] row, int node) {
+			size = node;
+			distances = new double[size];
+			nodes = new int[size];
+			for(int i = 0; i < size; i++) {
+				distances[i] = row[i];
+				nodes[i] = i;
+			}
+			sort();
+		}
+
+		/**
+		 * Creates the row for a new node, holding all other 
+		 * remaining nodes.
+		 */
+		SortedRow(double[] row, NodeOrder order) {
+			size = order.size() - 1;
+			distances = new double[size];
+			nodes = new int[size];
+			for(int i = 0; i < size; i++) {
+				//the new node is first in the order
+				int node = order.get(i+1);
+				distances[i] = row[node];
+				nodes[i] = node;
+			}
+			sort();
+		}
+
+		/**
+		 * Removes the invalid entries between start and end, moving the
+		 * valid ones up to end.
+		 */
+		void removeInvalid(int end, int rowCreated, int[] created, 
+				NodeOrder order) {
+			int next = end;
+			for(int i = end - 1; i >= start; i--) {
+				int node = nodes[i];
+				if(order.getPosition(node) >= 0 && 
+						created[node] < rowCreated) {
+					next--;
+					distances[next] = distances[i];
+					nodes[next] = node;
 				}
+			}
+			start = next;
+		}
 
-				r = "(" + newNodes[0] + ":" + distance0 + ","
-				+ newNodes[1] + ":" + distance1 + "," + newNodes[2] + ":" + distance2 + ");";
+		/**
+		 * Heap sort of the distances, keeping the nodes with them.
+		 */
+		private void sort() {
+			for(int i = size/2 - 1; i >= 0; i--) {
+				siftDown(i, size);
+			}
+			for(int end = size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
 			}
 		}
-		return r;
+
+		private void siftDown(int index, int end) {
+			int child = index*2 + 1;
+			while(child < end) {
+				if(child + 1 < end && distances[child+1] > distances[child]) {
+					child++;
+				}
+				if(distances[child] <= distances[index]) {
+					break;
+				}
+				swap(index, child);
+				index = child;
+				child = index*2 + 1;
+			}
+		}
+
+		private void swap(int i, int j) {
+			double distance = distances[i];
+			distances[i] = distances[j];
+			distances[j] = distance;
+			int node = nodes[i];
+			nodes[i] = nodes[j];
+			nodes[j] = node;
+		}
 	}
 
 	private static double[][] convertSimilarityToDistanceMatrix(double[][] similarityMatrix) {
@@ -662,88 +1087,4 @@ public class TreeBuilder {
 			}
 		}
 	}
-
-	private static double[][] getQMatrix(double[][] distanceMatrix) {
-		double[][] Q = new double[distanceMatrix.length][distanceMatrix.length];
-
-		//calculate sums for each row
-		double[] sums = new double[Q.length];
-		for(int i = 0; i < sums.length; i++) {
-			sums[i] = 0;
-			for(int j = 0; j < Q.length; j++) {
-				sums[i] += distanceMatrix[i][j];
-			}
-		}
-
-		int rMinus2 = Q.length - 2;
-
-		for(int i = 0; i < Q.length; i++) {
-			//initialize diagonals to 0.0
-			Q[i][i] = 0.0;
-			for(int j = i+1; j < Q.length; j++) {
-				double value = (rMinus2 * distanceMatrix[i][j]) -
-				sums[i] - sums[j];
-				Q[i][j] = value;
-				Q[j][i] = value;
-			}
-		}
-
-		return Q;
-	}
-
-	/**
-	 * Internal utility method for finding the values of
-	 * i and j that have the minimum value in the given
-	 * matrix. This currently assumes a square symmetrical
-	 * matrix.
-	 * 
-	 * @return
-	 */
-	private static int[] getMinValueCoordinates(double[][] matrix) {
-		int[] r = null;
-		//find pair of indices with minimum value
-		int minI = -1, minJ = -1; //indices for pair with minimum value
-		double minDistance = Double.MAX_VALUE; //minimum value so far
-
-		for(int i = 0; i < matrix.length; i++) {
-			for(int j = i+1; j < matrix[i].length; j++) {
-				if(matrix[i][j] < minDistance) {
-					minDistance = matrix[i][j];
-					minI = i;
-					minJ = j;
-				}
-			}
-		}
-
-		r = new int[]{minI, minJ};
-		return r;
-	}
-
-	/**
-	 * Internal utility method for finding the values of
-	 * i and j that have the minimum value in the given
-	 * matrix. This currently assumes a square symmetrical 
-	 * matrix.
-	 * 
-	 * @return
-	 */
-	private static int[] getMaxValueCoordinates(double[][] matrix) {
-		int[] r = null;
-		//find pair of indices with maximum value
-		int maxI = -1, maxJ = -1; //indices for pair with maximum value
-		double maxDistance = Double.NEGATIVE_INFINITY; //maximum value so far
-
-		for(int i = 0; i < matrix.length; i++) {
-			for(int j = i+1; j < matrix[i].length; j++) {
-				if(matrix[i][j] > maxDistance) {
-					maxDistance = matrix[i][j];
-					maxI = i;
-					maxJ = j;
-				}
-			}
-		}
-
-		r = new int[]{maxI, maxJ};
-		return r;
-	}
 }
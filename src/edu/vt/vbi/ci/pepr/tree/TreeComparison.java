@@ -901,10 +901,8 @@ public class TreeComparison {
 
 	private FastaSequenceFile[] loadSequenceFiles(String[] sequenceFileNames) 
 			throws IOException {
-		FastaSequenceFile[] r = new FastaSequenceFile[sequenceFileNames.length];
-		for(int i = 0; i < r.length; i++) {
-			r[i] = new FastaSequenceFile(sequenceFileNames[i]);
-		}
+		//files are indexed concurrently
+		FastaSequenceFile[] r = FastaSequenceFile.loadAll(sequenceFileNames);
 		return r;
 	}
 }
@@ -1,13 +1,11 @@
 package edu.vt.vbi.ci.pepr.tree;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import edu.vt.vbi.ci.util.CommandLineProperties;
-import edu.vt.vbi.ci.util.ExtendedBitSet;
 import edu.vt.vbi.ci.util.file.TextFile;
 
 public class TreeSupportDecorator {
@@ -23,31 +21,52 @@ public class TreeSupportDecorator {
 		String mainTreeFileName = clp.getValues(MAIN, NONE)[0];
 		String[] supportTreeFileNames = clp.getValues(SUPPORT, NONE);
 
-		//load tree strings from files
+		//load the main tree, then count the support trees one at a time
+		//as they are read from the files
 		try {
 			System.out.println("main tree file: " + mainTreeFileName);
 			String mainTree = new TextFile(mainTreeFileName).toString().trim();
+			String[] taxa = new AdvancedTree(mainTree).getLeafLabels();
+			Arrays.sort(taxa);
 
-			ArrayList<String> supportTrees = new ArrayList<String>();
+			BipartitionCounter counter = new BipartitionCounter(taxa);
 			for(int i = 0; i < supportTreeFileNames.length; i++) {
-				TextFile supportTreeFile = new TextFile(supportTreeFileNames[i]);
-				String[] treeLines = supportTreeFile.getAllLines();
-				for(String treeLine: treeLines) {
-					if(treeLine.trim().length() > 0) {
-						supportTrees.add(treeLine.trim());
-					}
-				}
+				addSupportTrees(supportTreeFileNames[i], counter);
 			}
 
-			String[] supports = new String[supportTrees.size()];
-			supportTrees.toArray(supports);
-			String decoratedTree = addSupportValues(mainTree, supports);
+			String decoratedTree = addSupportValues(mainTree, counter);
 			System.out.println(decoratedTree);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Reads the trees in the file, one per line, and adds each to the
+	 * counter as it is read. Only one tree is held at a time.
+	 *
+	 * @param supportTreeFileName
+	 * @param counter
+	 * @return the number of trees read
+	 * @throws IOException
+	 */
+	public static int addSupportTrees(String supportTreeFileName,
+			BipartitionCounter counter) throws IOException {
+		int r = 0;
+		TextFile supportTreeFile = new TextFile(supportTreeFileName);
+		int lineCount = supportTreeFile.getLineCount();
+		supportTreeFile.openFile();
+		for(int i = 0; i < lineCount; i++) {
+			String treeLine = supportTreeFile.getLine(i).trim();
+			if(treeLine.length() > 0) {
+				counter.addTree(treeLine);
+				r++;
+			}
+		}
+		supportTreeFile.closeFile();
+		return r;
+	}
+
 	/**
 	 * Adds support values to the mainTree based on the presence of
 	 * bipartitions in the supportTrees. All tree should have the 
@@ -86,69 +105,62 @@ public class TreeSupportDecorator {
 	public static String addSupportValues(String main, String[] supports) {
 		String r = null;
 
-		//create BasicTrees for all tree strings
 		AdvancedTree mainTree = new AdvancedTree(main);
 		mainTree.unroot();
 
-		System.out.println("support trees: " + supports.length);
-		AdvancedTree[] supportTrees = new AdvancedTree[supports.length];
-		for(int i = 0; i < supportTrees.length; i++) {
-			supportTrees[i] = new AdvancedTree(supports[i]);
-			supportTrees[i].unroot();
-		}
-
-		//create a list of taxa contained in the main tree. The index in this
-		//list will be used for the bipartition BitSets
+		//create a list of taxa contained in the main tree. Leaves of the
+		//support trees that are not in this list are ignored
 		String[] taxa = mainTree.getLeafLabels();
 		Arrays.sort(taxa);
 
-		//Get all Bipartitions from all trees
-		//main tree bipartitions are stored in an array with the same indices
-		//as the corresponding nodes in the BasicTree
-		int nodeCount = mainTree.getNodeCount();
-		Bipartition[] mainTreeBiparts = new Bipartition[nodeCount];
-		int taxonCount = taxa.length;
-		String[][] nodeLeaves = new String[nodeCount][];
-		for(int i = 0; i < nodeCount; i++) {
-			nodeLeaves[i] = mainTree.getDescendantLeaves(i);
-			ExtendedBitSet ebs = new ExtendedBitSet();
-			for(int j = 0; j < nodeLeaves[i].length; j++) {
-				int index = Arrays.binarySearch(taxa, nodeLeaves[i][j]);
-				if(index > -1) {
-					ebs.set(index);
-				}
-			}
-			mainTreeBiparts[i] = new Bipartition(ebs, taxonCount);
-		}
-		//done getting mainTree bipartitions
-
-		//get support tree bipartitions as a BipartitionSet
-		BipartitionSet supportTreeBipartSet = new BipartitionSet();
-		for(int i = 0; i < supportTrees.length; i++) {
-			nodeCount = supportTrees[i].getNodeCount();
-			nodeLeaves = new String[nodeCount][];
-			for(int j = 0; j < nodeCount; j++) {
-				nodeLeaves[j] = supportTrees[i].getDescendantLeaves(j);
-				ExtendedBitSet ebs = new ExtendedBitSet();
-				for(int k = 0; k < nodeLeaves[j].length; k++) {
-					int index = Arrays.binarySearch(taxa, nodeLeaves[j][k]);
-					if(index > -1) {
-						ebs.set(index);
-					}
-				}
-				Bipartition bipart = new Bipartition(ebs, taxonCount);
-				supportTreeBipartSet.add(bipart);
-			}	
+		//count the bipartitions of each support tree as it is parsed. Only
+		//the counts are kept, not the trees or their bipartitions
+		BipartitionCounter counter = new BipartitionCounter(taxa);
+		for(int i = 0; i < supports.length; i++) {
+			counter.addTree(supports[i]);
 		}
 
+		r = addSupportValues(mainTree, counter);
+		return r;
+	}
+
+	/**
+	 * Adds support values to the main tree from the bipartition counts
+	 * of support trees that have already been counted. The support trees
+	 * may have been added to the counter as they were read or built.
+	 *
+	 * @param main
+	 * @param counter
+	 * @return
+	 */
+	public static String addSupportValues(String main,
+			BipartitionCounter counter) {
+		String r = null;
+		AdvancedTree mainTree = new AdvancedTree(main);
+		mainTree.unroot();
+		r = addSupportValues(mainTree, counter);
+		return r;
+	}
+
+	private static String addSupportValues(AdvancedTree mainTree,
+			BipartitionCounter counter) {
+		String r = null;
+		System.out.println("support trees: " + counter.getTreeCount());
+
+		//taxon indices for printing the main tree bipartitions
+		String[] taxa = mainTree.getLeafLabels();
+		Arrays.sort(taxa);
+
 		//For each bipartiion in the main tree, find out how many support
-		//trees contain the same bipartition
-		int[] bipartSupportCounts = new int[mainTreeBiparts.length];
+		//trees contain the same bipartition. The counts are indexed by
+		//main tree node
+		int[] bipartSupportCounts = counter.getNodeCounts(mainTree.getBasicTree());
+		long[] nodeWords = new long[PackedBipartition.getWordCount(taxa.length)];
 		for(int i = 0; i < bipartSupportCounts.length; i++) {
-			bipartSupportCounts[i] = supportTreeBipartSet.getCount(mainTreeBiparts[i]);
 			if(bipartSupportCounts[i] < 100) {
 				System.out.println("main tree bipartition:");
-				System.out.println(mainTreeBiparts[i].getString());
+				System.out.println(
+						getNodeBipartition(mainTree, i, taxa, nodeWords).getString());
 				System.out.println("support: " + bipartSupportCounts[i]);
 			}
 		}
@@ -162,4 +174,22 @@ public class TreeSupportDecorator {
 		return r;
 	}
 
+	/**
+	 * Returns the Bipartition separating the leaves descended from the
+	 * given node from all other taxa. Taxon indices are positions in the
+	 * sorted taxa array. words is scratch space, with one long per 64 taxa.
+	 */
+	private static PackedBipartition getNodeBipartition(AdvancedTree tree,
+			int node, String[] taxa, long[] words) {
+		Arrays.fill(words, 0);
+		String[] nodeLeaves = tree.getDescendantLeaves(node);
+		for(int k = 0; k < nodeLeaves.length; k++) {
+			int index = Arrays.binarySearch(taxa, nodeLeaves[k]);
+			if(index > -1) {
+				words[index >>> 6] |= 1L << index;
+			}
+		}
+		return new PackedBipartition(words, taxa.length);
+	}
+
 }
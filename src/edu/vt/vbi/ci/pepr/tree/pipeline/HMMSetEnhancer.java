@@ -529,7 +529,7 @@ public class HMMSetEnhancer {
 							+ hmmFileName + " " 
 							+ genomeSequenceFiles[genomeIndex].getFile().getPath();
 
-					ExecUtilities.exec(hmmsearchCmd);
+					ExecUtilities.exec(hmmsearchCmd, 2);
 					TextFile resultFile =  new TextFile(outfileName);
 					if(!keepHMMSearchFiles) {
 						resultFile.getFile().deleteOnExit();
@@ -28,8 +28,10 @@ import edu.vt.vbi.ci.util.HandyConstants;
 import edu.vt.vbi.ci.util.IntPair;
 import edu.vt.vbi.ci.util.PEPRTracker;
 import edu.vt.vbi.ci.util.SequenceSetExtractor;
+import edu.vt.vbi.ci.util.file.FastaIndexCache;
 import edu.vt.vbi.ci.util.file.FastaSequenceFile;
 import edu.vt.vbi.ci.util.file.FastaUtilities;
+import edu.vt.vbi.ci.util.file.MappedLine;
 import edu.vt.vbi.ci.util.file.TextFile;
 
 /**
@@ -63,6 +65,7 @@ public class PhyloPipeline {
 	private String tree;
 	private String[] selectedOutgroupGenomes;
 	private boolean writeJSON = false;
+	private boolean useIndexCache = true;
 
 	public static void main(String[] args) {
 		startTime = System.currentTimeMillis();
@@ -260,6 +263,8 @@ public class PhyloPipeline {
 
 		FastaSequenceFile[] inputSequenceFiles = null;
 
+		useIndexCache = clp.getValues(HandyConstants.INDEX_CACHE,
+				HandyConstants.TRUE)[0].equalsIgnoreCase(HandyConstants.TRUE);
 		try {
 			inputSequenceFiles = loadSequenceFiles(inputSequenceFileNames);
 		} catch (IOException e) {
@@ -927,13 +932,17 @@ public class PhyloPipeline {
 					+ lineCount);
 		}
 
-		hitPairFile.openFile();
-		Pattern tabPattern = Pattern.compile(tab);
+		//walk the lines through memory-mapped views, extracting only
+		//the fields that are needed, rather than reading and splitting
+		//a String for every line
+		hitPairFile.mapFile();
+		MappedLine line = new MappedLine();
 		for(int i = 0; i < lineCount; i++) {
-			String[] fields = tabPattern.split(hitPairFile.getLine(i));
-			if(fields.length > 1) {
-				String id1 = new String(fields[id1Field]);
-				String id2 = new String(fields[id2Field]);
+			hitPairFile.getLineSequence(i, line);
+			CharSequence id2Seq = line.getField(id2Field, '\t');
+			if(id2Seq != null) {
+				String id1 = line.getField(id1Field, '\t').toString();
+				String id2 = id2Seq.toString();
 
 				allIds.add(id1);
 				allIds.add(id2);
@@ -947,23 +956,25 @@ public class PhyloPipeline {
 		HashMap pairToScore = new HashMap();
 
 		for(int i = 0; i < lineCount; i++) {
-			String[] fields = tabPattern.split(hitPairFile.getLine(i));
-			if(fields.length > scoreField) {
-				String id1 = new String(fields[id1Field]);
-				String id2 = new String(fields[id2Field]);
+			hitPairFile.getLineSequence(i, line);
+			CharSequence scoreSeq = line.getField(scoreField, '\t');
+			if(scoreSeq != null) {
+				String id1 = line.getField(id1Field, '\t').toString();
+				String id2 = line.getField(id2Field, '\t').toString();
+				String scoreString = scoreSeq.toString();
 				int index1 = Arrays.binarySearch(ids, id1);
 				int index2 = Arrays.binarySearch(ids, id2);
 				IntPair pair = new IntPair(index1, index2);
 				Float storedScore = (Float) pairToScore.get(pair);
 				if(storedScore == null) {
 					//this pair has not been seen. Add it to the hash
-					Float score = new Float(fields[scoreField]);
+					Float score = new Float(scoreString);
 					pairToScore.put(pair, score);
 				} else {
 					//this pair has already been stored, so this is a bidirectional
 					//hit. Print two lines to the output file for this pair.
 					String line1 = id1 + tab + id2
-							+ tab + fields[scoreField] + nl;
+							+ tab + scoreString + nl;
 					String line2 = id2 + tab + id1 
 							+ tab + storedScore.toString() + nl;
 					fw.write(line1);
@@ -974,7 +985,7 @@ public class PhyloPipeline {
 			}
 		}
 
-		hitPairFile.closeFile();
+		hitPairFile.unmapFile();
 
 		pairToScore = null;
 		fw.close();
@@ -1003,14 +1014,21 @@ public class PhyloPipeline {
 				hitPairFile.getFile().getAbsolutePath() + "_filtered";
 		FileWriter fw = new FileWriter(filteredFileName);
 
+		hitPairFile.mapFile();
+		MappedLine line = new MappedLine();
 		for(int i = 0; i < lineCount; i++) {
-			String[] fields = hitPairFile.getLine(i).split(tab);
-			if(fields.length > 1) {
-				String filteredLine = fields[id1Field] + tab + fields[id2Field]
-						+ tab + fields[scoreField] + nl;
-				fw.write(filteredLine);
+			hitPairFile.getLineSequence(i, line);
+			CharSequence score = line.getField(scoreField, '\t');
+			if(score != null) {
+				fw.append(line.getField(id1Field, '\t'));
+				fw.write(tab);
+				fw.append(line.getField(id2Field, '\t'));
+				fw.write(tab);
+				fw.append(score);
+				fw.write(nl);
 			}
 		}
+		hitPairFile.unmapFile();
 
 		fw.flush();
 		fw.close();
@@ -1092,10 +1110,10 @@ public class PhyloPipeline {
 	}
 
 	private FastaSequenceFile[] loadSequenceFiles(String[] sequenceFileNames) throws IOException {
-		FastaSequenceFile[] r = new FastaSequenceFile[sequenceFileNames.length];
-		for(int i = 0; i < r.length; i++) {
-			r[i] = new FastaSequenceFile(sequenceFileNames[i]);
-		}
+		//files are indexed concurrently, and the index of any file that
+		//has not changed since the last run is loaded from its sidecar
+		FastaSequenceFile[] r = 
+				FastaSequenceFile.loadAll(sequenceFileNames, useIndexCache);
 		return r;
 	}
 
@@ -1221,6 +1239,8 @@ public class PhyloPipeline {
 				"Specifies the number of outgroup genomes to be selected from the outgroup pool for use in the tree.");
 		commands.put(HandyConstants.TRIM_PERCENT, 
 				"Specifies the proportion of homolog groups to be removed by the congruence filter. Default is 10");
+		commands.put(HandyConstants.INDEX_CACHE, 
+				"Keep an index file (" + FastaIndexCache.INDEX_SUFFIX + ") next to each genome file, so unchanged genome files are not re-indexed on later runs. Default is True.");
 		commands.put(HandyConstants.ML_MATRIX, 
 				"Specifies the transition matrix to use for maximum likelihood. Options are any matric supported by RAxML. Default is PROTGAMMAWAG.");
 
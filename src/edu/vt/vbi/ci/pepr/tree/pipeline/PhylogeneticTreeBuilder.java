@@ -222,10 +222,9 @@ public class PhylogeneticTreeBuilder implements Runnable{
 			alignmentTempFile = File.createTempFile("tmp_", ".align", 
 					new File(System.getProperty("user.dir")));
 			alignmentTempFile.deleteOnExit();
-			FileWriter fw = new FileWriter(alignmentTempFile);
-			fw.write(alignment.getAlignmentAsFasta());
-			fw.flush();
-			fw.close();
+			FileOutputStream out = new FileOutputStream(alignmentTempFile);
+			alignment.writeTo(out.getChannel(), SequenceAlignment.FASTA_FORMAT);
+			out.close();
 
 			//set alignment file name property
 			String alignmentFileName = alignmentTempFile.getName();
@@ -1,26 +1,37 @@
 package edu.vt.vbi.ci.pepr.tree.pipeline;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import edu.vt.vbi.ci.pepr.alignment.AlignmentCache;
 import edu.vt.vbi.ci.pepr.alignment.AlignmentUtilities;
+import edu.vt.vbi.ci.pepr.alignment.ColumnBipartitions;
 import edu.vt.vbi.ci.pepr.alignment.ConcatenatedSequenceAlignment;
 import edu.vt.vbi.ci.pepr.alignment.MSAConcatenator;
 import edu.vt.vbi.ci.pepr.alignment.MSATrimmer;
 import edu.vt.vbi.ci.pepr.alignment.MultipleSequenceAligner;
+import edu.vt.vbi.ci.pepr.alignment.PatternResampler;
 import edu.vt.vbi.ci.pepr.alignment.SequenceAlignment;
 import edu.vt.vbi.ci.pepr.alignment.SequenceAlignmentParser;
 import edu.vt.vbi.ci.pepr.stats.StatisticsUtilities;
 import edu.vt.vbi.ci.pepr.tree.BasicTree;
-import edu.vt.vbi.ci.pepr.tree.Bipartition;
+import edu.vt.vbi.ci.pepr.tree.BipartitionCounter;
 import edu.vt.vbi.ci.pepr.tree.BipartitionSet;
 import edu.vt.vbi.ci.pepr.tree.FastTreeRunner;
 import edu.vt.vbi.ci.pepr.tree.RAxMLRunner;
@@ -29,6 +40,7 @@ import edu.vt.vbi.ci.pepr.tree.TreeBuilderComparator;
 import edu.vt.vbi.ci.pepr.tree.TreeSupportDecorator;
 import edu.vt.vbi.ci.util.CommandLineProperties;
 import edu.vt.vbi.ci.util.HandyConstants;
+import edu.vt.vbi.ci.util.JobScheduler;
 import edu.vt.vbi.ci.util.PEPRTracker;
 import edu.vt.vbi.ci.util.RandomSetUtils;
 import edu.vt.vbi.ci.util.file.FastaSequenceSet;
@@ -51,9 +63,18 @@ public class PhylogenomicPipeline2 {
 
 	private SequenceSetProvider inputSequenceSetProvider;
 	/*
-	 * cache for alignments, to avoid duplicating work
+	 * cache for alignments, to avoid duplicating work.
+	 * Key: FastaSequenceSet
+	 * value: the SequenceAlignment, or a FutureTask for it while the
+	 *        set is being aligned. Each set is aligned once, and Threads
+	 *        needing a set that is being aligned wait only for that set.
 	 */
-	private HashMap sequenceSetToAlignment;
+	private ConcurrentHashMap sequenceSetToAlignment = new ConcurrentHashMap();
+	/*
+	 * persistent cache for alignments, shared between runs. null if
+	 * no cache directory is given
+	 */
+	private AlignmentCache alignmentCache;
 
 	private MultipleSequenceAligner multipleSequenceAligner;
 	private MSATrimmer msaTrimmer;
@@ -202,9 +223,26 @@ public class PhylogenomicPipeline2 {
 		//determine alignment trimming parameters
 		setGblocksTrim(commandLineProperties.getValues(HandyConstants.GBLOCKS_TRIM, 
 				HandyConstants.FALSE)[0].equalsIgnoreCase(HandyConstants.TRUE));
+		if(msaTrimmer == null) {
+			msaTrimmer = new MSATrimmer();
+		}
+		msaTrimmer.setUseGblocksProgram(commandLineProperties.getValues(
+				HandyConstants.GBLOCKS_PROGRAM, HandyConstants.FALSE)[0].
+				equalsIgnoreCase(HandyConstants.TRUE));
 		setUniformTrim(commandLineProperties.getValues(HandyConstants.UNIFORM_TRIM, 
 				HandyConstants.FALSE)[0].equalsIgnoreCase(HandyConstants.TRUE));
 
+		//alignments of unchanged sequence sets can be reused from earlier runs
+		String alignmentCacheDir = commandLineProperties.getValues(
+				HandyConstants.ALIGNMENT_CACHE, null)[0];
+		if(alignmentCacheDir != null) {
+			long alignmentCacheMB = Long.parseLong(commandLineProperties.
+					getValues(HandyConstants.ALIGNMENT_CACHE_SIZE, "1024")[0]);
+			alignmentCache = new AlignmentCache(new File(alignmentCacheDir), 
+					alignmentCacheMB*1024*1024);
+			logger.info("using alignment cache " + alignmentCacheDir);
+		}
+
 		if(inputsAligned) {
 			loadInputAlignments(inputSequenceSetProvider.getAllSequenceSets());
 		}
@@ -225,6 +263,13 @@ public class PhylogenomicPipeline2 {
 		int treeThreads = Integer.parseInt(
 				commandLineProperties.getValues(HandyConstants.TREE_THREADS, "1")[0]);
 
+		//external programs (aligners, tree builders) reserve their cores 
+		//from this budget, so parallel steps do not oversubscribe the machine.
+		//The budget is only lowered here, so a pepr.cores limit is kept
+		JobScheduler scheduler = JobScheduler.getInstance();
+		scheduler.setCoreBudget(Math.min(scheduler.getCoreBudget(),
+				Math.max(treeThreads, alignmentThreadCount)));
+
 		//See if matrix evaluation should be done
 		boolean doMatrixEvaluation = 
 				!commandLineProperties.getValues(
@@ -435,9 +480,11 @@ public class PhylogenomicPipeline2 {
 		FastaSequenceSet[] sequenceSets = provider.getAllSequenceSets();
 		ConcatenatedSequenceAlignment cat = getConcatenatedAlignment(provider);
 		int topN = cat.getNTax() * 4;
+		//the column bipartitions are determined once, and used both for the
+		//full set and for the bipartitions of each alignment
+		ColumnBipartitions columnBiparts = new ColumnBipartitions(cat);
 		BipartitionSet fullBipartSet = 
-				new BipartitionSet(cat.getBipartitionsForColumns(10000), topN);
-		//				new BipartitionSet(cat.getBipartitionsForColumns(10000));
+				columnBiparts.getBipartitionSet(10000, topN);
 		fullBipartSet.setTaxa(cat.getTaxa());
 		//		fullBipartSet = new BipartitionSet(fullBipartSet.getNonTrivialBipartitions(), topN);
 		//		fullBipartSet.setTaxa(cat.getTaxa());
@@ -445,27 +492,24 @@ public class PhylogenomicPipeline2 {
 		fullBipartSet.printBipartitionsAndCounts();
 		//		fullBipartSet.printNonTrivialBipartitionsAndCounts();
 
+		//cost of each distinct column bipartition, indexed by id
+		int[] bipartCosts = 
+			fullBipartSet.getCosts(columnBiparts.getBipartitions());
+
 		SequenceAlignment[] alignments = cat.getAlignments();
-		Bipartition[][] alignmentBiparts = 
-				new Bipartition[alignments.length][];
 		int[] alignmentMeanCosts = new int[alignments.length];
 
 		long sumOfMeans = 0;
 		long fullCostSum = 0;
-		for(int i = 0; i < alignmentBiparts.length; i++) {
-			alignmentBiparts[i] = cat.getBipartitionsForAlignment(i);
-			int costSum = 0;
-			for(int j = 0; j < alignmentBiparts[i].length; j++) {
-				int bipartCost = fullBipartSet.getCost(alignmentBiparts[i][j]); 
-				//System.out.println("cost for bipart " + i + ", " + j + ": " + bipartCost);
-				costSum += bipartCost;
-				fullCostSum += bipartCost;
-				if(fullCostSum < 0) {
-					//					System.out.println("negative fullCostSum: " + fullCostSum);
-				}
-			}
-
-			alignmentMeanCosts[i] = costSum/alignments[i].getLength();
+		for(int i = 0; i < alignments.length; i++) {
+			//sum of the costs of the distinct bipartitions in the
+			//columns of this alignment
+			long costSum = columnBiparts.getDistinctSum(
+					cat.getAlignmentStart(i), cat.getAlignmentStop(i), 
+					bipartCosts);
+			fullCostSum += costSum;
+
+			alignmentMeanCosts[i] = (int) (costSum/alignments[i].getLength());
 			sumOfMeans += alignmentMeanCosts[i];
 			//			System.out.println("" + i + " length: " + alignments[i].getLength() 
 			//					+ " fullCost: " + costSum + " meanCost: "+ alignmentMeanCosts[i]);
@@ -511,7 +555,7 @@ public class PhylogenomicPipeline2 {
 	}
 
 	private void loadInputAlignments(FastaSequenceSet[] sequenceSets) {
-		sequenceSetToAlignment = new HashMap();
+		sequenceSetToAlignment = new ConcurrentHashMap();
 		if(msaTrimmer == null) {
 			msaTrimmer = new MSATrimmer();
 		}
@@ -527,7 +571,9 @@ public class PhylogenomicPipeline2 {
 				if(isGblocksTrim()) {
 					alignment = msaTrimmer.trim(alignment);
 				}
-				sequenceSetToAlignment.put(sequenceSets[i], alignment);
+				if(alignment != null) {
+					sequenceSetToAlignment.put(sequenceSets[i], alignment);
+				}
 
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
@@ -626,6 +672,12 @@ public class PhylogenomicPipeline2 {
 				"Perform all alignments first, then begin tree-building stage");
 		commands.put(HandyConstants.GBLOCKS_TRIM, 
 				"Use Gblocks for automated trimming of alignments");
+		commands.put(HandyConstants.GBLOCKS_PROGRAM, 
+				"Run the Gblocks program for " + HandyConstants.GBLOCKS_TRIM + ", rather than selecting the same blocks in-process. Default is false");
+		commands.put(HandyConstants.ALIGNMENT_CACHE, 
+				"Directory for keeping alignments between runs. Sequence sets that are unchanged from an earlier run with the same alignment and trimming options are not aligned again");
+		commands.put(HandyConstants.ALIGNMENT_CACHE_SIZE, 
+				"Maximum size of the alignment cache, in MB. The least recently used alignments are removed when it is exceeded. Default is 1024");
 		commands.put(HandyConstants.UNIFORM_TRIM, 
 				"Remove any uniform columns from alignments (these are not phylogenetically informative, but may affect the absolute branch lengths)");
 		commands.put(HandyConstants.PARSIMONY, 
@@ -705,22 +757,19 @@ public class PhylogenomicPipeline2 {
 		Iterator sequenceIterator = 
 				provider.getSynchronizedIterator();
 
-		//create and start all Threads
-		Thread[] alignmentThreads = new Thread[threads];
-		for(int i = 0; i < alignmentThreads.length; i++) {
-			alignmentThreads[i] = 
-					new Thread(new AlignmentRunnable(sequenceIterator));
-			alignmentThreads[i].start();
+		//submit one task per sequence set. The pool runs up to 'threads'
+		//of them at once
+		ExecutorService alignmentPool = 
+				JobScheduler.getInstance().newWorkerPool(threads, "align");
+		FastaSequenceSet sequenceSet = 
+				(FastaSequenceSet) sequenceIterator.next();
+		while(sequenceSet != null) {
+			alignmentPool.execute(new AlignmentRunnable(sequenceSet));
+			sequenceSet = (FastaSequenceSet) sequenceIterator.next();
 		}
 
-		//wait for all Threads to finish
-		for(int i = 0; i < alignmentThreads.length; i++) {
-			try {
-				alignmentThreads[i].join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		//wait for all alignments to finish
+		JobScheduler.awaitCompletion(alignmentPool);
 		logger.info("done aligning");
 	}
 
@@ -731,19 +780,87 @@ public class PhylogenomicPipeline2 {
 	 * is taken from the file. If no alignment file exists, the sequences
 	 * are aligned with the MultipleSequenceAligner.
 	 * 
+	 * If an alignment cache is in use, the aligned and trimmed alignment
+	 * is taken from the cache when the same sequences were aligned with 
+	 * the same settings before, and is added to the cache otherwise.
+	 * 
+	 * This may be called from several Threads at once. The first Thread
+	 * asking for a set creates its alignment, and other Threads asking
+	 * for the same set wait for it. If no alignment could be made, the
+	 * next call tries again.
+	 * 
 	 * @param sequenceSet
 	 * @return
 	 */
-	private SequenceAlignment getAlignment(FastaSequenceSet sequenceSet) {
+	private SequenceAlignment getAlignment(final FastaSequenceSet sequenceSet) {
 		SequenceAlignment r = null;
 
-		boolean reuseAlignmentFiles = false;
-		if(sequenceSetToAlignment == null) {
-			sequenceSetToAlignment = new HashMap();
+		Object registered = sequenceSetToAlignment.get(sequenceSet);
+		if(registered == null) {
+			FutureTask alignmentTask = new FutureTask(new Callable() {
+				public Object call() {
+					return createAlignment(sequenceSet);
+				}
+			});
+			registered = 
+				sequenceSetToAlignment.putIfAbsent(sequenceSet, alignmentTask);
+			if(registered == null) {
+				//this Thread does the alignment
+				registered = alignmentTask;
+				alignmentTask.run();
+			}
+		}
+
+		if(registered instanceof SequenceAlignment) {
+			r = (SequenceAlignment) registered;
+		} else {
+			FutureTask alignmentTask = (FutureTask) registered;
+			try {
+				r = (SequenceAlignment) alignmentTask.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.warn("interrupted while waiting for the alignment of " +
+						sequenceSet.getName());
+			} catch (ExecutionException e) {
+				//forget the failed task, so the set can be tried again
+				sequenceSetToAlignment.remove(sequenceSet, alignmentTask);
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+			if(r != null) {
+				//later calls get the alignment without the FutureTask
+				sequenceSetToAlignment.replace(sequenceSet, alignmentTask, r);
+			} else {
+				//no alignment was made. It will be tried again next time
+				sequenceSetToAlignment.remove(sequenceSet, alignmentTask);
+			}
 		}
+		return r;
+	}
+
+	/**
+	 * Creates the alignment for getAlignment(). This is called at most
+	 * once at a time for each sequence set. The taxa of the alignment are
+	 * set here, so the alignment is not changed after it is shared.
+	 * 
+	 * @param sequenceSet
+	 * @return
+	 */
+	private SequenceAlignment createAlignment(FastaSequenceSet sequenceSet) {
+		SequenceAlignment r = null;
 
-		synchronized(sequenceSetToAlignment) {
-			r = (SequenceAlignment) sequenceSetToAlignment.get(sequenceSet);
+		boolean reuseAlignmentFiles = false;
+		String cacheKey = null;
+		if(alignmentCache != null) {
+			cacheKey = AlignmentCache.getKey(sequenceSet, getAlignmentParameters());
+			r = alignmentCache.get(cacheKey);
+			if(r != null) {
+				r.setName(sequenceSet.getName() + 
+						HandyConstants.ALIGNMENT_FILE_SUFFIX);
+			}
 		}
 		if(r == null) {
 			//see if alignment file already exist. If it does, load the 
@@ -794,17 +911,43 @@ public class PhylogenomicPipeline2 {
 						r = msaTrimmer.trimUniformColumns(r);
 					}
 				}
-				synchronized(sequenceSetToAlignment) {
-					sequenceSetToAlignment.put(sequenceSet, r);
+				if(cacheKey != null && r != null) {
+					alignmentCache.put(cacheKey, r);
 				}
 			}
 			//			System.out.println("alignmentFileName: " + alignmentFileName);
 			//			new File(alignmentFileName).deleteOnExit();
 		} 
+		if(r != null) {
+			//set before the alignment is shared through sequenceSetToAlignment
+			r.setTaxa(FastaUtilities.getTaxaFromTitles(sequenceSet.getTitles()));
+		}
 
 		return r;
 	}
 
+	/**
+	 * Returns a description of the aligner and trimming settings used by
+	 * getAlignment(), for the alignment cache key.
+	 */
+	private String getAlignmentParameters() {
+		if(multipleSequenceAligner == null) {
+			multipleSequenceAligner = new MultipleSequenceAligner();
+		}
+		if(msaTrimmer == null) {
+			msaTrimmer = new MSATrimmer();
+		}
+		StringBuffer r = new StringBuffer(multipleSequenceAligner.getParameterString());
+		if(isGblocksTrim()) {
+			r.append("|");
+			r.append(msaTrimmer.getParameterString());
+		}
+		if(isUniformTrim()) {
+			r.append("|uniform");
+		}
+		return r.toString();
+	}
+
 	private boolean isUniformTrim() {
 		return uniformTrim;
 	}
@@ -871,12 +1014,11 @@ public class PhylogenomicPipeline2 {
 
 		//write alignment to file
 		String alignmentFileName = runName + "_align.phy";
-		String alignmentString = concatenatedAlignment.getAlignmentAsExtendedPhylipUsingTaxonNames();
 		try {
-			FileWriter fw = new FileWriter(alignmentFileName);
-			fw.write(alignmentString);
-			fw.flush();
-			fw.close();
+			FileOutputStream out = new FileOutputStream(alignmentFileName);
+			concatenatedAlignment.writeTo(out.getChannel(), 
+					SequenceAlignment.EXTENDED_PHYLIP_TAXON_NAMES_FORMAT);
+			out.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -946,17 +1088,15 @@ public class PhylogenomicPipeline2 {
 	 * no sequence will appear more than once. n must not be larger than the
 	 * total number of sequences available in the SequenceSetProvider.
 	 * 
-	 * This method is synchronized because there is some problem with 
-	 * simultaneous access to the same alignment files and synchronizing
-	 * within the getAlignment() method was creating threadlock problems.
-	 * This becomes a temporary bottleneck in beginning individual 
-	 * tree-building processes, but it isn't much of an issue compared with the
-	 * time required for the tree building step.
+	 * This may be called from several Threads at once. getAlignment()
+	 * aligns each sequence set only once, and a Thread needing a set that
+	 * is being aligned by another Thread waits only for that set. The 
+	 * shared alignments are not changed here.
 	 * 
 	 * @param sequences
 	 * @return
 	 */
-	private synchronized ConcatenatedSequenceAlignment getConcatenatedAlignmentOfSubset(SequenceSetProvider provider, int n) {
+	private ConcatenatedSequenceAlignment getConcatenatedAlignmentOfSubset(SequenceSetProvider provider, int n) {
 		ConcatenatedSequenceAlignment r = null;
 
 		if(verboseLevel > 1) {
@@ -968,11 +1108,9 @@ public class PhylogenomicPipeline2 {
 		for(int i = 0; i < alignments.length; i++) {
 			FastaSequenceSet sequenceSet = provider.getSequenceSet(indices[i]); 
 			alignments[i] = getAlignment(sequenceSet);
-			if(alignments[i] != null) {
-				alignments[i].setTaxa(FastaUtilities.getTaxaFromTitles(sequenceSet.getTitles()));
-			}
 		}
-		r = MSAConcatenator.concatenate(alignments);
+		//a view, so the subset is not copied until it is written out
+		r = MSAConcatenator.concatenateView(alignments);
 		return r;
 	}
 
@@ -1062,8 +1200,9 @@ public class PhylogenomicPipeline2 {
 		//why is it * 80 * 8 instead of * 640? - because it's from raxml documentation:
 		//http://sco.h-its.org/exelixis/web/software/raxml/:
 		//"MEM(AA+GAMMA) = (n-2) * m * (80 * 8) bytes"  
-		//where m is number of patterns, so this should overestimate
-		long raxmlBytes = (N-2) * L * 80 * 8; 
+		//where m is number of distinct site patterns
+		long patterns = concatenatedAlignment.getPatternCount();
+		long raxmlBytes = (N-2) * patterns * 80 * 8; 
 
 		//Figure out if there is enough RAM to run the RAxML on the alignment 
 		//(which is either used for the full tree, or for adding branch lengths
@@ -1077,17 +1216,31 @@ public class PhylogenomicPipeline2 {
 			threadsToWait++;
 		}
 
-		logger.info("Estimated bytes of RAM needed for RAxML: " + 
-				raxmlBytes);
+		logger.info("Estimated bytes of RAM needed for RAxML (" + patterns + 
+				" site patterns): " + raxmlBytes);
 		logger.info("support tree threads to wait for full tree: " + 
 				threadsToWait);
 
-		int jackknifeSize = provider.getSequenceSetCount() /2;
+		//jackknife replicates are drawn as pattern weights over the full
+		//concatenated alignment, rather than concatenating each subset
+		PatternResampler resampler = new PatternResampler(concatenatedAlignment);
+		int jackknifeSize = concatenatedAlignment.getAlignmentCount() /2;
 		int jackknifeReps = reps; 
+		//support trees are written to the .sup file and counted as they are
+		//built, so they are not held in memory
+		BipartitionCounter supportCounter = new BipartitionCounter();
+		String supportTreeFileName = runName + ".sup";
+		FileWriter supportTreeWriter = null;
+		try {
+			supportTreeWriter = new FileWriter(supportTreeFileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 		//start and wait for the jack knife threads
-		String[] jackknifeTrees = getGeneWiseJackKnifeTrees(provider, 
-				jackknifeSize, jackknifeReps, supportTreeThreads, 
-				fullTreeThread, threadsToWait, supportTreeMethod, mlMatrix);
+		runGeneWiseJackKnifeTrees(resampler, jackknifeSize, jackknifeReps, 
+				supportTreeThreads, fullTreeThread, threadsToWait, 
+				supportTreeMethod, mlMatrix, supportCounter, supportTreeWriter);
+		closeTreeWriter(supportTreeWriter);
 
 		//get the full tree string
 		try {
@@ -1105,21 +1258,8 @@ public class PhylogenomicPipeline2 {
 		//		concatenatedAlignment.setName(runName+"_concatenated_with_support_" +
 		//				System.currentTimeMillis()%10000000);
 
-		r = TreeSupportDecorator.addSupportValues(fullTreeString, jackknifeTrees);
+		r = TreeSupportDecorator.addSupportValues(fullTreeString, supportCounter);
 		//		System.out.println("tree: " + r);
-		//write support trees to a file
-		String supportTreeFileName = runName + ".sup";
-		try {
-			FileWriter fw = new FileWriter(supportTreeFileName);
-			for(int i = 0; i < jackknifeTrees.length; i++) {
-				fw.write(jackknifeTrees[i]);
-				fw.write("\n");
-			}
-			fw.flush();
-			fw.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 		writeConsensusTreeFile(r);
 
 		return r;
@@ -1182,23 +1322,31 @@ public class PhylogenomicPipeline2 {
 				+ reps + " trees using " + treeThreads + " threads and "
 				+ treeMethod + " as tree-building method");
 
-		int jackknifeSize = provider.getSequenceSetCount() /2;
-		//start and wait for the jack knife threads
-		String[] jackknifeTrees = getGeneWiseJackKnifeTrees(provider, 
-				jackknifeSize, reps, treeThreads, 
-				null, 0, treeMethod, mlMatrix);
-
+		ConcatenatedSequenceAlignment concatenatedAlignment = 
+				getConcatenatedAlignment(provider);
+		PatternResampler resampler = new PatternResampler(concatenatedAlignment);
+		int jackknifeSize = concatenatedAlignment.getAlignmentCount() /2;
+		FileWriter fw = null;
 		try {
-			FileWriter fw  = new FileWriter(outputFileName);
-			for(int i = 0; i < jackknifeTrees.length; i++) {
-				fw.write(jackknifeTrees[i]);
-				fw.write("\n");
-			}
-			fw.flush();
-			fw.close();
+			fw = new FileWriter(outputFileName);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		//start and wait for the jack knife threads. Each tree is written
+		//to the output file when it is finished
+		runGeneWiseJackKnifeTrees(resampler, jackknifeSize, reps, 
+				treeThreads, null, 0, treeMethod, mlMatrix, null, fw);
+		closeTreeWriter(fw);
+	}
+
+	private void closeTreeWriter(FileWriter treeWriter) {
+		if(treeWriter != null) {
+			try {
+				treeWriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	/**
@@ -1208,6 +1356,7 @@ public class PhylogenomicPipeline2 {
 	 * to calculate support values for a single tree built from all of the
 	 * sequences.
 	 *
+	 * @param resampler resampler for the concatenation of all sequence sets
 	 * @param size number of sequence sets per tree
 	 * @param reps number of trees
 	 * @param threadCount number of parallel threads to run
@@ -1223,25 +1372,33 @@ public class PhylogenomicPipeline2 {
 	 *                      processes) being used to run the full tree. (For 
 	 *                      example, the -T parameter with RAxML)
 	 * @param mlMatrix 
+	 * @param counter optional BipartitionCounter. Each tree is added to 
+	 *                this as soon as it is built.
+	 * @param treeWriter optional Writer. Each tree is written to this, 
+	 *                   one per line, as soon as it is built.
+	 * @return number of trees built
 	 */
-	private String[] getGeneWiseJackKnifeTrees(SequenceSetProvider provider,
+	private int runGeneWiseJackKnifeTrees(PatternResampler resampler,
 			int size, int reps, int threadCount, Thread waitFor, 
-			int threadsToWait, String supportTreeMethod, String mlMatrix) {
-		logger.info("PhylogenomicPipleline2.getGeneWiseJackKnifeTrees() " +
+			int threadsToWait, String supportTreeMethod, String mlMatrix,
+			BipartitionCounter counter, Writer treeWriter) {
+		logger.info("PhylogenomicPipleline2.runGeneWiseJackKnifeTrees() " +
 				"reps: " + reps + " threadsToWait: " + threadsToWait);
-		String[] r = null;
-		Thread[] threads = new Thread[threadCount];
+		int r = 0;
+		ExecutorService treePool = 
+				JobScheduler.getInstance().newWorkerPool(threadCount, "support-tree");
 		GeneSubsetTreeRunnable[] runnables = 
 				new GeneSubsetTreeRunnable[threadCount];
-		int[] repTracker = new int[]{reps};
-		for(int i = 0; i < threads.length; i++) {
+		AtomicInteger repTracker = new AtomicInteger(reps);
+		for(int i = 0; i < runnables.length; i++) {
 			if(i < threadsToWait) {
-				runnables[i] = new GeneSubsetTreeRunnable(provider, size, 
+				runnables[i] = new GeneSubsetTreeRunnable(resampler, size, 
 						repTracker, waitFor);				
 			} else {
-				runnables[i] = new GeneSubsetTreeRunnable(provider, size, 
+				runnables[i] = new GeneSubsetTreeRunnable(resampler, size, 
 						repTracker, null);
 			}
+			runnables[i].setTreeConsumers(counter, treeWriter);
 
 			runnables[i].setTreeBuildingMethod(supportTreeMethod);
 			runnables[i].setMatrix(mlMatrix);
@@ -1249,28 +1406,17 @@ public class PhylogenomicPipeline2 {
 			if(conTree != null) {
 				runnables[i].setConstraintTree(conTree);
 			}
-			threads[i] = new Thread(runnables[i]);
-			threads[i].start();
+			treePool.execute(runnables[i]);
 		}
 
-		logger.info(threads.length + " support tree threads started (" + threadsToWait + " of them will wait for the main tree to finish)");
-		//wait for threads to finish
-		for(int i = 0; i < threads.length; i++) {
-			try {
-				threads[i].join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		logger.info(runnables.length + " support tree threads started (" + threadsToWait + " of them will wait for the main tree to finish)");
+		//wait for all support trees to finish
+		JobScheduler.awaitCompletion(treePool);
 
-		//get all tree strings 
-		ArrayList treeStrings = new ArrayList(reps);
 		for(int i = 0; i < runnables.length; i++) {
-			treeStrings.addAll(runnables[i].getTreeStrings());
+			r += runnables[i].getTreeCount();
 		}
-
-		r = new String[treeStrings.size()];
-		treeStrings.toArray(r);
+		logger.info(r + " support trees built");
 		return r;
 	}
 
@@ -1287,7 +1433,13 @@ public class PhylogenomicPipeline2 {
 		double[][] similarityMatrix = 
 				concatenatedAlignment.getPairwiseScores(scoreMatrix);
 
-		r = TreeBuilder.getNJTopology(taxa, similarityMatrix, TreeBuilder.SIMILARITY);
+		r = TreeBuilder.getRapidNJTreeString(taxa, similarityMatrix, 
+				TreeBuilder.SIMILARITY);
+		if(r == null) {
+			//fewer than four taxa. There is only one unrooted tree
+			r = TreeBuilder.getNJTopology(taxa, similarityMatrix, 
+					TreeBuilder.SIMILARITY);
+		}
 		logger.info("neighbor-joining tree: " + r);
 		return r;
 	}
@@ -1512,21 +1664,16 @@ public class PhylogenomicPipeline2 {
 	 */
 	private class AlignmentRunnable implements Runnable {
 
-		private Iterator sequenceIterator;
+		private FastaSequenceSet sequenceSet;
 
-		public AlignmentRunnable(Iterator sequenceIterator) {
-			this.sequenceIterator = sequenceIterator;
+		public AlignmentRunnable(FastaSequenceSet sequenceSet) {
+			this.sequenceSet = sequenceSet;
 		}
 
 		public void run() {
 			logger.info(">AlignmentRunnable.run() " + Thread.currentThread().getName());
 			try {
-				FastaSequenceSet sequenceSet =
-						(FastaSequenceSet) sequenceIterator.next();
-				while(sequenceSet != null) {
-					SequenceAlignment alignment = getAlignment(sequenceSet);
-					sequenceSet = (FastaSequenceSet) sequenceIterator.next();
-				}
+				SequenceAlignment alignment = getAlignment(sequenceSet);
 			} catch(Exception e) {
 				System.out.println("EXCEPTION from eric's stupid 'catch any Exception' block in AlignmentRunnable");
 				e.printStackTrace();
@@ -1545,28 +1692,29 @@ public class PhylogenomicPipeline2 {
 
 	private class GeneSubsetTreeRunnable implements Runnable {
 		private int size;
-		private int[] reps;
-		private SequenceSetProvider provider;
+		private AtomicInteger reps;
+		private PatternResampler resampler;
 		private Thread waitFor;
-		private ArrayList treeStrings = new ArrayList();
+		private BipartitionCounter counter;
+		private Writer treeWriter;
+		private int treeCount;
 		private String treeBuildingMethod = HandyConstants.MAXIMUM_LIKELIHOOD;
 		private String constraintTree;
 		private String mlMatrix;
 
 		/**
 		 * 
-		 * @param provider source for the sequence sets
-		 * @param size number of genes from provider to include in each subset tree
-		 * @param reps element 0 in this array tracks the remaining number of
-		 *             trees to be built. This is shared by all active
-		 *             GeneSubsetTreeRunnables to allow them to decrement a
-		 *             single counter to synchronize their activity
+		 * @param resampler resampler for the concatenated alignment of all genes
+		 * @param size number of genes to include in each subset tree
+		 * @param reps tracks the remaining number of trees to be built. 
+		 *             This is shared by all active GeneSubsetTreeRunnables,
+		 *             which each take a tree number from it atomically
 		 * @param waitFor An optional Thread that this instance should 
 		 *                wait for (by calling join()) before beginning work.
 		 */
-		public GeneSubsetTreeRunnable(SequenceSetProvider provider, int size,
-				int[] reps, Thread waitFor) {
-			this.provider = provider;
+		public GeneSubsetTreeRunnable(PatternResampler resampler, int size,
+				AtomicInteger reps, Thread waitFor) {
+			this.resampler = resampler;
 			this.size = size;
 			this.reps = reps;
 			this.waitFor = waitFor;
@@ -1576,6 +1724,17 @@ public class PhylogenomicPipeline2 {
 			constraintTree = conTree;
 		}
 
+		/**
+		 * Sets where each tree goes when it is built. Either may be null.
+		 * The Writer may be shared with other GeneSubsetTreeRunnables, 
+		 * and is synchronized on while a tree is written.
+		 */
+		public void setTreeConsumers(BipartitionCounter counter, 
+				Writer treeWriter) {
+			this.counter = counter;
+			this.treeWriter = treeWriter;
+		}
+
 		public void setTreeBuildingMethod(String method) {
 			treeBuildingMethod = method;
 		}
@@ -1596,13 +1755,14 @@ public class PhylogenomicPipeline2 {
 					e.printStackTrace();
 				}
 			}
-			int building = reps[0]--;
+			int building = reps.getAndDecrement();
 			while(building > 0) {
 				logger.info("building tree: " + building + "  on " + Thread.currentThread().getName());
-				ConcatenatedSequenceAlignment alignment = null;
+				SequenceAlignment alignment = null;
 				try {
 					while(alignment == null || alignment.getLength() ==0) {
-						alignment = getConcatenatedAlignmentOfSubset(provider, size);
+						alignment = resampler.getReplicate(
+								resampler.getGeneJackknifeWeights(size));
 						if(alignment == null || alignment.getLength() == 0) {
 							System.out.println("&*^%#&^%#&*^%#&^%#&^%#&^$%#&%^$#^%$#bad concatenated alignment returned");
 						}
@@ -1626,8 +1786,8 @@ public class PhylogenomicPipeline2 {
 				treeBuilder.run();
 				String treeString = treeBuilder.getTreeString();
 				System.out.println(Thread.currentThread().getName() + " tree for " + building + ": " + treeString);
-				treeStrings.add(treeString);
-				building = reps[0]--;
+				addTree(treeString);
+				building = reps.getAndDecrement();
 			}
 			logger.info("<GeneSubsetTreeRunnable.run() " + Thread.currentThread().getName());
 		}
@@ -1639,8 +1799,34 @@ public class PhylogenomicPipeline2 {
 			return r;
 		}
 
-		private ArrayList getTreeStrings() {
-			return treeStrings;
+		/**
+		 * Counts the tree and writes it out. The tree string is not kept.
+		 */
+		private void addTree(String treeString) {
+			if(treeString == null) {
+				logger.error("GeneSubsetTreeRunnable: no tree was built on " +
+						Thread.currentThread().getName());
+			} else {
+				if(counter != null) {
+					counter.addTree(treeString);
+				}
+				if(treeWriter != null) {
+					synchronized(treeWriter) {
+						try {
+							treeWriter.write(treeString);
+							treeWriter.write("\n");
+							treeWriter.flush();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+				treeCount++;
+			}
+		}
+
+		private int getTreeCount() {
+			return treeCount;
 		}
 
 	}
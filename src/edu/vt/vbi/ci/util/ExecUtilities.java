@@ -6,6 +6,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -15,14 +17,33 @@ public class ExecUtilities {
 	/**
 	 * Executes the given command via Runtime.exec()
 	 * and returns the results of stdout and stderr
-	 * as a CommandResults object.
+	 * as a CommandResults object. The command is 
+	 * assumed to use a single core.
 	 * 
 	 * @param command
 	 * @return
 	 */
 	public static CommandResults exec(String command) {
+		return exec(command, 1);
+	}
+
+	/**
+	 * Executes the given command via Runtime.exec()
+	 * and returns the results of stdout and stderr
+	 * as a CommandResults object. The given number of 
+	 * cores are reserved from the JobScheduler while the
+	 * command runs, waiting until they are available.
+	 * 
+	 * @param command
+	 * @param cores number of cores the command will use
+	 * @return
+	 */
+	public static CommandResults exec(String command, int cores) {
 		CommandResults r = null;
+		JobScheduler scheduler = JobScheduler.getInstance();
+		int reserved = 0;
 		try {
+			reserved = scheduler.reserveCores(cores);
 			logger.info(command);
 			Process proc = Runtime.getRuntime().exec(command);
 			r = getResultFromProcess(proc);
@@ -37,6 +58,10 @@ public class ExecUtilities {
 			e.printStackTrace();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			if(reserved > 0) {
+				scheduler.releaseCores(reserved);
+			}
 		}
 		return r;
 	}
@@ -51,13 +76,20 @@ public class ExecUtilities {
 	 */
 	public static CommandResults exec(String[] command) {
 		CommandResults r = null;
+		JobScheduler scheduler = JobScheduler.getInstance();
+		int reserved = 0;
 		try {
+			reserved = scheduler.reserveCores(1);
 			Process proc = Runtime.getRuntime().exec(command);
 			r = getResultFromProcess(proc);
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			if(reserved > 0) {
+				scheduler.releaseCores(reserved);
+			}
 		}
 
 		if (r.getRc() != 0)
@@ -87,16 +119,21 @@ public class ExecUtilities {
 		BufferedReader errorReader = 
 				new BufferedReader(new InputStreamReader(errStream));
 
+		//both streams are read in pooled Threads, so a process filling
+		//one stream can not block while the other is being read
+		JobScheduler scheduler = JobScheduler.getInstance();
 		ReaderRunnable errorRead = new ReaderRunnable(errorReader);
-		Thread errorThread = new Thread(errorRead);
-		errorThread.start();
+		Future<?> errorFuture = scheduler.drain(errorRead);
 
 		ReaderRunnable outReader = new ReaderRunnable(reader);
-		Thread outThread = new Thread(outReader);
-		outThread.start();
+		Future<?> outFuture = scheduler.drain(outReader);
 
-		errorThread.join();
-		outThread.join();
+		try {
+			errorFuture.get();
+			outFuture.get();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
 
 		//call destroy() on process to free resources. The streams
 		//are not closed automatically, and may eventually 
@@ -0,0 +1,441 @@
+package edu.vt.vbi.ci.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Symmetrical distances between genomes, identified by taxon name.
+ *
+ * Each taxon is given an index the first time it is used. Taxa that are
+ * compared with most of the others, such as the ingroup, should be made
+ * core taxa with addCoreTaxon(), either when they are first added or
+ * later. Other taxa, such as a large pool of outgroup candidates, are
+ * added by addTaxon() or setDistance(), and are mostly only compared with
+ * the core taxa. The distances are kept as floats:
+ *
+ * Between two core taxa, in one triangular array by rows of the lower
+ * triangle with the diagonal, so the distance for core slots i >= j is at
+ * i*(i+1)/2 + j.
+ *
+ * Between another taxon and a core taxon, in a row for the other taxon
+ * with one entry per core slot. Rows are only made for taxa that have a
+ * distance, and are grown as core taxa are added.
+ *
+ * Between two taxa that are not core taxa, in a list of taxon indices
+ * and distances for each of the two taxa. These lists are only expected
+ * to be short.
+ *
+ * When a taxon becomes a core taxon, its distances are moved from its
+ * rows into the triangle and into the rows of the other taxa.
+ *
+ * So the memory used is about the number of core taxa times the number
+ * of all taxa, rather than the square of the number of all taxa.
+ * Distances that have not been set are NaN. There may be up to 65535 core
+ * taxa, and any number of other taxa. Once there are 65535 core taxa,
+ * taxa added by addCoreTaxon() are kept as other taxa.
+ *
+ * @author enordber
+ *
+ */
+public class GenomeDistanceMatrix {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/*
+	 * largest number of core taxa with a triangle that fits in an array
+	 */
+	private static final int MAX_CORE_CAPACITY = 65535;
+
+	private static final float[] EMPTY_ROW = new float[0];
+	private static final int[] EMPTY_INDICES = new int[0];
+
+	/*
+	 * Key: taxon name
+	 * Value: index of the taxon
+	 */
+	private HashMap<String,Integer> taxonIndices =
+		new HashMap<String,Integer>();
+	private ArrayList<String> taxa = new ArrayList<String>();
+
+	/*
+	 * core slot of each taxon index, or -1 if it is not a core taxon
+	 */
+	private int[] coreSlots = new int[INITIAL_CAPACITY];
+	/*
+	 * taxon index of each core slot
+	 */
+	private int[] coreIndices;
+	private int coreCount;
+	/*
+	 * number of core taxa there is room for in coreDistances
+	 */
+	private int coreCapacity;
+	private float[] coreDistances;
+
+	/*
+	 * distances to the core taxa, by core slot, for each taxon index. This
+	 * is null for core taxa.
+	 */
+	private ArrayList<float[]> otherRows = new ArrayList<float[]>();
+
+	/*
+	 * distances to the taxa that are not core taxa, for each taxon index.
+	 * The first pairCounts[i] entries of pairIndices.get(i) are the other
+	 * taxa, and pairDistances.get(i) has the distance to each. Each
+	 * distance is stored for both taxa. These are empty for core taxa.
+	 */
+	private ArrayList<int[]> pairIndices = new ArrayList<int[]>();
+	private ArrayList<float[]> pairDistances = new ArrayList<float[]>();
+	private int[] pairCounts = new int[INITIAL_CAPACITY];
+
+	public GenomeDistanceMatrix() {
+		coreCapacity = INITIAL_CAPACITY;
+		coreIndices = new int[coreCapacity];
+		coreDistances = new float[getTriangleSize(coreCapacity)];
+		Arrays.fill(coreDistances, Float.NaN);
+	}
+
+	/**
+	 * Returns the number of taxa that have been added.
+	 */
+	public int getTaxonCount() {
+		return taxa.size();
+	}
+
+	/**
+	 * Returns the index of the taxon, or -1 if it has not been added.
+	 */
+	public int getIndex(String taxon) {
+		int r = -1;
+		Integer index = taxonIndices.get(taxon);
+		if(index != null) {
+			r = index;
+		}
+		return r;
+	}
+
+	public String getTaxon(int index) {
+		return taxa.get(index);
+	}
+
+	/**
+	 * Returns the index of the taxon, adding it if it has not already been
+	 * added. A taxon added by this method is not a core taxon.
+	 */
+	public int addTaxon(String taxon) {
+		int r = getIndex(taxon);
+		if(r < 0) {
+			r = register(taxon);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the index of the taxon, adding it if it has not already been
+	 * added, and makes it a core taxon. The distances of a taxon that was
+	 * already added as another taxon are kept.
+	 */
+	public int addCoreTaxon(String taxon) {
+		int r = addTaxon(taxon);
+		if(coreSlots[r] < 0 && coreCount < MAX_CORE_CAPACITY) {
+			promote(r);
+		}
+		return r;
+	}
+
+	private int register(String taxon) {
+		int r = taxa.size();
+		if(r == coreSlots.length) {
+			coreSlots = Arrays.copyOf(coreSlots, r + r/2);
+			pairCounts = Arrays.copyOf(pairCounts, coreSlots.length);
+		}
+		coreSlots[r] = -1;
+		otherRows.add(EMPTY_ROW);
+		pairIndices.add(EMPTY_INDICES);
+		pairDistances.add(EMPTY_ROW);
+		taxa.add(taxon);
+		taxonIndices.put(taxon, r);
+		return r;
+	}
+
+	/**
+	 * Makes the taxon with the index, which is not a core taxon, the next
+	 * core taxon. Its distances to core taxa are copied into the triangle,
+	 * and its distances to other taxa into their rows.
+	 */
+	private void promote(int index) {
+		int slot = coreCount;
+		if(slot >= coreCapacity) {
+			growCore(slot+1);
+		}
+		float[] row = otherRows.get(index);
+		for(int i = 0; i < row.length && i < coreCount; i++) {
+			coreDistances[getPosition(slot, i)] = row[i];
+		}
+		int[] indices = pairIndices.get(index);
+		float[] distances = pairDistances.get(index);
+		for(int i = 0; i < pairCounts[index]; i++) {
+			int other = indices[i];
+			if(other == index) {
+				coreDistances[getPosition(slot, slot)] = distances[i];
+			} else {
+				setRowDistance(other, slot, distances[i]);
+				removePair(other, index);
+			}
+		}
+		otherRows.set(index, null);
+		pairIndices.set(index, EMPTY_INDICES);
+		pairDistances.set(index, EMPTY_ROW);
+		pairCounts[index] = 0;
+
+		coreSlots[index] = slot;
+		coreIndices[slot] = index;
+		coreCount++;
+	}
+
+	/**
+	 * Returns the distance between the taxa with the indices, or NaN if it
+	 * has not been set.
+	 */
+	public float getDistance(int indexA, int indexB) {
+		float r = Float.NaN;
+		int slotA = coreSlots[indexA];
+		int slotB = coreSlots[indexB];
+		if(slotA >= 0 && slotB >= 0) {
+			r = coreDistances[getPosition(slotA, slotB)];
+		} else if(slotA >= 0) {
+			r = getRowDistance(indexB, slotA);
+		} else if(slotB >= 0) {
+			r = getRowDistance(indexA, slotB);
+		} else if(pairCounts[indexA] <= pairCounts[indexB]) {
+			r = getPairDistance(indexA, indexB);
+		} else {
+			r = getPairDistance(indexB, indexA);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the distance between the taxa, or NaN if it has not been set
+	 * or either taxon has not been added.
+	 */
+	public double getDistance(String taxonA, String taxonB) {
+		double r = Double.NaN;
+		int indexA = getIndex(taxonA);
+		int indexB = getIndex(taxonB);
+		if(indexA >= 0 && indexB >= 0) {
+			r = getDistance(indexA, indexB);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns true if the distance between the taxa has been set.
+	 */
+	public boolean hasDistance(String taxonA, String taxonB) {
+		return !Double.isNaN(getDistance(taxonA, taxonB));
+	}
+
+	/**
+	 * Sets the distance between the taxa, adding either taxon if it has
+	 * not already been added.
+	 */
+	public void setDistance(String taxonA, String taxonB, double distance) {
+		int indexA = addTaxon(taxonA);
+		int indexB = addTaxon(taxonB);
+		int slotA = coreSlots[indexA];
+		int slotB = coreSlots[indexB];
+		if(slotA >= 0 && slotB >= 0) {
+			coreDistances[getPosition(slotA, slotB)] = (float)distance;
+		} else if(slotA >= 0) {
+			setRowDistance(indexB, slotA, (float)distance);
+		} else if(slotB >= 0) {
+			setRowDistance(indexA, slotB, (float)distance);
+		} else {
+			setPairDistance(indexA, indexB, (float)distance);
+			if(indexA != indexB) {
+				setPairDistance(indexB, indexA, (float)distance);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the taxon at the smallest distance greater than
+	 * 0 from the taxon with the specified index, or -1 if there is no
+	 * such taxon. If more than one taxon is at the smallest distance, the
+	 * one with the lowest index is returned.
+	 */
+	public int getNearestNeighbor(int index) {
+		int r = -1;
+		float minDistance = Float.POSITIVE_INFINITY;
+		int slot = coreSlots[index];
+		if(slot >= 0) {
+			//other core taxa
+			for(int i = 0; i < coreCount; i++) {
+				float distance = coreDistances[getPosition(slot, i)];
+				if(i != slot && isNearer(distance, coreIndices[i], minDistance, r)) {
+					minDistance = distance;
+					r = coreIndices[i];
+				}
+			}
+			//taxa that are not core taxa
+			int taxonCount = taxa.size();
+			for(int i = 0; i < taxonCount; i++) {
+				if(coreSlots[i] < 0) {
+					float distance = getRowDistance(i, slot);
+					if(isNearer(distance, i, minDistance, r)) {
+						minDistance = distance;
+						r = i;
+					}
+				}
+			}
+		} else {
+			//core taxa
+			float[] row = otherRows.get(index);
+			for(int i = 0; i < row.length && i < coreCount; i++) {
+				if(isNearer(row[i], coreIndices[i], minDistance, r)) {
+					minDistance = row[i];
+					r = coreIndices[i];
+				}
+			}
+			//taxa that are not core taxa
+			int[] indices = pairIndices.get(index);
+			float[] distances = pairDistances.get(index);
+			for(int i = 0; i < pairCounts[index]; i++) {
+				if(indices[i] != index &&
+						isNearer(distances[i], indices[i], minDistance, r)) {
+					minDistance = distances[i];
+					r = indices[i];
+				}
+			}
+		}
+		return r;
+	}
+
+	private static boolean isNearer(float distance, int index,
+			float minDistance, int minIndex) {
+		return distance > 0 && (distance < minDistance ||
+				(distance == minDistance && index < minIndex));
+	}
+
+	private float getRowDistance(int index, int slot) {
+		float r = Float.NaN;
+		float[] row = otherRows.get(index);
+		if(slot < row.length) {
+			r = row[slot];
+		}
+		return r;
+	}
+
+	private void setRowDistance(int index, int slot, float distance) {
+		float[] row = otherRows.get(index);
+		if(slot >= row.length) {
+			int oldLength = row.length;
+			row = Arrays.copyOf(row, coreCapacity);
+			Arrays.fill(row, oldLength, row.length, Float.NaN);
+			otherRows.set(index, row);
+		}
+		row[slot] = distance;
+	}
+
+	/**
+	 * Returns the distance from the taxon with the index to the other
+	 * taxon, from the pairs of the taxon, or NaN if it is not there.
+	 */
+	private float getPairDistance(int index, int other) {
+		float r = Float.NaN;
+		int position = findPair(index, other);
+		if(position >= 0) {
+			r = pairDistances.get(index)[position];
+		}
+		return r;
+	}
+
+	private void setPairDistance(int index, int other, float distance) {
+		int position = findPair(index, other);
+		if(position < 0) {
+			position = pairCounts[index];
+			int[] indices = pairIndices.get(index);
+			if(position == indices.length) {
+				int newLength = Math.max(4, position + position/2);
+				pairIndices.set(index, Arrays.copyOf(indices, newLength));
+				pairDistances.set(index,
+						Arrays.copyOf(pairDistances.get(index), newLength));
+			}
+			pairIndices.get(index)[position] = other;
+			pairCounts[index]++;
+		}
+		pairDistances.get(index)[position] = distance;
+	}
+
+	/**
+	 * Removes the other taxon from the pairs of the taxon with the index,
+	 * moving the last pair into its place.
+	 */
+	private void removePair(int index, int other) {
+		int position = findPair(index, other);
+		if(position >= 0) {
+			int last = pairCounts[index] - 1;
+			int[] indices = pairIndices.get(index);
+			float[] distances = pairDistances.get(index);
+			indices[position] = indices[last];
+			distances[position] = distances[last];
+			pairCounts[index] = last;
+		}
+	}
+
+	/**
+	 * Returns the position of the other taxon in the pairs of the taxon
+	 * with the index, or -1 if it is not there.
+	 */
+	private int findPair(int index, int other) {
+		int r = -1;
+		int[] indices = pairIndices.get(index);
+		int count = pairCounts[index];
+		for(int i = 0; i < count && r < 0; i++) {
+			if(indices[i] == other) {
+				r = i;
+			}
+		}
+		return r;
+	}
+
+	private void growCore(int minimumCapacity) {
+		int newCapacity = Math.max(minimumCapacity, coreCapacity + coreCapacity/2);
+		if(newCapacity > MAX_CORE_CAPACITY) {
+			newCapacity = Math.max(minimumCapacity, MAX_CORE_CAPACITY);
+		}
+		float[] newDistances = new float[getTriangleSize(newCapacity)];
+		System.arraycopy(coreDistances, 0, newDistances, 0,
+				coreDistances.length);
+		Arrays.fill(newDistances, coreDistances.length, newDistances.length,
+				Float.NaN);
+		coreDistances = newDistances;
+		coreIndices = Arrays.copyOf(coreIndices, newCapacity);
+		coreCapacity = newCapacity;
+	}
+
+	private static int getPosition(int slotA, int slotB) {
+		int r = 0;
+		if(slotA >= slotB) {
+			r = getTriangleSize(slotA) + slotB;
+		} else {
+			r = getTriangleSize(slotB) + slotA;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns n*(n+1)/2, the size of a triangle with the diagonal for n
+	 * core taxa, and the start of row n.
+	 */
+	private static int getTriangleSize(int n) {
+		long r = (long)n*(n+1)/2;
+		if(r > Integer.MAX_VALUE) {
+			throw new IllegalStateException("too many core taxa for " +
+					"GenomeDistanceMatrix: " + n);
+		}
+		return (int)r;
+	}
+}
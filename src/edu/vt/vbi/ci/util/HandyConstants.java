@@ -23,6 +23,7 @@ public interface HandyConstants {
 	public static final String PREALIGN = "prealign";
 	public static final String ALIGNMENT_FILE_SUFFIX = "_align";
 	public static final String GBLOCKS_TRIM = "gblocks_trim";
+	public static final String GBLOCKS_PROGRAM = "gblocks_program";
 	public static final String UNIFORM_TRIM = "uniform_trim";
 	public static final String TAB_DELIMITED = "tab_delimited";
 	public static final String MR_T_FILE = "mrt";
@@ -99,4 +100,7 @@ public interface HandyConstants {
 	public static final String PATRIC = "patric";
 	public static final String USE_BUNDLED_THIRD_PARTY_BINARIES = "use_bundled_third_party_binaries";
 	public static final String SUBTREE = "subtree";
+	public static final String INDEX_CACHE = "index_cache";
+	public static final String ALIGNMENT_CACHE = "alignment_cache";
+	public static final String ALIGNMENT_CACHE_SIZE = "alignment_cache_mb";
 }
@@ -0,0 +1,197 @@
+package edu.vt.vbi.ci.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shares the processors of the machine between the external programs
+ * (MUSCLE, FastTree, RAxML, BLAST, hmmsearch, mash...) started by the
+ * pipelines, so that parallel jobs do not oversubscribe it.
+ *
+ * There is a single budget of cores. Each external job reserves the
+ * number of cores it will use (for example, a RAxML job run with -T 8
+ * reserves 8) for as long as its process runs, and waits until that many
+ * cores are free. A job asking for more cores than the budget reserves
+ * the whole budget. Reservations are granted in the order they are
+ * made, so a job needing many cores is not held back indefinitely by a
+ * stream of smaller jobs. ExecUtilities makes the reservations, so
+ * callers only need to say how many cores a command uses.
+ *
+ * The budget is the number of available processors, unless the
+ * "pepr.cores" System property is set, or setCoreBudget() is called.
+ *
+ * The scheduler also provides worker pools for the pipelines' parallel
+ * tasks, and a shared pool of Threads for reading the output streams
+ * of external processes.
+ *
+ * @author enordber
+ *
+ */
+public class JobScheduler {
+
+	private static final String CORES_PROPERTY = "pepr.cores";
+
+	private static Logger logger = Logger.getLogger(JobScheduler.class);
+	private static JobScheduler instance;
+
+	private int coreBudget;
+	private int coresInUse;
+	/*
+	 * one entry for each reservation waiting for cores, in the order the
+	 * reservations were made. Only the first may be granted.
+	 */
+	private LinkedList<Object> waiting = new LinkedList<Object>();
+	private ExecutorService streamDrainer;
+
+	public static synchronized JobScheduler getInstance() {
+		if(instance == null) {
+			instance = new JobScheduler();
+		}
+		return instance;
+	}
+
+	private JobScheduler() {
+		coreBudget = Runtime.getRuntime().availableProcessors();
+		String coresValue = System.getProperty(CORES_PROPERTY);
+		if(coresValue != null) {
+			try {
+				coreBudget = Integer.parseInt(coresValue.trim());
+			} catch(NumberFormatException nfe) {
+				logger.warn("unable to parse " + CORES_PROPERTY + " value '" +
+						coresValue + "'. Using " + coreBudget + " cores.");
+			}
+		}
+		coreBudget = Math.max(1, coreBudget);
+		streamDrainer =
+			Executors.newCachedThreadPool(new DaemonThreadFactory("stream"));
+	}
+
+	public synchronized int getCoreBudget() {
+		return coreBudget;
+	}
+
+	/**
+	 * Sets the number of cores that may be used at once by external jobs.
+	 * Jobs that are already running keep their reservations.
+	 */
+	public synchronized void setCoreBudget(int cores) {
+		coreBudget = Math.max(1, cores);
+		logger.info("core budget for external jobs: " + coreBudget);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the requested number of cores is free, and reserves
+	 * them. The request is limited to the core budget. The returned
+	 * number of cores must be passed to releaseCores() when the job
+	 * is finished.
+	 *
+	 * @param cores
+	 * @return the number of cores reserved
+	 * @throws InterruptedException
+	 */
+	public synchronized int reserveCores(int cores)
+	throws InterruptedException {
+		int r = 0;
+		Object ticket = new Object();
+		waiting.add(ticket);
+		try {
+			while(waiting.getFirst() != ticket || 
+					coresInUse + getGrant(cores) > coreBudget) {
+				wait();
+			}
+		} catch(InterruptedException e) {
+			waiting.remove(ticket);
+			notifyAll();
+			throw e;
+		}
+		waiting.removeFirst();
+		r = getGrant(cores);
+		coresInUse += r;
+		//the next reservation may also fit
+		notifyAll();
+		return r;
+	}
+
+	private int getGrant(int cores) {
+		return Math.max(1, Math.min(cores, coreBudget));
+	}
+
+	public synchronized void releaseCores(int cores) {
+		coresInUse -= cores;
+		notifyAll();
+	}
+
+	public synchronized int getCoresInUse() {
+		return coresInUse;
+	}
+
+	/**
+	 * Starts reading a stream in a pooled Thread. This is used for
+	 * the output and error streams of external processes, which must
+	 * be drained while the process runs.
+	 */
+	public Future<?> drain(Runnable reader) {
+		return streamDrainer.submit(reader);
+	}
+
+	/**
+	 * Returns a new pool with the given number of worker Threads, for
+	 * running the tasks of one step of a pipeline. The caller should
+	 * call awaitCompletion() when all tasks are submitted. The worker Threads only control how many tasks run at
+	 * once; the external programs the tasks start still reserve cores
+	 * from the shared budget.
+	 *
+	 * @param threads
+	 * @param name used in the names of the worker Threads
+	 * @return
+	 */
+	public ExecutorService newWorkerPool(int threads, String name) {
+		return Executors.newFixedThreadPool(Math.max(1, threads),
+				new DaemonThreadFactory(name));
+	}
+
+	/**
+	 * Shuts down the pool, if that has not already been done, and
+	 * waits for all of its tasks to finish. If the waiting Thread is
+	 * interrupted, this returns early with the interrupt status set.
+	 */
+	public static void awaitCompletion(ExecutorService pool) {
+		pool.shutdown();
+		try {
+			while(!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				//keep waiting. Tree building tasks may take hours
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("interrupted while waiting for pool tasks to finish");
+		}
+	}
+
+	/**
+	 * Creates named daemon Threads, so idle pooled Threads do not keep
+	 * the JVM running.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private String name;
+		private AtomicInteger threadNumber = new AtomicInteger();
+
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread r = new Thread(runnable,
+					"pepr-" + name + "-" + threadNumber.incrementAndGet());
+			r.setDaemon(true);
+			return r;
+		}
+	}
+}
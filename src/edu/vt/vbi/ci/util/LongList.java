@@ -343,6 +343,17 @@ public class LongList implements Serializable {
 		return returnArray;
 	}
 
+	/**
+	 *  Copies the list into the given array, starting at
+	 *  destIndex, without creating an intermediate array.
+	 *
+	 *  @param dest long[] - array to copy values into
+	 *  @param destIndex int - position in dest for the first value
+	 */
+	public final void copyInto(long[] dest, int destIndex) {
+		System.arraycopy(longArray, 0, dest, destIndex, Math.max(size, 0));
+	}
+
 	/**
 	 *  Returns the first index of the specified value.
 	 *
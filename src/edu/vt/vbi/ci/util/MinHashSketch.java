@@ -0,0 +1,512 @@
+package edu.vt.vbi.ci.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A bottom-k MinHash sketch of the k-mers of a nucleotide fasta file, and
+ * the Mash distance between two sketches (Ondov et al., 2016). Sketches
+ * and distances are calculated the same way as the mash program does
+ * with its default settings:
+ *
+ * Each record is read separately, in upper case. K-mers with any
+ * character other than A, C, G or T are skipped. Each k-mer is hashed in
+ * its canonical form, the lesser of the k-mer and its reverse complement,
+ * with seed 42. If k is more than 16 the hash is the first 64 bits of
+ * MurmurHash3_x64_128, otherwise it is the 32 bit MurmurHash3_x86_32. The
+ * sketch is the sketchSize smallest distinct hash values, compared as
+ * unsigned.
+ *
+ * The file is read as a stream, keeping only the last k bases of the
+ * current record and their reverse complement.
+ *
+ * In memory, the hashes are kept with the sign bit flipped, so they sort
+ * in unsigned order as signed longs.
+ *
+ * @author enordber
+ *
+ */
+public class MinHashSketch {
+
+	private static final int SEED = 42;
+	private static final int FILE_MAGIC = 0x4d485348; //"MHSH"
+	private static final int FILE_VERSION = 2;
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+
+	private static final byte[] COMPLEMENT = new byte[256];
+	static {
+		Arrays.fill(COMPLEMENT, (byte)'N');
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+		COMPLEMENT['T'] = 'A';
+	}
+
+	private String name;
+	private int kmerLength;
+	private int sketchSize;
+	/*
+	 * sorted hash values, with the sign bit flipped
+	 */
+	private long[] hashes;
+
+	private MinHashSketch(String name, int kmerLength, int sketchSize,
+			long[] hashes) {
+		this.name = name;
+		this.kmerLength = kmerLength;
+		this.sketchSize = sketchSize;
+		this.hashes = hashes;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	public int getSketchSize() {
+		return sketchSize;
+	}
+
+	/**
+	 * Returns the number of hashes in the sketch. This is less than the
+	 * sketch size if the sequence has fewer distinct k-mers.
+	 */
+	public int getHashCount() {
+		return hashes.length;
+	}
+
+	/**
+	 * Returns the hash at the index, in unsigned ascending order.
+	 */
+	public long getHash(int index) {
+		return hashes[index] ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the Mash distance between this sketch and the other. This is
+	 * 0 for identical sketches, and 1 for sketches with no hashes in common.
+	 * As in Mash, the distance is never more than 1.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public double getDistance(MinHashSketch other) {
+		double r = 1;
+		if(other.kmerLength != kmerLength) {
+			throw new IllegalArgumentException("sketches have different " +
+					"k-mer lengths: " + kmerLength + ", " + other.kmerLength);
+		}
+		int maxSize = Math.min(sketchSize, other.sketchSize);
+		long[] hashesA = hashes;
+		long[] hashesB = other.hashes;
+		int i = 0;
+		int j = 0;
+		int common = 0;
+		int denominator = 0;
+		//look at the smallest maxSize hashes of the union
+		while(denominator < maxSize && i < hashesA.length &&
+				j < hashesB.length) {
+			if(hashesA[i] < hashesB[j]) {
+				i++;
+			} else if(hashesA[i] > hashesB[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+				common++;
+			}
+			denominator++;
+		}
+		if(denominator < maxSize) {
+			denominator += (hashesA.length - i) + (hashesB.length - j);
+			denominator = Math.min(denominator, maxSize);
+		}
+
+		if(common == denominator) {
+			r = 0;
+		} else if(common > 0) {
+			double jaccard = (double)common / denominator;
+			r = -Math.log(2*jaccard / (1+jaccard)) / kmerLength;
+			if(r > 1) {
+				r = 1;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Creates the sketch for the fasta file.
+	 *
+	 * @param fileName
+	 * @param kmerLength
+	 * @param sketchSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static MinHashSketch sketchFastaFile(String fileName,
+			int kmerLength, int sketchSize) throws IOException {
+		MinHashSketch r = null;
+		HashCollector collector = new HashCollector(sketchSize);
+		KmerHasher hasher = new KmerHasher(kmerLength, collector);
+		InputStream in = new FileInputStream(fileName);
+		try {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			boolean inTitle = false;
+			boolean lineStart = true;
+			int read = in.read(buffer);
+			while(read >= 0) {
+				for(int i = 0; i < read; i++) {
+					byte b = buffer[i];
+					if(lineStart && b == '>') {
+						//start of a new record
+						hasher.reset();
+						inTitle = true;
+					} else if(b == '\n' || b == '\r') {
+						inTitle = false;
+					} else if(!inTitle && b != ' ' && b != '\t') {
+						if(b >= 'a' && b <= 'z') {
+							b = (byte)(b - ('a' - 'A'));
+						}
+						hasher.add(b);
+					}
+					lineStart = b == '\n' || b == '\r';
+				}
+				read = in.read(buffer);
+			}
+		} finally {
+			in.close();
+		}
+		r = new MinHashSketch(fileName, kmerLength, sketchSize,
+				collector.getHashes());
+		return r;
+	}
+
+	/**
+	 * Hashes the canonical k-mers of a record as its bases are added. The
+	 * last kmerLength bases are kept, with their reverse complement, so
+	 * each k-mer is compared and hashed without copying the record.
+	 */
+	private static class KmerHasher {
+		private int kmerLength;
+		private boolean use64;
+		private HashCollector collector;
+		/*
+		 * the last kmerLength bases, oldest first
+		 */
+		private byte[] forward;
+		/*
+		 * reverse complement of forward
+		 */
+		private byte[] reverse;
+		/*
+		 * number of A, C, G or T bases since the last other character
+		 */
+		private int validLength;
+
+		KmerHasher(int kmerLength, HashCollector collector) {
+			this.kmerLength = kmerLength;
+			this.collector = collector;
+			use64 = kmerLength > 16;
+			forward = new byte[kmerLength];
+			reverse = new byte[kmerLength];
+		}
+
+		/**
+		 * Starts a new record.
+		 */
+		void reset() {
+			validLength = 0;
+		}
+
+		void add(byte base) {
+			byte complement = COMPLEMENT[base & 0xff];
+			if(complement == 'N') {
+				validLength = 0;
+			} else {
+				System.arraycopy(forward, 1, forward, 0, kmerLength - 1);
+				forward[kmerLength - 1] = base;
+				System.arraycopy(reverse, 0, reverse, 1, kmerLength - 1);
+				reverse[0] = complement;
+				validLength++;
+				if(validLength >= kmerLength) {
+					addHash();
+				}
+			}
+		}
+
+		private void addHash() {
+			byte[] canonical = forward;
+			for(int j = 0; j < kmerLength; j++) {
+				if(forward[j] != reverse[j]) {
+					if(reverse[j] < forward[j]) {
+						canonical = reverse;
+					}
+					break;
+				}
+			}
+			long hash = 0;
+			if(use64) {
+				hash = murmurHash64(canonical, 0, kmerLength, SEED);
+			} else {
+				hash = murmurHash32(canonical, 0, kmerLength, SEED) &
+				0xffffffffL;
+			}
+			collector.add(hash ^ Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Keeps the smallest distinct values added to it. Values are added to
+	 * a buffer, which is sorted and cut back to the smallest values when it
+	 * fills. Once the sketch is full, values above the largest kept value
+	 * are not added.
+	 */
+	private static class HashCollector {
+		private int sketchSize;
+		private long[] buffer;
+		private int size;
+		private long threshold = Long.MAX_VALUE;
+		private boolean full = false;
+
+		HashCollector(int sketchSize) {
+			this.sketchSize = sketchSize;
+			buffer = new long[Math.max(sketchSize*2, 1024)];
+		}
+
+		void add(long value) {
+			if(!full || value < threshold) {
+				if(size == buffer.length) {
+					compact();
+				}
+				buffer[size] = value;
+				size++;
+			}
+		}
+
+		private void compact() {
+			Arrays.sort(buffer, 0, size);
+			int distinct = 0;
+			for(int i = 0; i < size && distinct < sketchSize; i++) {
+				if(distinct == 0 || buffer[i] != buffer[distinct-1]) {
+					buffer[distinct] = buffer[i];
+					distinct++;
+				}
+			}
+			size = distinct;
+			if(size == sketchSize) {
+				full = true;
+				threshold = buffer[size-1];
+			}
+		}
+
+		long[] getHashes() {
+			compact();
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	/**
+	 * Returns the first 64 bits of the MurmurHash3_x64_128 hash of the
+	 * bytes.
+	 */
+	static long murmurHash64(byte[] data, int offset, int length, int seed) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		long h1 = seed & 0xffffffffL;
+		long h2 = seed & 0xffffffffL;
+		int blockCount = length / 16;
+		for(int i = 0; i < blockCount; i++) {
+			int blockStart = offset + i*16;
+			long k1 = getLittleEndianLong(data, blockStart);
+			long k2 = getLittleEndianLong(data, blockStart + 8);
+
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1*5 + 0x52dce729;
+
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2*5 + 0x38495ab5;
+		}
+
+		int tailStart = offset + blockCount*16;
+		int tailLength = length & 15;
+		long k1 = 0;
+		long k2 = 0;
+		for(int i = tailLength - 1; i >= 8; i--) {
+			k2 ^= (long)(data[tailStart + i] & 0xff) << ((i - 8)*8);
+		}
+		if(tailLength > 8) {
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+		}
+		for(int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+			k1 ^= (long)(data[tailStart + i] & 0xff) << (i*8);
+		}
+		if(tailLength > 0) {
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	/**
+	 * Returns the MurmurHash3_x86_32 hash of the bytes.
+	 */
+	static int murmurHash32(byte[] data, int offset, int length, int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h1 = seed;
+		int blockCount = length / 4;
+		for(int i = 0; i < blockCount; i++) {
+			int blockStart = offset + i*4;
+			int k1 = (data[blockStart] & 0xff) |
+			((data[blockStart + 1] & 0xff) << 8) |
+			((data[blockStart + 2] & 0xff) << 16) |
+			((data[blockStart + 3] & 0xff) << 24);
+
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Integer.rotateLeft(h1, 13);
+			h1 = h1*5 + 0xe6546b64;
+		}
+
+		int tailStart = offset + blockCount*4;
+		int tailLength = length & 3;
+		int k1 = 0;
+		for(int i = tailLength - 1; i >= 0; i--) {
+			k1 ^= (data[tailStart + i] & 0xff) << (i*8);
+		}
+		if(tailLength > 0) {
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+
+		h1 ^= length;
+		h1 ^= h1 >>> 16;
+		h1 *= 0x85ebca6b;
+		h1 ^= h1 >>> 13;
+		h1 *= 0xc2b2ae35;
+		h1 ^= h1 >>> 16;
+		return h1;
+	}
+
+	private static long getLittleEndianLong(byte[] data, int offset) {
+		long r = 0;
+		for(int i = 7; i >= 0; i--) {
+			r = (r << 8) | (data[offset + i] & 0xff);
+		}
+		return r;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * Writes the sketch to a binary file. The file holds the length and
+	 * modification time of the sketched file, so a sketch read back can be
+	 * checked against the file.
+	 *
+	 * @param sketchFile
+	 * @param sourceLength length of the sketched file
+	 * @param sourceModified modification time of the sketched file
+	 * @throws IOException
+	 */
+	public void write(File sketchFile, long sourceLength, long sourceModified)
+	throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(sketchFile)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(kmerLength);
+			out.writeInt(sketchSize);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeInt(hashes.length);
+			for(int i = 0; i < hashes.length; i++) {
+				out.writeLong(hashes[i] ^ Long.MIN_VALUE);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a sketch written by write(). Returns null if the file is not a
+	 * sketch file, or if it was made with a different k-mer length, sketch
+	 * size, or version of the sketched file.
+	 *
+	 * @param sketchFile
+	 * @param name name for the sketch
+	 * @param kmerLength
+	 * @param sketchSize
+	 * @param sourceLength length of the sketched file
+	 * @param sourceModified modification time of the sketched file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MinHashSketch read(File sketchFile, String name,
+			int kmerLength, int sketchSize, long sourceLength,
+			long sourceModified) throws IOException {
+		MinHashSketch r = null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(sketchFile)));
+		try {
+			if(in.readInt() == FILE_MAGIC && in.readInt() == FILE_VERSION &&
+					in.readInt() == kmerLength && in.readInt() == sketchSize &&
+					in.readLong() == sourceLength &&
+					in.readLong() == sourceModified) {
+				long[] hashes = new long[in.readInt()];
+				for(int i = 0; i < hashes.length; i++) {
+					hashes[i] = in.readLong() ^ Long.MIN_VALUE;
+				}
+				r = new MinHashSketch(name, kmerLength, sketchSize, hashes);
+			}
+		} finally {
+			in.close();
+		}
+		return r;
+	}
+}
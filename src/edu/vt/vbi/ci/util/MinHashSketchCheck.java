@@ -0,0 +1,122 @@
+package edu.vt.vbi.ci.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks MinHashSketch against fixed values, and prints the result of
+ * each check. Exits with status 1 if any check fails.
+ *
+ * The hash values are from a reference MurmurHash3 implementation. The
+ * fixture genomes are examples/mash/genome_a.fna and genome_b.fna. Both
+ * have fewer distinct k-mers than the sketch size used, so each sketch
+ * holds all of the k-mers of its genome, and the expected Mash distance
+ * comes from the exact Jaccard index of the two sets of canonical k-mers.
+ *
+ * Usage: MinHashSketchCheck [fixture directory]
+ * The default fixture directory is examples/mash.
+ *
+ * @author enordber
+ *
+ */
+public class MinHashSketchCheck {
+
+	private static final int SEED = 42;
+	private static final int SKETCH_SIZE = 10000;
+	private static final double TOLERANCE = 1e-9;
+
+	private static final String[] HASH_INPUTS = new String[]{
+		"ACGTACGTACGTACGTACGTA", "AAAAAAAAAAAAAAAA", "ACGTTGCA"};
+	private static final long[] EXPECTED_HASH64 = new long[]{
+		0xb4e9c495b633d387L, 0xbb475554b20a1d07L, 0xe408619e47df9440L};
+	private static final int[] EXPECTED_HASH32 = new int[]{
+		0x1d7278c7, 0x41e3af6d, 0xfbbd1b7c};
+
+	private static final int[] KMER_LENGTHS = new int[]{21, 16, 11};
+	private static final double[] EXPECTED_DISTANCES = new double[]{
+		0.018354302076396344, 0.01877591581764032, 0.01916604407384629};
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		String fixtureDirectory = "examples/mash";
+		if(args.length > 0) {
+			fixtureDirectory = args[0];
+		}
+		String fileA = new File(fixtureDirectory, "genome_a.fna").getPath();
+		String fileB = new File(fixtureDirectory, "genome_b.fna").getPath();
+
+		for(int i = 0; i < HASH_INPUTS.length; i++) {
+			byte[] data = HASH_INPUTS[i].getBytes(StandardCharsets.US_ASCII);
+			check("murmurHash64 " + HASH_INPUTS[i], EXPECTED_HASH64[i],
+					MinHashSketch.murmurHash64(data, 0, data.length, SEED));
+			check("murmurHash32 " + HASH_INPUTS[i], EXPECTED_HASH32[i],
+					MinHashSketch.murmurHash32(data, 0, data.length, SEED));
+		}
+
+		try {
+			for(int i = 0; i < KMER_LENGTHS.length; i++) {
+				int k = KMER_LENGTHS[i];
+				MinHashSketch sketchA =
+					MinHashSketch.sketchFastaFile(fileA, k, SKETCH_SIZE);
+				MinHashSketch sketchB =
+					MinHashSketch.sketchFastaFile(fileB, k, SKETCH_SIZE);
+				check("distance k=" + k, EXPECTED_DISTANCES[i],
+						sketchA.getDistance(sketchB));
+				check("self distance k=" + k, 0,
+						sketchA.getDistance(sketchA));
+
+				//the sketch read back from a sidecar file is the same
+				File sketchFile = File.createTempFile("MinHashSketchCheck",
+						".sketch");
+				try {
+					sketchB.write(sketchFile, 1, 2);
+					MinHashSketch readSketch = MinHashSketch.read(sketchFile,
+							fileB, k, SKETCH_SIZE, 1, 2);
+					check("sidecar distance k=" + k, EXPECTED_DISTANCES[i],
+							sketchA.getDistance(readSketch));
+				} finally {
+					sketchFile.delete();
+				}
+			}
+		} catch(IOException e) {
+			System.out.println("There was a problem reading the fixture " +
+					"files in " + fixtureDirectory);
+			e.printStackTrace();
+			failures++;
+		}
+
+		System.out.println(failures == 0 ? "all checks passed" :
+			failures + " checks failed");
+		if(failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void check(String name, long expected, long actual) {
+		boolean ok = expected == actual;
+		report(name, "0x" + Long.toHexString(expected),
+				"0x" + Long.toHexString(actual), ok);
+	}
+
+	private static void check(String name, int expected, int actual) {
+		boolean ok = expected == actual;
+		report(name, "0x" + Integer.toHexString(expected),
+				"0x" + Integer.toHexString(actual), ok);
+	}
+
+	private static void check(String name, double expected, double actual) {
+		boolean ok = Math.abs(expected - actual) <= TOLERANCE;
+		report(name, "" + expected, "" + actual, ok);
+	}
+
+	private static void report(String name, String expected, String actual,
+			boolean ok) {
+		if(!ok) {
+			failures++;
+		}
+		System.out.println((ok ? "ok" : "FAILED") + "\t" + name +
+				"\texpected: " + expected + "\tactual: " + actual);
+	}
+}
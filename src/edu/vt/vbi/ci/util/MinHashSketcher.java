@@ -0,0 +1,266 @@
+package edu.vt.vbi.ci.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Creates MinHashSketches of fasta files for one k-mer length and sketch
+ * size, and keeps them so each file is only sketched once.
+ *
+ * Sketches are kept in a binary sidecar file next to each sketched file
+ * (see getSketchFileName()), and are held in memory only by soft
+ * references, so they may be dropped when memory is needed and read
+ * again from the sidecar file. Callers should only hold the sketches they
+ * are comparing at the time. A sidecar file is used only if
+ * it was made with the same k-mer length and sketch size, and the
+ * sketched file has the same length and modification time as when the
+ * sketch was made. If the sidecar file can not be written, a sketch that
+ * is dropped from memory is made again.
+ *
+ * Files are sketched in parallel, and distances between sketches are
+ * calculated in parallel, with up to processorCount threads.
+ *
+ * @author enordber
+ *
+ */
+public class MinHashSketcher {
+
+	/*
+	 * number of distances calculated by each parallel task
+	 */
+	private static final int DISTANCES_PER_TASK = 64;
+
+	private int kmerLength;
+	private int sketchSize;
+	private int processorCount;
+
+	/*
+	 * Key: sketched file name
+	 * Value: soft reference to the MinHashSketch for the file
+	 */
+	private HashMap<String,SoftReference<MinHashSketch>> sketches =
+		new HashMap<String,SoftReference<MinHashSketch>>();
+
+	public MinHashSketcher(int kmerLength, int sketchSize, int processorCount) {
+		this.kmerLength = kmerLength;
+		this.sketchSize = sketchSize;
+		this.processorCount = Math.max(1, processorCount);
+	}
+
+	/**
+	 * Returns the name of the sidecar file for the sketch of the file.
+	 */
+	public String getSketchFileName(String fileName) {
+		String r = fileName + "_k" + kmerLength + "_s" + sketchSize + ".sketch";
+		return r;
+	}
+
+	/**
+	 * Returns the sketch for the file, reading it from the sidecar file or
+	 * creating it if it is not in memory.
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public MinHashSketch getSketch(String fileName) throws IOException {
+		MinHashSketch r = null;
+		synchronized(sketches) {
+			SoftReference<MinHashSketch> reference = sketches.get(fileName);
+			if(reference != null) {
+				r = reference.get();
+			}
+		}
+		if(r == null) {
+			r = loadSketch(fileName);
+			if(r == null) {
+				r = createSketch(fileName);
+			}
+			synchronized(sketches) {
+				sketches.put(fileName, new SoftReference<MinHashSketch>(r));
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the sketches for the files. Files that have not already
+	 * been sketched are sketched in parallel.
+	 *
+	 * @param fileNames
+	 * @return
+	 * @throws IOException if any of the files can not be sketched
+	 */
+	public MinHashSketch[] getSketches(String[] fileNames) throws IOException {
+		MinHashSketch[] r = new MinHashSketch[fileNames.length];
+		SketchTask task = new SketchTask(fileNames, r, 0, fileNames.length);
+		if(fileNames.length <= 1 || processorCount == 1) {
+			task.compute();
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(processorCount);
+			try {
+				pool.invoke(task);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		if(task.getSketchException() != null) {
+			throw task.getSketchException();
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the distance between sketchesA[i] and sketchesB[i], for each
+	 * i. The distances are calculated in parallel.
+	 *
+	 * @param sketchesA
+	 * @param sketchesB
+	 * @return
+	 */
+	public double[] getDistances(MinHashSketch[] sketchesA,
+			MinHashSketch[] sketchesB) {
+		double[] r = new double[sketchesA.length];
+		DistanceTask task = new DistanceTask(sketchesA, sketchesB, r, 0,
+				r.length);
+		if(r.length <= DISTANCES_PER_TASK || processorCount == 1) {
+			task.compute();
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(processorCount);
+			try {
+				pool.invoke(task);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the sketch from the sidecar file, or null if there is no
+	 * usable sidecar file.
+	 */
+	private MinHashSketch loadSketch(String fileName) {
+		MinHashSketch r = null;
+		File file = new File(fileName);
+		File sketchFile = new File(getSketchFileName(fileName));
+		if(sketchFile.exists()) {
+			try {
+				r = MinHashSketch.read(sketchFile, fileName, kmerLength,
+						sketchSize, file.length(), file.lastModified());
+			} catch(IOException e) {
+				System.out.println("There was a problem reading the sketch " +
+						"file " + sketchFile + ". The sketch will be made again.");
+			}
+		}
+		return r;
+	}
+
+	private MinHashSketch createSketch(String fileName) throws IOException {
+		MinHashSketch r = null;
+		File file = new File(fileName);
+		long length = file.length();
+		long modified = file.lastModified();
+		r = MinHashSketch.sketchFastaFile(fileName, kmerLength, sketchSize);
+		File sketchFile = new File(getSketchFileName(fileName));
+		try {
+			r.write(sketchFile, length, modified);
+		} catch(IOException e) {
+			System.out.println("Could not write sketch file " + sketchFile +
+					". The sketch will be made again if it is needed later.");
+			sketchFile.delete();
+		}
+		return r;
+	}
+
+	/**
+	 * Gets the sketches for a range of files, splitting the range so parts
+	 * are sketched in parallel. The first exception thrown by any part is
+	 * kept by the task the range was split from.
+	 */
+	private class SketchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private String[] fileNames;
+		private MinHashSketch[] results;
+		private int from;
+		private int to;
+		private IOException sketchException;
+
+		SketchTask(String[] fileNames, MinHashSketch[] results, int from,
+				int to) {
+			this.fileNames = fileNames;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		IOException getSketchException() {
+			return sketchException;
+		}
+
+		protected void compute() {
+			if(to - from <= 1) {
+				for(int i = from; i < to && sketchException == null; i++) {
+					try {
+						results[i] = getSketch(fileNames[i]);
+					} catch(IOException e) {
+						sketchException = e;
+					}
+				}
+			} else {
+				int middle = (from + to) / 2;
+				SketchTask first = new SketchTask(fileNames, results, from,
+						middle);
+				SketchTask second = new SketchTask(fileNames, results, middle,
+						to);
+				invokeAll(first, second);
+				sketchException = first.getSketchException();
+				if(sketchException == null) {
+					sketchException = second.getSketchException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates a range of distances, splitting the range so parts are
+	 * calculated in parallel.
+	 */
+	private class DistanceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private MinHashSketch[] sketchesA;
+		private MinHashSketch[] sketchesB;
+		private double[] distances;
+		private int from;
+		private int to;
+
+		DistanceTask(MinHashSketch[] sketchesA, MinHashSketch[] sketchesB,
+				double[] distances, int from, int to) {
+			this.sketchesA = sketchesA;
+			this.sketchesB = sketchesB;
+			this.distances = distances;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= DISTANCES_PER_TASK) {
+				for(int i = from; i < to; i++) {
+					distances[i] = sketchesA[i].getDistance(sketchesB[i]);
+				}
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new DistanceTask(sketchesA, sketchesB, distances,
+						from, middle),
+						new DistanceTask(sketchesA, sketchesB, distances,
+								middle, to));
+			}
+		}
+	}
+}
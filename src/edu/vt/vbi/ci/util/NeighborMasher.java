@@ -83,17 +83,29 @@ public class NeighborMasher {
 	/* -h */
 	private static final String HELP = "h";
 
+	/*
+	 * number of query genomes sketched and compared at a time, so only the
+	 * sketches of one batch and the reference genomes are held at once
+	 */
+	private static final int QUERY_BATCH_SIZE = 64;
+
 	private static Logger logger;
 	static{
 		logger = Logger.getLogger("NeighborMasher");
 	}
 
 	/*
-	 * Maps from a genome name to a HashMap of other genome names mapped and their distances.
-	 * queryToTargetDistances.get(genomeA).get(genomeB) == distance between genomeA and genomeB.
-	 * These distances are symmetrical, and the map will contain both directions, genomeA --> genomeB, genomeB --> genomeA
+	 * Distances between genomes, by taxon name. These distances are symmetrical,
+	 * and are only stored once for each pair. Pairs with no distance are NaN.
+	 * The reference genomes of calculateGenomeDistances() are the core taxa.
 	 */
-	private HashMap<String,HashMap<String,Double>> genomeToGenomeDistances = new HashMap<String,HashMap<String,Double>>();
+	private GenomeDistanceMatrix genomeToGenomeDistances = new GenomeDistanceMatrix();
+
+	/*
+	 * sketches of the genome files, made as needed. Created on first use,
+	 * so the k-mer length and sketch size have been set.
+	 */
+	private MinHashSketcher sketcher;
 
 	private String[] ingroupTaxa;
 	private HashMap<String,String> genomeFileNameToTaxonName = new HashMap<String,String>();
@@ -118,7 +130,7 @@ public class NeighborMasher {
 //				slowlyExpandIngroup(expandedIngroupSize);
 				System.out.println("build tree with expanded ingroup...");
 			} 
-			runIngroupVsIngroupMash(); //doing this a second time can be avoided by mashing new ingroup members vs each other
+			runIngroupVsIngroupMash(); //only pairs that have not already been compared are calculated
 		} catch (IOException e1) {
 			System.out.println("There was a problem trying to run mash on ingroup genomes:");
 			e1.printStackTrace();
@@ -189,7 +201,6 @@ public class NeighborMasher {
 					e.printStackTrace();
 				}
 			}
-			cleanup();
 		}
 		System.out.println("<NeighborMasher.run()");
 	}
@@ -314,6 +325,7 @@ public class NeighborMasher {
 			if(distance < 1.0 && !originalIngroupTaxa.contains(expandedIngroupCandidates[i].getTaxonName())) {
 				//distance == 1.0 means the genome is too distant / there are no shared kmers, so it's not a good candidate
 				expandedIngroupGenomeFileNames.add(expandedIngroupCandidates[i].getGenomeFileName());
+				genomeToGenomeDistances.addCoreTaxon(expandedIngroupCandidates[i].getTaxonName());
 				System.out.println(expandedIngroupCandidates[i].getGenomeFileName() + "\t" + expandedIngroupCandidates[i].getTaxonName() + "\t" + expandedIngroupCandidates[i].getDistance());
 			}
 		}
@@ -332,18 +344,15 @@ public class NeighborMasher {
 		}
 		//of each ingroup taxon, find the nearest genome and add it to the ingroup
 		for(String ingroupTaxon: initialIngroup) {
-			HashMap<String,Double> genomeDistances = genomeToGenomeDistances.get(ingroupTaxon);
-			Double minDistance = Double.POSITIVE_INFINITY;
-			String taxonAtMinDistance = null;
-			for(String taxon: genomeDistances.keySet()) {
-				Double distance = genomeDistances.get(taxon);
-				if(distance > 0 && distance < minDistance) {
-					minDistance = distance;
-					taxonAtMinDistance = taxon;
-				}
+			int ingroupIndex = genomeToGenomeDistances.getIndex(ingroupTaxon);
+			int nearestIndex = -1;
+			if(ingroupIndex >= 0) {
+				nearestIndex = genomeToGenomeDistances.getNearestNeighbor(ingroupIndex);
 			}
-			if(taxonAtMinDistance != null) {
+			if(nearestIndex >= 0) {
+				String taxonAtMinDistance = genomeToGenomeDistances.getTaxon(nearestIndex);
 				if(expandedIngroup.add(taxonAtMinDistance)) {
+					genomeToGenomeDistances.addCoreTaxon(taxonAtMinDistance);
 					System.out.println("adding neighbor of " + ingroupTaxon + ": " + taxonAtMinDistance);					
 				}
 			}
@@ -365,8 +374,8 @@ public class NeighborMasher {
 		try {
 			String outgroupTaxon = getTaxonName(outgroupGenomeFileName);
 			for(int i = 0; i < distances.length; i++) {
-				Double distance = getGenomeDistance(outgroupTaxon, ingroupTaxa[i]);
-				if(distance != null) {
+				double distance = getGenomeDistance(outgroupTaxon, ingroupTaxa[i]);
+				if(!Double.isNaN(distance)) {
 					distances[i] = distance;
 				}
 			}
@@ -449,9 +458,8 @@ public class NeighborMasher {
 	 * @param genomeB
 	 * @return
 	 */
-	private Double getGenomeDistance(String genomeA, String genomeB) {
-		Double r = 1.0;
-		r = genomeToGenomeDistances.get(genomeA).get(genomeB);
+	private double getGenomeDistance(String genomeA, String genomeB) {
+		double r = genomeToGenomeDistances.getDistance(genomeA, genomeB);
 		return r;
 	}
 
@@ -463,21 +471,9 @@ public class NeighborMasher {
 	 * @param genomeB
 	 * @param distance
 	 */
-	private void setGenomeDistance(String genomeA, String genomeB, Double distance) {
+	private void setGenomeDistance(String genomeA, String genomeB, double distance) {
 		//		System.out.println(">NeighborMasher.setGenomeDistance() " + genomeA + " vs " + genomeB + ": " + distance);
-		HashMap<String,Double> genomeAMap = genomeToGenomeDistances.get(genomeA);
-		if(genomeAMap == null) {
-			genomeAMap = new HashMap<String,Double>();
-			genomeToGenomeDistances.put(genomeA, genomeAMap);
-		}
-		genomeAMap.put(genomeB, distance);
-
-		HashMap<String,Double> genomeBMap = genomeToGenomeDistances.get(genomeB);
-		if(genomeBMap == null) {
-			genomeBMap = new HashMap<String,Double>();
-			genomeToGenomeDistances.put(genomeB, genomeBMap);
-		}
-		genomeBMap.put(genomeA, distance);
+		genomeToGenomeDistances.setDistance(genomeA, genomeB, distance);
 	}
 
 	private GenomeCandidate[] selectOutgroupCandidates(GenomeCandidate[] outgroupCandidates, double maximumIngroupDistance, double ingroupDistanceStdDev, int count) {
@@ -567,16 +563,6 @@ public class NeighborMasher {
 		return r;
 	}
 
-	private String getIngroupSketchFileName() {
-		String r = "ingroup_sketch_k" + getMashKmerLength() + "_s" + getMashSketchSize() + ".msh";
-		return r;
-	}
-
-	private String getSelectedOutgroupSketchFileName() {
-		String r = "selected_outgroup_sketch_k" + getMashKmerLength() + "_s" + getMashSketchSize() + ".msh";
-		return r;
-	}
-
 	private String buildIngroupTree() throws IOException {
 		String r = null;
 		String[] taxa = getIngroupTaxa();
@@ -587,38 +573,17 @@ public class NeighborMasher {
 	private String buildRootedTree(GenomeCandidate[] selectedOutgroupGenomes) throws IOException {
 		String r = null;
 		//calculate distances for each outgroup genome vs each ingroup genome
-
-		//create sketch file for selected outgroup genomes
 		String[] outgroupFileNames = new String[selectedOutgroupGenomes.length];
 		for(int i = 0; i < outgroupFileNames.length; i++) {
 			outgroupFileNames[i] = selectedOutgroupGenomes[i].getGenomeFileName();
 		}
-		String sketchCommand = getMashPath() + " sketch -p " + getMashProcessorCount()
-				+ " -s " + getMashSketchSize() + " -k " + getMashKmerLength()
-				+ " -o " + getSelectedOutgroupSketchFileName()
-				+ " " + getTargetStringStartingAt(outgroupFileNames, 0);
+		//selected outgroup vs ingroup
+		System.out.println("calculating outgroup vs ingroup distances...");
+		calculateGenomeDistances(getIngroupGenomeFileNames(), outgroupFileNames);
 
-		System.out.println("create mash sketch file for selected outgroup genomes...");
-		System.out.println(sketchCommand);
-		ExecUtilities.exec(sketchCommand);
-
-		//run mash on selected outgroup vs ingroup 
-		String mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize()
-				+ " " + getIngroupSketchFileName() + " " + getSelectedOutgroupSketchFileName();			
-
-		System.out.println("running outgroup vs ingroup mash...");
-		System.out.println(mashCommand);
-		CommandResults results = ExecUtilities.exec(mashCommand);
-		readMashResults(results);
-
-		//run mash on outgroup vs outgroup
-		mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize()
-				+ " " + getSelectedOutgroupSketchFileName() + " " + getSelectedOutgroupSketchFileName();			
-
-		System.out.println("running outgroup vs outgroup mash...");
-		System.out.println(mashCommand);
-		results = ExecUtilities.exec(mashCommand);
-		readMashResults(results);
+		//outgroup vs outgroup
+		System.out.println("calculating outgroup vs outgroup distances...");
+		calculateGenomeDistances(outgroupFileNames, outgroupFileNames);
 
 		String[] outgroupTaxa = new String[outgroupFileNames.length];
 		String[] ingroupGenomeFileNames = getIngroupGenomeFileNames();
@@ -653,202 +618,193 @@ public class NeighborMasher {
 	 */
 	private String buildNJTreeOfTaxa(String[] taxa) {
 		String r = null;
+		int[] taxonIndices = new int[taxa.length];
+		for(int i = 0; i < taxonIndices.length; i++) {
+			taxonIndices[i] = genomeToGenomeDistances.getIndex(taxa[i]);
+		}
 		double[][] distances = new double[taxa.length][taxa.length];
 		for(int i = 0; i < distances.length; i++) {
 			distances[i][i] = 0;
 			for(int j = i+1; j < distances.length; j++) {
-				try {
-					double distance = getGenomeDistance(taxa[i], taxa[j]);
+				double distance = Double.NaN;
+				if(taxonIndices[i] >= 0 && taxonIndices[j] >= 0) {
+					distance = genomeToGenomeDistances.getDistance(taxonIndices[i], taxonIndices[j]);
+				}
+				if(Double.isNaN(distance)) {
+					System.out.println("null distance for " + taxa[i] + " vs " + taxa[j]);
+				} else {
 					distances[i][j] = distance;
 					distances[j][i] = distance;
-				}catch(NullPointerException npe) {
-					System.out.println("null distance for " + taxa[i] + " vs " + taxa[j]);
 				}
 			}
 		}
 
-		r = TreeBuilder.getNJTreeString(taxa, distances, TreeBuilder.DISTANCE);
+		r = TreeBuilder.getRapidNJTreeString(taxa, distances, TreeBuilder.DISTANCE);
 
 		return r;
 	}
 
 	private void runIngroupVsIngroupMash() throws IOException {
 		System.out.println(">NeighborMasher.runIngroupVsIngroupMash()");
-		String sketchFileName = getIngroupSketchFileName();
-		System.out.println("creating mash sketch file " + sketchFileName + "...");
-		String sketchCommand = getMashPath() + " sketch -p " + getMashProcessorCount()
-				+ " -s " + getMashSketchSize() + " -k " + getMashKmerLength()
-				+ " -o " + sketchFileName
-				+ " " + getTargetStringStartingAt(getIngroupGenomeFileNames(), 0);
+		System.out.println("calculating ingroup vs ingroup distances...");
+		calculateGenomeDistances(getIngroupGenomeFileNames(), getIngroupGenomeFileNames());
+		System.out.println("<NeighborMasher.runIngroupVsIngroupMash()");
+	}
 
-		System.out.println(sketchCommand);
-		ExecUtilities.exec(sketchCommand);
+	/**
+	 * Calculates and caches the Mash distance between each of the reference
+	 * genomes and each of the query genomes. Pairs that already have a 
+	 * cached distance are not calculated again. Each genome file is only 
+	 * sketched once, however many times it is compared. The query genomes
+	 * are compared in batches, and only the sketches of the reference 
+	 * genomes and the current batch are held.
+	 * 
+	 * @param referenceFileNames
+	 * @param queryFileNames
+	 * @throws IOException
+	 */
+	private void calculateGenomeDistances(String[] referenceFileNames, String[] queryFileNames) throws IOException {
+		MinHashSketch[] referenceSketches = getSketcher().getSketches(referenceFileNames);
+		String[] referenceTaxa = new String[referenceFileNames.length];
+		for(int i = 0; i < referenceTaxa.length; i++) {
+			referenceTaxa[i] = getTaxonName(referenceFileNames[i]);
+			//the reference genomes are the ones compared with most others
+			genomeToGenomeDistances.addCoreTaxon(referenceTaxa[i]);
+		}
 
-		String mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize()
-				+ " " + sketchFileName + " " + sketchFileName;			
+		int batchSize = Math.max(QUERY_BATCH_SIZE, getMashProcessorCount());
+		int calculatedCount = 0;
+		for(int batchStart = 0; batchStart < queryFileNames.length; batchStart += batchSize) {
+			String[] batchFileNames = Arrays.copyOfRange(queryFileNames, batchStart, 
+					Math.min(batchStart + batchSize, queryFileNames.length));
+			calculatedCount += calculateGenomeDistances(referenceSketches, referenceTaxa, batchFileNames);
+		}
+		System.out.println("calculated " + calculatedCount + " genome distances");
+	}
 
-		System.out.println("running ingroup vs ingroup mash...");
-		System.out.println(mashCommand);
-		CommandResults results = ExecUtilities.exec(mashCommand);
-		readMashResults(results);
-		System.out.println("<NeighborMasher.runIngroupVsIngroupMash()");
+	/**
+	 * Calculates and caches the distances between the reference genomes 
+	 * and one batch of query genomes, and returns the number of distances
+	 * calculated.
+	 */
+	private int calculateGenomeDistances(MinHashSketch[] referenceSketches, String[] referenceTaxa, String[] queryFileNames) throws IOException {
+		int r = 0;
+		MinHashSketch[] querySketches = getSketcher().getSketches(queryFileNames);
+
+		//find the pairs that have not been calculated yet
+		ArrayList<MinHashSketch> pairReferences = new ArrayList<MinHashSketch>();
+		ArrayList<MinHashSketch> pairQueries = new ArrayList<MinHashSketch>();
+		ArrayList<String[]> pairTaxa = new ArrayList<String[]>();
+		HashSet<String> pairsAdded = new HashSet<String>();
+		for(int i = 0; i < queryFileNames.length; i++) {
+			String queryTaxon = getTaxonName(queryFileNames[i]);
+			for(int j = 0; j < referenceTaxa.length; j++) {
+				boolean known = genomeToGenomeDistances.hasDistance(queryTaxon, referenceTaxa[j]);
+				//the distances are symmetrical, so each pair is only added in one order
+				String pairKey = queryTaxon.compareTo(referenceTaxa[j]) < 0 ? 
+						queryTaxon + "\t" + referenceTaxa[j] : referenceTaxa[j] + "\t" + queryTaxon;
+				if(!known && pairsAdded.add(pairKey)) {
+					pairReferences.add(referenceSketches[j]);
+					pairQueries.add(querySketches[i]);
+					pairTaxa.add(new String[]{referenceTaxa[j], queryTaxon});
+				}
+			}
+		}
+
+		double[] distances = getSketcher().getDistances(
+				pairReferences.toArray(new MinHashSketch[0]), 
+				pairQueries.toArray(new MinHashSketch[0]));
+		for(int i = 0; i < distances.length; i++) {
+			String[] taxa = pairTaxa.get(i);
+			setGenomeDistance(taxa[0], taxa[1], distances[i]);
+		}
+		r = distances.length;
+		return r;
 	}
 
-	private void readMashResults(CommandResults mashResults) throws IOException {
-		System.out.println(">NeighborMasher.readMashResults()");
-		String[] stdout = mashResults.getStdout();
-		Pattern delimiter = Pattern.compile("\\s+");
-		int targetIndex = 0;
-		int queryIndex = 1;
-		int distanceIndex = 2;
-		//		System.out.println("Mash result lines: " + stdout.length);
-		for(String line: stdout) {
-			String[] fields = delimiter.split(line);
-			//			System.out.println("fields: " + fields.length + ": " + Arrays.toString(fields));
-			String target = fields[targetIndex];
-			String targetGenomeName = getTaxonName(target);
-			String query = fields[queryIndex];
-			String queryGenomeName = getTaxonName(query);
-			Double distance = Double.valueOf(fields[distanceIndex]);
-			setGenomeDistance(targetGenomeName, queryGenomeName, distance);
+	private MinHashSketcher getSketcher() {
+		if(sketcher == null) {
+			sketcher = new MinHashSketcher(getMashKmerLength(), getMashSketchSize(), getMashProcessorCount());
 		}
-		System.out.println("<NeighborMasher.readMashResults()");
+		return sketcher;
 	}
 
 	private void runOutgroupVsIngroupMash() throws IOException {
 		System.out.println(">NeighborMasher.runOutgroupVsIngroupMash()");
-		String sketchFileName = getOutgroupSketchFileName();
-		if(sketchFileName == null) {
-			//create outgroup sketch file
-			createOutgroupSketchFile();
-			sketchFileName = getOutgroupSketchFileName();
-		}
-
-		String ingroupSketchFileName = getIngroupSketchFileName();
-		String mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize() 
-				+ " " + ingroupSketchFileName + " " + sketchFileName;			
-
-		System.out.println("run mash on outgroup vs ingroup...");
-		System.out.println(mashCommand);
-		CommandResults results = ExecUtilities.exec(mashCommand);
-		readMashResults(results);
+		System.out.println("calculating outgroup vs ingroup distances...");
+		calculateGenomeDistances(getIngroupGenomeFileNames(), getOutgroupGenomeFileNames());
 		System.out.println("<NeighborMasher.runOutgroupVsIngroupMash()");
 	}
 
 	private GenomeCandidate[] getMaxDistanceForEachOutgroupToIngroupSketch() {
 		GenomeCandidate[] r = null;
-		HashMap<String,Double> outgroupCandidateToMaxDistance = new HashMap<String,Double>();
-		String sketchFileName = getOutgroupSketchFileName();
-		if(sketchFileName == null) {
-			//create outgroup sketch file
-			createOutgroupSketchFile();
-			sketchFileName = getOutgroupSketchFileName();
-		}
-
-		String ingroupSketchFileName = getIngroupSketchFileName();
-		String mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize() 
-				+ " " + ingroupSketchFileName + " " + sketchFileName;			
-
-		System.out.println("run mash on outgroup vs ingroup...");
-		System.out.println(mashCommand);
-		CommandResults results = ExecUtilities.exec(mashCommand);
-		String[] stdout = results.getStdout();
-
-		Pattern pattern = Pattern.compile("\\s+");
-		int queryIndex = 1;
-		int distanceFieldIndex = 2;
-		for(String line: stdout) {
-			String[] fields = pattern.split(line);
-			String queryGenome = fields[queryIndex];
-			double distance = Double.parseDouble(fields[distanceFieldIndex]);
-			Double maxDistance = outgroupCandidateToMaxDistance.get(queryGenome);
-			if(maxDistance == null || distance > maxDistance) {
-				outgroupCandidateToMaxDistance.put(queryGenome, distance);
-			}			
+		String[] outgroupFileNames = getOutgroupGenomeFileNames();
+		ArrayList<GenomeCandidate> candidates = new ArrayList<GenomeCandidate>();
+		try {
+			runOutgroupVsIngroupMash();
+		} catch (IOException e) {
+			System.out.println("There was a problem trying to calculate outgroup vs ingroup distances:");
+			e.printStackTrace();
 		}
 
-		r = new GenomeCandidate[outgroupCandidateToMaxDistance.size()];
-		int index = 0;
-		for(String genomeFileName: outgroupCandidateToMaxDistance.keySet()) {
-			Double maxDistance = outgroupCandidateToMaxDistance.get(genomeFileName);
+		String[] ingroupTaxa = getIngroupTaxa();
+		HashSet<String> genomesAdded = new HashSet<String>();
+		for(String genomeFileName: outgroupFileNames) {
 			try {
-				r[index++] = new GenomeCandidate(genomeFileName, getTaxonName(genomeFileName), maxDistance);
+				String outgroupTaxon = getTaxonName(genomeFileName);
+				double maxDistance = Double.NaN;
+				for(String ingroupTaxon: ingroupTaxa) {
+					double distance = getGenomeDistance(outgroupTaxon, ingroupTaxon);
+					if(!Double.isNaN(distance) && (Double.isNaN(maxDistance) || distance > maxDistance)) {
+						maxDistance = distance;
+					}
+				}
+				if(!Double.isNaN(maxDistance) && genomesAdded.add(genomeFileName)) {
+					candidates.add(new GenomeCandidate(genomeFileName, outgroupTaxon, maxDistance));
+				}
 			} catch (IOException e) {
 				System.out.println("There was a problem trying to read the taxon name form the genome file, " + genomeFileName);
 				e.printStackTrace();
 			}
 		}
 
+		r = candidates.toArray(new GenomeCandidate[0]);
 		return r;
 	}
 
 	private GenomeCandidate[] getMinDistanceForEachOutgroupToIngroupSketch() {
 		GenomeCandidate[] r = null;
-		HashMap<String,Double> outgroupCandidateToMinDistance = new HashMap<String,Double>();
-		String sketchFileName = getOutgroupSketchFileName();
-		if(sketchFileName == null) {
-			//create outgroup sketch file
-			createOutgroupSketchFile();
-			sketchFileName = getOutgroupSketchFileName();
-		}
-
-		String ingroupSketchFileName = getIngroupSketchFileName();
-		String mashCommand = getMashPath() + " dist -p " + getMashProcessorCount() + " -s " + getMashSketchSize() 
-				+ " " + ingroupSketchFileName + " " + sketchFileName;			
-
-		System.out.println("run mash on outgroup vs ingroup...");
-		System.out.println(mashCommand);
-		CommandResults results = ExecUtilities.exec(mashCommand);
-		String[] stdout = results.getStdout();
-
-		Pattern pattern = Pattern.compile("\\s+");
-		int queryIndex = 1;
-		int distanceFieldIndex = 2;
-		for(String line: stdout) {
-			String[] fields = pattern.split(line);
-			String queryGenome = fields[queryIndex];
-			double distance = Double.parseDouble(fields[distanceFieldIndex]);
-			Double minDistance = outgroupCandidateToMinDistance.get(queryGenome);
-			if(minDistance == null || distance < minDistance) {
-				outgroupCandidateToMinDistance.put(queryGenome, distance);
-			}			
+		String[] outgroupFileNames = getOutgroupGenomeFileNames();
+		ArrayList<GenomeCandidate> candidates = new ArrayList<GenomeCandidate>();
+		try {
+			runOutgroupVsIngroupMash();
+		} catch (IOException e) {
+			System.out.println("There was a problem trying to calculate outgroup vs ingroup distances:");
+			e.printStackTrace();
 		}
 
-		r = new GenomeCandidate[outgroupCandidateToMinDistance.size()];
-		int index = 0;
-		for(String genomeFileName: outgroupCandidateToMinDistance.keySet()) {
-			Double minDistance = outgroupCandidateToMinDistance.get(genomeFileName);
+		String[] ingroupTaxa = getIngroupTaxa();
+		HashSet<String> genomesAdded = new HashSet<String>();
+		for(String genomeFileName: outgroupFileNames) {
 			try {
-				r[index++] = new GenomeCandidate(genomeFileName, getTaxonName(genomeFileName), minDistance);
+				String outgroupTaxon = getTaxonName(genomeFileName);
+				double minDistance = Double.NaN;
+				for(String ingroupTaxon: ingroupTaxa) {
+					double distance = getGenomeDistance(outgroupTaxon, ingroupTaxon);
+					if(!Double.isNaN(distance) && (Double.isNaN(minDistance) || distance < minDistance)) {
+						minDistance = distance;
+					}
+				}
+				if(!Double.isNaN(minDistance) && genomesAdded.add(genomeFileName)) {
+					candidates.add(new GenomeCandidate(genomeFileName, outgroupTaxon, minDistance));
+				}
 			} catch (IOException e) {
 				System.out.println("There was a problem trying to read the taxon name form the genome file, " + genomeFileName);
 				e.printStackTrace();
 			}
 		}
 
-		return r;
-	}
-
-	private void createOutgroupSketchFile() {
-		String sketchFileName = "outgroup_sketch_k" + getMashKmerLength() + "_s" + getMashSketchSize() + ".msh";
-		System.out.println("creating mash sketch file " + sketchFileName + "...");
-		String sketchCommand = mashPath + " sketch -p " + getMashProcessorCount()
-				+ " -s " + getMashSketchSize() + " -k " + getMashKmerLength()
-				+ " -o " + sketchFileName 
-				+ " " + getTargetStringStartingAt(getOutgroupGenomeFileNames(), 0);
-		System.out.println(sketchCommand);
-		ExecUtilities.exec(sketchCommand);
-		setOutgroupSketchFileName(sketchFileName);
-	}
-
-	private String getTargetStringStartingAt(String[] fileNames, int start) {
-		String r = null;
-		StringBuffer sb = new StringBuffer(fileNames[start]);
-		for(int i = start+1; i < fileNames.length; i++) {
-			sb.append(" ");
-			sb.append(fileNames[i]);
-		}
-		r = sb.toString();
+		r = candidates.toArray(new GenomeCandidate[0]);
 		return r;
 	}
 
@@ -1010,26 +966,18 @@ public class NeighborMasher {
 		return r;
 	}
 
-	private void cleanup() {
-		File ingroupSketchFile = new File(getIngroupSketchFileName());
-		ingroupSketchFile.delete();
-
-		File selectedOutgroupSketchFile = new File(getSelectedOutgroupSketchFileName());
-		selectedOutgroupSketchFile.delete();
-	}
-
 	private void printHelp() {
 		HashMap<String,String> commandDescriptions = new HashMap<String,String>();
 		commandDescriptions.put("ingroup_tree_only","Exit after writing ingroup tree file. This tree can be viewed with midpoint rooting, rather than outgroup. [false]");
-		commandDescriptions.put("outgroup_sketch","Name of mash sketch file to use for outgroup. Required unless -outgroup is provided or -ingroup_tree_only.");
-		commandDescriptions.put("k","Mash kmer size [" + mashKmerLength + "]");
+		commandDescriptions.put("outgroup_sketch","Name of mash sketch file listing the outgroup genome files. The listed files are sketched again by NeighborMasher. Required unless -outgroup is provided or -ingroup_tree_only.");
+		commandDescriptions.put("k","Mash kmer size. Sketches are kept next to each genome file, in files ending _k<k>_s<s>.sketch [" + mashKmerLength + "]");
 		commandDescriptions.put("s","Mash sketch size [" + mashSketchSize +"]");
 		commandDescriptions.put("outgroup_count","Number of outgroup candidates to report. [" + outgroupCount + "]");
 		commandDescriptions.put("run_name","Name for this run. Used as base name for some output files. [timestamp]");
 		commandDescriptions.put("outgroup_only","Don’t make any trees. Just output the selected outgroup genomes. [false]");
 		commandDescriptions.put("ingroup","List of .fna files for ingroup genomes. Required.");
 		commandDescriptions.put("outgroup","List of .fna files for outgroup candidate genomes. Required unless -outgroup_sketch is provided or -ingroup_tree_only.");
-		commandDescriptions.put("mash","Path to mash executable. Required.");
+		commandDescriptions.put("mash","Path to mash executable. Only used to list the genome files in -outgroup_sketch.");
 		commandDescriptions.put("h","Print this help information, then exit.");
 		commandDescriptions.put("p","Number of processors to use. [all available]");
 		commandDescriptions.put("expand_ingroup","Add closest genomes from outgroup pool to ingroup. value is target size for ingroup after expansion. Uses same k and s values for mash. [0]");
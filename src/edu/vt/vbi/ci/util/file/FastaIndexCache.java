@@ -0,0 +1,211 @@
+package edu.vt.vbi.ci.util.file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index for a fasta file, stored in a sidecar file next
+ * to it (the fasta file name plus INDEX_SUFFIX). The index holds the
+ * newline offsets, the line index of each sequence title, and the
+ * title lines themselves, so a FastaSequenceFile opened on an unchanged
+ * file does not need to scan or re-read it.
+ *
+ * A sidecar is only used if the fasta file's length, modification time
+ * and a checksum of its first and last INDEX_SAMPLE_SIZE bytes all match
+ * the values recorded when the sidecar was written. Any mismatch or read
+ * problem means the sidecar is ignored, and it is rewritten on the next
+ * save().
+ *
+ * @author enordber
+ */
+public class FastaIndexCache {
+
+	public static final String INDEX_SUFFIX = ".pepridx";
+
+	private static final int MAGIC = 0x50455058; //"PEPX"
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bytes from each end of the fasta file that are
+	 * included in the content checksum.
+	 */
+	private static final int INDEX_SAMPLE_SIZE = 1024*64;
+
+	private long[] newlineIndices;
+	private int[] sequenceStarts;
+	private String[] titles;
+
+	private FastaIndexCache(long[] newlineIndices, int[] sequenceStarts,
+			String[] titles) {
+		this.newlineIndices = newlineIndices;
+		this.sequenceStarts = sequenceStarts;
+		this.titles = titles;
+	}
+
+	public long[] getNewlineIndices() {
+		return newlineIndices;
+	}
+
+	public int[] getSequenceStarts() {
+		return sequenceStarts;
+	}
+
+	public String[] getTitles() {
+		return titles;
+	}
+
+	/**
+	 * Returns the sidecar index file for the given fasta file.
+	 */
+	public static File getIndexFile(File fastaFile) {
+		return new File(fastaFile.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Memory-maps and reads the sidecar index for the given fasta file.
+	 * Returns null if there is no sidecar, or if it does not match the
+	 * current state of the fasta file.
+	 *
+	 * @param fastaFile
+	 * @return
+	 */
+	public static FastaIndexCache load(File fastaFile) {
+		FastaIndexCache r = null;
+		File indexFile = getIndexFile(fastaFile);
+		if(!indexFile.isFile() ||
+				indexFile.lastModified() < fastaFile.lastModified()) {
+			return r;
+		}
+
+		try {
+			RandomAccessFile raFile = new RandomAccessFile(indexFile, "r");
+			try {
+				FileChannel channel = raFile.getChannel();
+				MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if(buffer.getInt() == MAGIC && buffer.getInt() == VERSION &&
+						buffer.getLong() == fastaFile.length() &&
+						buffer.getLong() == fastaFile.lastModified() &&
+						buffer.getLong() == getContentChecksum(fastaFile)) {
+					long[] newlines = new long[buffer.getInt()];
+					buffer.asLongBuffer().get(newlines);
+					buffer.position(buffer.position() + newlines.length*8);
+
+					int[] starts = new int[buffer.getInt()];
+					buffer.asIntBuffer().get(starts);
+					buffer.position(buffer.position() + starts.length*4);
+
+					String[] titles = new String[starts.length];
+					byte[] titleBytes = new byte[256];
+					for(int i = 0; i < titles.length; i++) {
+						int length = buffer.getInt();
+						if(length > titleBytes.length) {
+							titleBytes = new byte[length];
+						}
+						buffer.get(titleBytes, 0, length);
+						titles[i] = new String(titleBytes, 0, length,
+								StandardCharsets.UTF_8);
+					}
+					r = new FastaIndexCache(newlines, starts, titles);
+				}
+			} finally {
+				raFile.close();
+			}
+		} catch(IOException ioe) {
+			r = null;
+		} catch(RuntimeException re) {
+			//a truncated or corrupt sidecar is treated as missing
+			r = null;
+		}
+		return r;
+	}
+
+	/**
+	 * Writes the sidecar index for the given fasta file. The index is
+	 * written to a temporary file which is then renamed, so concurrent
+	 * readers never see a partial index. Failure to write (for example,
+	 * because the directory is read-only) is not an error; the file
+	 * will simply be indexed again next time.
+	 *
+	 * @param fastaFile
+	 * @param newlineIndices
+	 * @param sequenceStarts
+	 * @param titles
+	 */
+	public static void save(File fastaFile, long[] newlineIndices,
+			int[] sequenceStarts, String[] titles) {
+		File indexFile = getIndexFile(fastaFile);
+		File tempFile = new File(indexFile.getPath() + ".tmp" +
+				Thread.currentThread().getId());
+		try {
+			long checksum = getContentChecksum(fastaFile);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile),
+							1024*64));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(fastaFile.length());
+				out.writeLong(fastaFile.lastModified());
+				out.writeLong(checksum);
+				out.writeInt(newlineIndices.length);
+				for(int i = 0; i < newlineIndices.length; i++) {
+					out.writeLong(newlineIndices[i]);
+				}
+				out.writeInt(sequenceStarts.length);
+				for(int i = 0; i < sequenceStarts.length; i++) {
+					out.writeInt(sequenceStarts[i]);
+				}
+				for(int i = 0; i < sequenceStarts.length; i++) {
+					byte[] titleBytes = titles[i].getBytes(StandardCharsets.UTF_8);
+					out.writeInt(titleBytes.length);
+					out.write(titleBytes);
+				}
+			} finally {
+				out.close();
+			}
+			if(!tempFile.renameTo(indexFile)) {
+				tempFile.delete();
+			}
+		} catch(IOException ioe) {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Returns a CRC32 checksum of the first and last INDEX_SAMPLE_SIZE
+	 * bytes of the file. Together with the length and modification time,
+	 * this detects files that have been replaced or edited in place
+	 * without reading the whole file.
+	 */
+	private static long getContentChecksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		RandomAccessFile raFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raFile.getChannel();
+			long length = channel.size();
+			ByteBuffer buffer =
+				ByteBuffer.allocate((int)Math.min(length, INDEX_SAMPLE_SIZE));
+			channel.read(buffer, 0);
+			crc.update(buffer.array(), 0, buffer.position());
+			if(length > INDEX_SAMPLE_SIZE) {
+				buffer.clear();
+				channel.read(buffer, Math.max(INDEX_SAMPLE_SIZE,
+						length - INDEX_SAMPLE_SIZE));
+				crc.update(buffer.array(), 0, buffer.position());
+			}
+		} finally {
+			raFile.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -1,12 +1,11 @@
 package edu.vt.vbi.ci.util.file;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-
-import edu.vt.vbi.ci.util.IntList;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author ericnordberg
@@ -38,79 +37,104 @@ Comparable{
 	 * @throws IOException
 	 */
 	public FastaSequenceFile(String fileName) throws IOException {
-		super(fileName);
-		setFileName(fileName);
-		findSequenceStarts();
+		this(fileName, false);
 	}
 
-	private void findSequenceStarts() throws IOException {
-		RandomAccessFile raFile = new RandomAccessFile(getFile(), "r");
-		
-		IntList gtIndices = new IntList();
-		long[] newlineIndices = getNewlineIndices();
-		//any greater-than characters '>' should occur immediately
-		//after a newline, except the first one, which should be the
-		//first character
-		
-		long byteBufferSize = raFile.length();
-		
-		//use a byte[] as a searchBuffer. Fill this array and
-		//look through it for value. When done looking through
-		//array, refill it from bb and look again. Do this until
-		//the end of bb is reached.
-		
-		//use a buffer of size 128K, unless the complete file
-		//is smaller than this
-		long searchBufferSize = Math.min(1024*128, byteBufferSize);
-
-		byte[] searchBuffer = new byte[(int)searchBufferSize];
-		long fullBufferSearches = byteBufferSize / searchBufferSize;
+	/**
+	 * @param fileName
+	 * @param useIndexCache if true, the index is loaded from the 
+	 *        FastaIndexCache sidecar file when it is current, and the
+	 *        sidecar is written when it is not.
+	 * @throws IOException
+	 */
+	public FastaSequenceFile(String fileName, boolean useIndexCache) 
+	throws IOException {
+		this(new File(fileName), fileName, useIndexCache,
+				useIndexCache ? FastaIndexCache.load(new File(fileName)) : null);
+	}
 
-		raFile.seek(0);
-		byte candidate = raFile.readByte();
-		if(candidate == ASCII_GT) {
-			gtIndices.add(0);
+	private FastaSequenceFile(File file, String fileName, 
+			boolean useIndexCache, FastaIndexCache cachedIndex) 
+	throws IOException {
+		//title lines are found in the same pass as the newlines
+		super(file, ASCII_GT, 
+				cachedIndex == null ? null : cachedIndex.getNewlineIndices(),
+				cachedIndex == null ? null : cachedIndex.getSequenceStarts());
+		setFileName(fileName);
+		sequenceStarts = getMarkedLineIndices();
+		if(cachedIndex != null) {
+			if(sequenceStarts.length > 0) {
+				titles = cachedIndex.getTitles();
+			}
+		} else if(useIndexCache) {
+			FastaIndexCache.save(file, getNewlineIndices(), sequenceStarts,
+					getTitles());
 		}
-		raFile.seek(0);
+	}
 
-		int newlineIndex = 0;
-		long startOfBuffer;
-		long endOfBuffer;
-		long candidateAbsIndex;
-		int candidateRelIndex;
-		for(int i = 0; i < fullBufferSearches; i++) {
-			raFile.readFully(searchBuffer);
-			startOfBuffer  = i * searchBufferSize;
-		    endOfBuffer = startOfBuffer + searchBufferSize;
-			for(; newlineIndices[newlineIndex] + 1 < endOfBuffer; 
-			newlineIndex++){
-				candidateAbsIndex = newlineIndices[newlineIndex] + 1;
-				candidateRelIndex = (int)(candidateAbsIndex - startOfBuffer);
-				if(searchBuffer[candidateRelIndex] == ASCII_GT) {
-					gtIndices.add(newlineIndex+1);
-				}
-			}
+	/**
+	 * Loads all of the given files concurrently. Each file is indexed
+	 * in a ForkJoinPool task, and large files are further split across
+	 * the pool by their indexers, so loading scales with available cores.
+	 * The returned array is in the same order as fileNames.
+	 * 
+	 * @param fileNames
+	 * @return
+	 * @throws IOException if any of the files could not be loaded
+	 */
+	public static FastaSequenceFile[] loadAll(String[] fileNames) 
+	throws IOException {
+		return loadAll(fileNames, false);
+	}
+
+	/**
+	 * Loads all of the given files concurrently, as loadAll(String[]),
+	 * optionally using the FastaIndexCache sidecar for each file.
+	 * 
+	 * @param fileNames
+	 * @param useIndexCache
+	 * @return
+	 * @throws IOException if any of the files could not be loaded
+	 */
+	public static FastaSequenceFile[] loadAll(String[] fileNames,
+			boolean useIndexCache) throws IOException {
+		FastaSequenceFile[] r = new FastaSequenceFile[fileNames.length];
+		LoadTask[] tasks = new LoadTask[fileNames.length];
+		for(int i = 0; i < tasks.length; i++) {
+			tasks[i] = new LoadTask(fileNames[i], useIndexCache);
 		}
-		
-		searchBuffer = null;
-		
-		//search the remaining bytes
-		byte[] remainder = new byte[(int)(byteBufferSize % searchBufferSize)];
-		raFile.readFully(remainder);
-		startOfBuffer = fullBufferSearches * searchBufferSize;
-		endOfBuffer = startOfBuffer + remainder.length;
-		for(; newlineIndices[newlineIndex]+1 < endOfBuffer; newlineIndex++){
-			candidateAbsIndex = (int)newlineIndices[newlineIndex] + 1;
-			candidateRelIndex = (int)(candidateAbsIndex - startOfBuffer);
-			if(remainder[candidateRelIndex] == ASCII_GT) {
-				gtIndices.add(newlineIndex+1);
+		ForkJoinTask.invokeAll(tasks);
+		for(int i = 0; i < tasks.length; i++) {
+			if(tasks[i].error != null) {
+				throw tasks[i].error;
 			}
+			r[i] = tasks[i].result;
+		}
+		return r;
+	}
+
+	private static class LoadTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private String fileName;
+		private boolean useIndexCache;
+		private FastaSequenceFile result;
+		private IOException error;
+
+		LoadTask(String fileName, boolean useIndexCache) {
+			this.fileName = fileName;
+			this.useIndexCache = useIndexCache;
 		}
 
-		sequenceStarts = gtIndices.getInts();
-		raFile.close();
+		protected void compute() {
+			try {
+				result = new FastaSequenceFile(fileName, useIndexCache);
+			} catch(IOException ioe) {
+				error = ioe;
+			}
+		}
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see util.file.FasaSequenceSet#getSequenceCount()
 	 */
@@ -128,7 +152,8 @@ Comparable{
 	 * while another is still trying to read from the file.
 	 */
 	public synchronized String[] getTitles() {
-		if(titles == null || !titles[0].startsWith(">")) {
+		//a file with no sequences has no titles to check
+		if(titles == null || (titles.length > 0 && !titles[0].startsWith(">"))) {
 			titles= new String[sequenceStarts.length];
 			try {
 				boolean wasClosed = openFile();
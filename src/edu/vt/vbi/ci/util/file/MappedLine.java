@@ -0,0 +1,131 @@
+package edu.vt.vbi.ci.util.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A CharSequence view of a single line of ASCII text held
+ * in a ByteBuffer. No bytes are copied when a MappedLine is
+ * created or repositioned; characters are read directly from
+ * the underlying buffer, which is normally a region of a
+ * memory-mapped TextFile.
+ *
+ * A MappedLine may be reused for successive lines by calling
+ * set(), so a whole file can be walked without allocating
+ * an object per line.
+ *
+ * @author enordber
+ */
+public class MappedLine implements CharSequence {
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	public MappedLine() {
+	}
+
+	public MappedLine(ByteBuffer buffer, int offset, int length) {
+		set(buffer, offset, length);
+	}
+
+	/**
+	 * Points this MappedLine at the given region of the buffer.
+	 * The buffer's position and limit are not used or changed.
+	 *
+	 * @param buffer
+	 * @param offset absolute index of the first byte of the line
+	 * @param length number of bytes in the line
+	 */
+	public void set(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		return (char)(buffer.get(offset + index) & 0xff);
+	}
+
+	/**
+	 * Returns the raw byte at the given index within this line.
+	 */
+	public byte byteAt(int index) {
+		return buffer.get(offset + index);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return new MappedLine(buffer, offset + start, end - start);
+	}
+
+	/**
+	 * Returns the index of the first occurrence of c in this line,
+	 * at or after fromIndex, or -1 if c does not occur.
+	 */
+	public int indexOf(char c, int fromIndex) {
+		int r = -1;
+		byte b = (byte)c;
+		int end = offset + length;
+		for(int i = offset + Math.max(fromIndex, 0); i < end; i++) {
+			if(buffer.get(i) == b) {
+				r = i - offset;
+				break;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the field with the given index, where fields are
+	 * separated by the delimiter character. Returns null if the
+	 * line has fewer than fieldIndex+1 fields.
+	 *
+	 * @param fieldIndex
+	 * @param delimiter
+	 * @return
+	 */
+	public CharSequence getField(int fieldIndex, char delimiter) {
+		CharSequence r = null;
+		int start = 0;
+		for(int i = 0; i < fieldIndex && start >= 0; i++) {
+			start = indexOf(delimiter, start);
+			if(start >= 0) {
+				start++;
+			}
+		}
+		if(start >= 0) {
+			int end = indexOf(delimiter, start);
+			if(end < 0) {
+				end = length;
+			}
+			r = subSequence(start, end);
+		}
+		return r;
+	}
+
+	/**
+	 * Returns a read-only ByteBuffer covering exactly this line.
+	 * The returned buffer shares content with the backing buffer.
+	 */
+	public ByteBuffer asByteBuffer() {
+		ByteBuffer r = buffer.duplicate();
+		r.limit(offset + length);
+		r.position(offset);
+		return r.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies the bytes of this line into a new String.
+	 */
+	public String toString() {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		view.get(bytes);
+		return new String(bytes);
+	}
+}
@@ -3,7 +3,12 @@ package edu.vt.vbi.ci.util.file;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
+import edu.vt.vbi.ci.util.IntList;
 import edu.vt.vbi.ci.util.LongList;
 
 
@@ -14,6 +19,10 @@ import edu.vt.vbi.ci.util.LongList;
  * as a single String, or as an array of Strings,
  * with one String per line.
  * 
+ * The file may optionally be memory-mapped (see mapFile()),
+ * in which case lines are read directly from the mapping and
+ * may be obtained as CharSequence views without copying.
+ * 
  * @author ericnordberg
  */
 public class TextFile {
@@ -21,6 +30,18 @@ public class TextFile {
 	 * \n
 	 */
 	public final static byte ASCII_NL = 10;
+
+	/*
+	 * \r
+	 */
+	public final static byte ASCII_CR = 13;
+
+	/**
+	 * Largest region mapped by a single MappedByteBuffer. Files
+	 * larger than this are mapped as several chunks, each starting
+	 * at the beginning of a line, so no line spans two chunks.
+	 */
+	private static final long MAX_MAPPED_CHUNK_SIZE = Integer.MAX_VALUE;
 	
 	private boolean fileIsOpen = false;
 	private RandomAccessFile raFile;
@@ -32,15 +53,64 @@ public class TextFile {
 	 * (ascending) order.
 	 */
 	private long[] newlineIndices;
+
+	/**
+	 * When the file is memory-mapped, these hold the mapped
+	 * chunks, the file offset at which each chunk begins, and
+	 * the index of the first line in each chunk.
+	 */
+	private MappedByteBuffer[] mappedChunks;
+	private long[] chunkStartOffsets;
+	private int[] chunkFirstLines;
+	
+	/**
+	 * Indices of the lines starting with the marker byte given to 
+	 * the constructor. Empty if no marker byte was given.
+	 */
+	private int[] markedLineIndices;
 	
 	public TextFile(File f) throws IOException {
-		file = f;
-		findNewlines();
+		this(f, TextFileIndexer.NO_MARKER);
 	}
 	
 	public TextFile(String fileName) throws IOException {
-		file = new File(fileName);
-		findNewlines();
+		this(new File(fileName), TextFileIndexer.NO_MARKER);
+	}
+
+	/**
+	 * Creates a TextFile, and also records which lines begin with
+	 * the given marker byte. The marked lines are found in the same
+	 * pass over the file as the newlines, and are available to 
+	 * subclasses through getMarkedLineIndices().
+	 * 
+	 * @param f
+	 * @param lineStartMarker
+	 * @throws IOException
+	 */
+	protected TextFile(File f, int lineStartMarker) throws IOException {
+		this(f, lineStartMarker, null, null);
+	}
+
+	/**
+	 * Creates a TextFile using a previously computed index, such as one
+	 * loaded from a FastaIndexCache. If newlineIndices is null, the file
+	 * is scanned as usual.
+	 * 
+	 * @param f
+	 * @param lineStartMarker
+	 * @param newlineIndices
+	 * @param markedLineIndices
+	 * @throws IOException
+	 */
+	protected TextFile(File f, int lineStartMarker, long[] newlineIndices,
+			int[] markedLineIndices) throws IOException {
+		file = f;
+		if(newlineIndices == null) {
+			findNewlines(lineStartMarker);
+		} else {
+			this.newlineIndices = newlineIndices;
+			this.markedLineIndices = markedLineIndices;
+		}
 	}
 
 	public int getLineCount() {
@@ -52,6 +122,9 @@ public class TextFile {
 	 * @throws IOException
 	 */
 	public String getLine(int index) throws IOException {
+		if(mappedChunks != null) {
+			return getMappedLine(index, new MappedLine()).toString();
+		}
 		String r = null;
 		boolean wasClosed =	openFile();
 
@@ -89,6 +162,141 @@ public class TextFile {
 	}
 	
 	
+	/**
+	 * Returns the specified line as a CharSequence view over the
+	 * memory-mapped file. No bytes are copied and no file I/O is done
+	 * for the call. The file is mapped first if it is not already.
+	 * Trailing carriage returns are excluded, as for getLine().
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public MappedLine getLineSequence(int index) throws IOException {
+		return getLineSequence(index, new MappedLine());
+	}
+
+	/**
+	 * Same as getLineSequence(int), but repositions the given
+	 * MappedLine instead of creating a new one. This allows all lines
+	 * in a file to be visited without allocating anything per line.
+	 *
+	 * @param index
+	 * @param reuse
+	 * @return reuse, now viewing the specified line
+	 * @throws IOException
+	 */
+	public MappedLine getLineSequence(int index, MappedLine reuse) 
+	throws IOException {
+		if(mappedChunks == null) {
+			mapFile();
+		}
+		return getMappedLine(index, reuse);
+	}
+
+	/**
+	 * Returns a read-only ByteBuffer covering the specified line
+	 * of the memory-mapped file. The file is mapped first if it
+	 * is not already.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer getLineBuffer(int index) throws IOException {
+		return getLineSequence(index).asByteBuffer();
+	}
+
+	/**
+	 * Memory-maps the file for reading. After this, getLine() and
+	 * the line view methods read directly from the mapping rather than
+	 * seeking in the file. Files larger than 2 GB are mapped as multiple
+	 * chunks. Does nothing if the file is already mapped.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void mapFile() throws IOException {
+		if(mappedChunks != null) {
+			return;
+		}
+		long fileLength = file.length();
+		LongList starts = new LongList();
+		IntList firstLines = new IntList();
+		long chunkStart = 0;
+		starts.add(chunkStart);
+		firstLines.add(0);
+		for(int i = 0; i < newlineIndices.length; i++) {
+			//end of this line, including its newline
+			long lineEnd = Math.min(newlineIndices[i] + 1, fileLength);
+			if(lineEnd - chunkStart > MAX_MAPPED_CHUNK_SIZE && i > 0) {
+				//start a new chunk with this line
+				chunkStart = newlineIndices[i-1] + 1;
+				starts.add(chunkStart);
+				firstLines.add(i);
+			}
+		}
+
+		long[] startOffsets = starts.getLongs();
+		MappedByteBuffer[] chunks = new MappedByteBuffer[startOffsets.length];
+		RandomAccessFile mapFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = mapFile.getChannel();
+			for(int i = 0; i < chunks.length; i++) {
+				long end = fileLength;
+				if(i + 1 < startOffsets.length) {
+					end = startOffsets[i+1];
+				}
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, 
+						startOffsets[i], end - startOffsets[i]);
+			}
+		} finally {
+			//the mapping remains valid after the channel is closed
+			mapFile.close();
+		}
+
+		chunkStartOffsets = startOffsets;
+		chunkFirstLines = firstLines.getInts();
+		mappedChunks = chunks;
+	}
+
+	/**
+	 * Releases references to the memory-mapped chunks, returning this
+	 * TextFile to seek-and-read access. The mapping itself is released
+	 * when the buffers are garbage collected.
+	 */
+	public synchronized void unmapFile() {
+		mappedChunks = null;
+		chunkStartOffsets = null;
+		chunkFirstLines = null;
+	}
+
+	public boolean isMapped() {
+		return mappedChunks != null;
+	}
+
+	private MappedLine getMappedLine(int index, MappedLine reuse) {
+		int chunk = Arrays.binarySearch(chunkFirstLines, index);
+		if(chunk < 0) {
+			chunk = -chunk - 2;
+		}
+		long chunkStart = chunkStartOffsets[chunk];
+		long startIndex;
+		if(index == 0) {
+			startIndex = 0;
+		} else {
+			startIndex = newlineIndices[index-1] + 1;
+		}
+		long endIndex = newlineIndices[index];
+		int offset = (int)(startIndex - chunkStart);
+		int length = (int)(endIndex - startIndex);
+		MappedByteBuffer buffer = mappedChunks[chunk];
+		if(length > 0 && buffer.get(offset + length - 1) == ASCII_CR) {
+			length--;
+		}
+		reuse.set(buffer, offset, length);
+		return reuse;
+	}
+
 	/**
 	 * Gets the specified subset of lines from the file.
 	 *  
@@ -158,70 +366,18 @@ public class TextFile {
 	
 	/**
 	 * Finds the index of each newline (\n) in the file,
-	 * and populates the nelineIndices array with these 
-	 * values.
+	 * and populates the newlineIndices array with these 
+	 * values. Lines beginning with lineStartMarker are recorded
+	 * in markedLineIndices. Large files are scanned in parallel
+	 * by a TextFileIndexer.
 	 * 
 	 * @throws IOException
 	 */
-	private void findNewlines() throws IOException {
-		boolean wasClosed =	openFile();
-		
-		LongList nlIndices = new LongList();
-		long byteBufferSize = raFile.length();
-		
-		//use a byte[] as a searchBuffer. Fill this array and
-		//look through it for value. When done looking through
-		//array, refill it from bb and look again. Do this until
-		//the end of bb is reached.
-		
-		//use a buffer size of 128K, unless the file is
-		//smaller than that
-		long searchBufferSize = Math.min(1024*128, byteBufferSize);
-
-		byte[] searchBuffer = new byte[(int) searchBufferSize];
-		int fullBufferSearches = 0;
-		if(searchBufferSize > 0) {
-			fullBufferSearches = (int) (byteBufferSize / searchBufferSize);
-		}
-
-		raFile.seek(0);
-		for(int i = 0; i < fullBufferSearches; i++) {
-			raFile.readFully(searchBuffer);
-			for(int j = 0; j < searchBufferSize; j++){
-				if(searchBuffer[j] == ASCII_NL) {
-					long index = ((i * searchBufferSize) + j);
-					nlIndices.add(index);
-				}
-			}
-		}
-		
-		searchBuffer = null;
-		
-		//search the remaining bytes
-		if(searchBufferSize == 0) {
-//			avoid division by zero
-			searchBufferSize = 1;
-		}
-		byte[] remainder = new byte[(int) (byteBufferSize % searchBufferSize)];
-		raFile.readFully(remainder);
-		for(int i = 0; i < remainder.length; i++) {
-			if(remainder[i] == ASCII_NL) {
-				long index = (searchBufferSize * fullBufferSearches) + i;
-				nlIndices.add(index);
-			} 
-		}
-		
-		//if file does not end with a newline, assume a newline should be
-		//at the end of the file
-		if(nlIndices.size() == 0 || 
-				nlIndices.get(nlIndices.size()-1) != raFile.length()) {
-			nlIndices.add(raFile.length());
-		}
-		
-		newlineIndices = nlIndices.getLongs();
-		if(wasClosed) {
-			closeFile();
-		}
+	private void findNewlines(int lineStartMarker) throws IOException {
+		TextFileIndexer indexer = new TextFileIndexer(file, lineStartMarker);
+		indexer.run();
+		newlineIndices = indexer.getNewlineIndices();
+		markedLineIndices = indexer.getMarkedLines();
 	}
 
 	/**
@@ -268,4 +424,8 @@ public class TextFile {
 	protected long[] getNewlineIndices() {
 		return newlineIndices;
 	}
+
+	protected int[] getMarkedLineIndices() {
+		return markedLineIndices;
+	}
 }
@@ -0,0 +1,273 @@
+package edu.vt.vbi.ci.util.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.vt.vbi.ci.util.IntList;
+import edu.vt.vbi.ci.util.LongList;
+
+/**
+ * Finds the newlines in a text file, and optionally the lines that
+ * begin with a given marker byte (such as '>' for fasta title lines),
+ * in a single pass over the file. Large files are split into ranges
+ * that are scanned concurrently in a ForkJoinPool, each range using
+ * positional reads on a shared FileChannel.
+ *
+ * The newline indices follow the conventions of TextFile: they are
+ * byte offsets in ascending order, and the file length is always
+ * added as a final entry, standing in for a newline at the end of
+ * the file.
+ *
+ * @author enordber
+ */
+public class TextFileIndexer {
+
+	/**
+	 * Size of the byte buffer used by each range scan.
+	 */
+	private static final int READ_BUFFER_SIZE = 1024*128;
+
+	/**
+	 * Files smaller than this are scanned by the calling thread
+	 * without splitting. Larger files are split into ranges of
+	 * about this size.
+	 */
+	private static final long PARALLEL_RANGE_SIZE = 1024*1024*8;
+
+	/**
+	 * Value of markerByte when no marked lines are to be found.
+	 * This is outside the range of byte values, so it never matches.
+	 */
+	public static final int NO_MARKER = Integer.MIN_VALUE;
+
+	private File file;
+	private int markerByte;
+	private long[] newlineIndices;
+	private int[] markedLines;
+
+	/**
+	 * @param file the file to index
+	 * @param markerByte lines starting with this byte will be recorded.
+	 *                   Use NO_MARKER to find newlines only.
+	 */
+	public TextFileIndexer(File file, int markerByte) {
+		this.file = file;
+		this.markerByte = markerByte;
+	}
+
+	/**
+	 * Scans the file. After this returns, the results are available
+	 * from getNewlineIndices() and getMarkedLines().
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		RandomAccessFile raFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raFile.getChannel();
+			long fileLength = channel.size();
+			int rangeCount = (int)Math.max(1,
+					(fileLength + PARALLEL_RANGE_SIZE - 1) / PARALLEL_RANGE_SIZE);
+			RangeScan[] ranges = new RangeScan[rangeCount];
+			for(int i = 0; i < rangeCount; i++) {
+				long start = i * PARALLEL_RANGE_SIZE;
+				long end = Math.min(fileLength, start + PARALLEL_RANGE_SIZE);
+				ranges[i] = new RangeScan(channel, start, end, markerByte);
+			}
+
+			if(rangeCount == 1) {
+				ranges[0].scan();
+			} else {
+				ForkJoinPool.commonPool().invoke(
+						new RangeSplitter(ranges, 0, rangeCount));
+			}
+
+			for(int i = 0; i < rangeCount; i++) {
+				if(ranges[i].error != null) {
+					throw ranges[i].error;
+				}
+			}
+
+			mergeRanges(ranges, fileLength);
+		} finally {
+			raFile.close();
+		}
+	}
+
+	/**
+	 * Combines the per-range results into single arrays. Marked line
+	 * indices from each range are relative to the start of that range,
+	 * so they are shifted by the number of newlines in earlier ranges.
+	 */
+	private void mergeRanges(RangeScan[] ranges, long fileLength) {
+		int newlineCount = 0;
+		int markedCount = 0;
+		for(int i = 0; i < ranges.length; i++) {
+			newlineCount += ranges[i].newlines.size();
+			markedCount += ranges[i].marked.size();
+		}
+
+		long lastNewline = -1;
+		if(newlineCount > 0) {
+			LongList lastRangeNewlines = null;
+			for(int i = ranges.length-1; lastRangeNewlines == null; i--) {
+				if(ranges[i].newlines.size() > 0) {
+					lastRangeNewlines = ranges[i].newlines;
+				}
+			}
+			lastNewline = lastRangeNewlines.get(lastRangeNewlines.size()-1);
+		}
+		//if file does not end with a newline, assume a newline should be
+		//at the end of the file
+		boolean addFinalNewline = newlineCount == 0 || lastNewline != fileLength;
+
+		long[] allNewlines = new long[newlineCount + (addFinalNewline ? 1 : 0)];
+		int[] allMarked = new int[markedCount];
+		int newlinePosition = 0;
+		int markedPosition = 0;
+		for(int i = 0; i < ranges.length; i++) {
+			LongList rangeNewlines = ranges[i].newlines;
+			int rangeNewlineCount = rangeNewlines.size();
+			rangeNewlines.copyInto(allNewlines, newlinePosition);
+			IntList rangeMarked = ranges[i].marked;
+			for(int j = 0; j < rangeMarked.size(); j++) {
+				allMarked[markedPosition] = rangeMarked.get(j) + newlinePosition;
+				markedPosition++;
+			}
+			newlinePosition += rangeNewlineCount;
+			//release range results as soon as they are copied
+			ranges[i] = null;
+		}
+		if(addFinalNewline) {
+			allNewlines[newlinePosition] = fileLength;
+		}
+
+		newlineIndices = allNewlines;
+		markedLines = allMarked;
+	}
+
+	/**
+	 * Returns the byte offsets of the newlines in the file,
+	 * with a final entry for the end of the file.
+	 */
+	public long[] getNewlineIndices() {
+		return newlineIndices;
+	}
+
+	/**
+	 * Returns the indices of the lines starting with the marker byte,
+	 * in ascending order. Empty if no marker byte was given.
+	 */
+	public int[] getMarkedLines() {
+		return markedLines;
+	}
+
+	/**
+	 * Recursively splits an array of RangeScans so they
+	 * are run in parallel.
+	 */
+	private static class RangeSplitter extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private RangeScan[] ranges;
+		private int from;
+		private int to;
+
+		RangeSplitter(RangeScan[] ranges, int from, int to) {
+			this.ranges = ranges;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from == 1) {
+				ranges[from].scan();
+			} else {
+				int middle = (from + to) / 2;
+				invokeAll(new RangeSplitter(ranges, from, middle),
+						new RangeSplitter(ranges, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Scans one range [start, end) of the file. The byte just before
+	 * the range is also read, to determine whether the first byte of
+	 * the range begins a line.
+	 */
+	private static class RangeScan {
+		private FileChannel channel;
+		private long start;
+		private long end;
+		private int markerByte;
+
+		private LongList newlines;
+		/*
+		 * line indices relative to the first line starting in this range
+		 */
+		private IntList marked;
+		private IOException error;
+
+		RangeScan(FileChannel channel, long start, long end, int markerByte) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.markerByte = markerByte;
+		}
+
+		void scan() {
+			newlines = new LongList((int)Math.max(16, (end - start) / 64));
+			marked = new IntList();
+			try {
+				boolean atLineStart = true;
+				long readPosition = start;
+				if(start > 0) {
+					readPosition = start - 1;
+				}
+				ByteBuffer buffer =
+					ByteBuffer.allocate((int)Math.min(READ_BUFFER_SIZE,
+							end - readPosition + 1));
+				byte[] bytes = buffer.array();
+				boolean first = start > 0;
+				int localNewlines = 0;
+				while(readPosition < end) {
+					buffer.clear();
+					buffer.limit((int)Math.min(buffer.capacity(), end - readPosition));
+					int read = channel.read(buffer, readPosition);
+					if(read < 0) {
+						break;
+					}
+					int j = 0;
+					if(first) {
+						//the byte before this range only tells us if a line
+						//begins at the start of the range
+						atLineStart = bytes[0] == TextFile.ASCII_NL;
+						first = false;
+						j = 1;
+					}
+					for(; j < read; j++) {
+						byte b = bytes[j];
+						if(atLineStart && b == markerByte) {
+							marked.add(localNewlines);
+						}
+						if(b == TextFile.ASCII_NL) {
+							newlines.add(readPosition + j);
+							localNewlines++;
+							atLineStart = true;
+						} else {
+							atLineStart = false;
+						}
+					}
+					readPosition += read;
+				}
+			} catch(IOException ioe) {
+				error = ioe;
+			}
+		}
+	}
+}